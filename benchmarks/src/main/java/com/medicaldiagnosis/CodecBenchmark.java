@@ -0,0 +1,61 @@
+package com.medicaldiagnosis;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.openjdk.jmh.annotations.*;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Gson encoding and decoding of the payloads the servlets exchange, with the same default Gson they use. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+    private static final Type PATIENT_LIST = new TypeToken<List<Patient>>() {}.getType();
+    private static final Type RESULT_LIST = new TypeToken<List<DiagnosisResult>>() {}.getType();
+
+    @Param({"1", "100", "10000"})
+    public int size;
+
+    private final Gson gson = new Gson();
+    private List<Patient> patients;
+    private List<DiagnosisResult> results;
+    private String patientsJson;
+    private String resultsJson;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticData data = new SyntheticData(SyntheticData.seed());
+        patients = data.patients(size, 100);
+        for (int i = 0; i < size; i++) {
+            patients.get(i).setId(i + 1);
+        }
+        results = data.results(size);
+        patientsJson = gson.toJson(patients);
+        resultsJson = gson.toJson(results);
+    }
+
+    @Benchmark
+    public String encodePatients() {
+        return gson.toJson(patients);
+    }
+
+    @Benchmark
+    public List<Patient> decodePatients() {
+        return gson.fromJson(patientsJson, PATIENT_LIST);
+    }
+
+    @Benchmark
+    public String encodeResults() {
+        return gson.toJson(results);
+    }
+
+    @Benchmark
+    public List<DiagnosisResult> decodeResults() {
+        return gson.fromJson(resultsJson, RESULT_LIST);
+    }
+}
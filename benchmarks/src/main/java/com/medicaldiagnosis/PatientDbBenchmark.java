@@ -0,0 +1,107 @@
+package com.medicaldiagnosis;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * PatientDB operations from four threads against a preloaded database, either
+ * purely in memory or backed by a write-ahead log in a temporary directory
+ * with the given durability, on each {@link PatientTable} engine. {@code mixed}
+ * runs reads and writes side by side to show how writers holding the lock
+ * affect readers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(4)
+@State(Scope.Benchmark)
+public class PatientDbBenchmark {
+    private static final int POOL = 4096;
+    private static final int PAGE = 100;
+
+    @Param({"100000"})
+    public int preload;
+
+    @Param({"memory", "async", "fsync"})
+    public String storage;
+
+    @Param({"heap", "columnar"})
+    public String engine;
+
+    private Path dir;
+    private List<Patient> pool;
+    private int maxId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("patientdb.engine", engine);
+        if (!storage.equals("memory")) {
+            dir = Files.createTempDirectory("bench-patientdb");
+            System.setProperty("patientdb.durability", storage);
+            PatientDB.open(dir);
+        }
+        SyntheticData data = new SyntheticData(SyntheticData.seed());
+        pool = data.patients(POOL, 100);
+        for (Patient p : data.patients(preload, 100)) {
+            PatientDB.addPatient(p, Durability.ASYNC);
+        }
+        maxId = PatientDB.size();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        PatientDB.close();
+        if (dir != null) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public Patient get() {
+        return PatientDB.getPatient(1 + ThreadLocalRandom.current().nextInt(maxId));
+    }
+
+    @Benchmark
+    public Patient add() {
+        return PatientDB.addPatient(SyntheticData.copy(pool.get(ThreadLocalRandom.current().nextInt(POOL))));
+    }
+
+    /** Adds a patient and deletes it again, keeping the database size stable. */
+    @Benchmark
+    public boolean addAndDelete() {
+        return PatientDB.deletePatient(add().getId());
+    }
+
+    /** Reads one page of the id-ordered listing from a random starting point. */
+    @Benchmark
+    public void listPage(Blackhole blackhole) {
+        Iterator<Patient> page = PatientDB.getPatientsAfter(ThreadLocalRandom.current().nextInt(maxId)).iterator();
+        for (int i = 0; i < PAGE && page.hasNext(); i++) {
+            blackhole.consume(page.next());
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Patient mixedGet() {
+        return get();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public boolean mixedAddAndDelete() {
+        return addAndDelete();
+    }
+}
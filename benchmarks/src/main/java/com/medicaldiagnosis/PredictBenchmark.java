@@ -0,0 +1,70 @@
+package com.medicaldiagnosis;
+
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DiseasePredictor#predict} over synthetic catalogs. {@code cached}
+ * cycles through fewer distinct requests than the result cache holds, so after
+ * warm-up it measures normalization plus a cache hit; {@code uncached} runs
+ * with the cache disabled and scores every call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class PredictBenchmark {
+    private static final int REQUESTS = 1024;
+
+    @Param({"8", "100", "1000", "10000"})
+    public int diseases;
+
+    @Param({"1", "3", "8"})
+    public int symptoms;
+
+    List<List<String>> symptomSets;
+    int[] ages;
+    String[] histories;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticData data = new SyntheticData(SyntheticData.seed());
+        Path model = Files.createTempFile("bench-model", ".json");
+        try {
+            data.writeModel(model, diseases);
+            System.setProperty("diagnosis.model", model.toString());
+            DiseasePredictor.initializeModel();
+        } finally {
+            Files.delete(model);
+        }
+        symptomSets = data.symptomSets(REQUESTS, symptoms, diseases);
+        ages = data.ages(REQUESTS);
+        histories = data.histories(REQUESTS);
+    }
+
+    @Benchmark
+    public List<DiagnosisResult> cached(Cursor cursor) {
+        return predict(cursor);
+    }
+
+    @Benchmark
+    @Fork(value = 2, jvmArgsAppend = "-Ddiagnosis.cache.size=0")
+    public List<DiagnosisResult> uncached(Cursor cursor) {
+        return predict(cursor);
+    }
+
+    private List<DiagnosisResult> predict(Cursor cursor) {
+        int i = cursor.next++ & (REQUESTS - 1);
+        return DiseasePredictor.predict(symptomSets.get(i), ages[i], histories[i]);
+    }
+}
@@ -0,0 +1,199 @@
+package com.medicaldiagnosis;
+
+import com.google.gson.Gson;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Deterministic generator for benchmark inputs: disease catalogs in the JSON
+ * model format, patients and prediction requests. Every method derives its
+ * own Random from the seed, so the same seed yields the same data regardless
+ * of call order and results stay comparable between commits. The seed comes
+ * from {@code -Dbench.seed} (default 42).
+ *
+ * <p>Symptom popularity is skewed so that low-numbered symptoms appear in many
+ * diseases, like "fatigue" or "cough" in the built-in model.
+ *
+ * <p>Usage: {@code SyntheticData <outDir> [diseases] [patients] [seed]} writes
+ * {@code model.json} and {@code patients.ndjson}.
+ */
+final class SyntheticData {
+    static final long DEFAULT_SEED = 42L;
+
+    private static final String[] GENDERS = {"Male", "Female"};
+    private static final String[] BLOOD_GROUPS = {"A+", "A-", "B+", "B-", "AB+", "AB-", "O+", "O-"};
+    private static final String[] HISTORIES = {"", "None", "History of diabetes", "Family history of heart disease",
+        "Diabetes and heart disease", "Seasonal allergies"};
+
+    private final long seed;
+
+    SyntheticData(long seed) {
+        this.seed = seed;
+    }
+
+    static long seed() {
+        return Long.getLong("bench.seed", DEFAULT_SEED);
+    }
+
+    static int vocabularySize(int diseases) {
+        return diseases * 4 + 16;
+    }
+
+    static String symptom(int i) {
+        return String.format("symptom %05d", i);
+    }
+
+    static String disease(int i) {
+        return String.format("Disease %05d", i);
+    }
+
+    /** Catalog with {@code diseases} diseases of 4 to 8 symptoms each and two history modifiers. */
+    DiseaseModelLoader.ModelDocument model(int diseases) {
+        Random random = new Random(seed ^ 0x6D6F64656CL);
+        int vocabulary = vocabularySize(diseases);
+        DiseaseModelLoader.ModelDocument doc = new DiseaseModelLoader.ModelDocument();
+        doc.diseases = new ArrayList<>(diseases);
+        for (int d = 0; d < diseases; d++) {
+            DiseaseModelLoader.DiseaseDefinition def = new DiseaseModelLoader.DiseaseDefinition();
+            def.name = disease(d);
+            def.symptoms = new LinkedHashMap<>();
+            int count = 4 + random.nextInt(5);
+            while (def.symptoms.size() < count) {
+                def.symptoms.put(symptom(skewed(random, vocabulary)), 0.5 + random.nextInt(50) / 100.0);
+            }
+            def.recommendations = Arrays.asList("Recommendation A for " + def.name, "Recommendation B for " + def.name);
+            if (random.nextInt(4) == 0) {
+                def.ageMultiplier = 1.2;
+            }
+            doc.diseases.add(def);
+        }
+        doc.historyModifiers = new LinkedHashMap<>();
+        doc.historyModifiers.put("diabetes", Collections.singletonMap(disease(random.nextInt(diseases)), 1.3));
+        doc.historyModifiers.put("heart", Collections.singletonMap(disease(random.nextInt(diseases)), 1.3));
+        return doc;
+    }
+
+    void writeModel(Path path, int diseases) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            new Gson().toJson(model(diseases), out);
+        }
+    }
+
+    /** Symptom lists of exactly {@code size} entries drawn from the catalog's vocabulary; one in ten has a typo'd term. */
+    List<List<String>> symptomSets(int count, int size, int diseases) {
+        Random random = new Random(seed ^ 0x73796D70L ^ ((long) size << 32));
+        int vocabulary = vocabularySize(diseases);
+        List<List<String>> sets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            List<String> symptoms = new ArrayList<>(size);
+            for (int j = 0; j < size; j++) {
+                symptoms.add(symptom(skewed(random, vocabulary)));
+            }
+            if (random.nextInt(10) == 0) {
+                symptoms.set(random.nextInt(size), "unknown symptom");
+            }
+            sets.add(symptoms);
+        }
+        return sets;
+    }
+
+    int[] ages(int count) {
+        Random random = new Random(seed ^ 0x61676573L);
+        int[] ages = new int[count];
+        for (int i = 0; i < count; i++) {
+            ages[i] = 1 + random.nextInt(95);
+        }
+        return ages;
+    }
+
+    String[] histories(int count) {
+        Random random = new Random(seed ^ 0x68697374L);
+        String[] histories = new String[count];
+        for (int i = 0; i < count; i++) {
+            histories[i] = HISTORIES[random.nextInt(HISTORIES.length)];
+        }
+        return histories;
+    }
+
+    /** Patients without ids, with symptoms and diagnoses from a catalog of {@code diseases} diseases. */
+    List<Patient> patients(int count, int diseases) {
+        Random random = new Random(seed ^ 0x70617469L);
+        int vocabulary = vocabularySize(diseases);
+        List<Patient> patients = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Patient p = new Patient();
+            p.setName("Patient " + i);
+            p.setAge(1 + random.nextInt(95));
+            p.setGender(GENDERS[random.nextInt(GENDERS.length)]);
+            p.setBloodGroup(BLOOD_GROUPS[random.nextInt(BLOOD_GROUPS.length)]);
+            p.setMedicalHistory(HISTORIES[random.nextInt(HISTORIES.length)]);
+            List<String> symptoms = new ArrayList<>();
+            for (int j = 1 + random.nextInt(4); j > 0; j--) {
+                symptoms.add(symptom(skewed(random, vocabulary)));
+            }
+            p.setSymptoms(symptoms);
+            p.setDiagnosis(disease(random.nextInt(diseases)));
+            p.setConfidenceScore(Math.round(random.nextDouble() * 990) / 10.0);
+            patients.add(p);
+        }
+        return patients;
+    }
+
+    /** Result lists shaped like predict output: descending probabilities with two recommendations each. */
+    List<DiagnosisResult> results(int count) {
+        Random random = new Random(seed ^ 0x72657375L);
+        List<DiagnosisResult> results = new ArrayList<>(count);
+        double probability = 99.0;
+        for (int i = 0; i < count; i++) {
+            probability -= random.nextDouble() * probability / Math.max(1, count - i);
+            String severity = probability > 70 ? "High" : probability > 50 ? "Moderate" : "Low";
+            DiagnosisResult result = new DiagnosisResult(disease(random.nextInt(Math.max(count, 8))), probability, severity);
+            result.setRecommendations(Arrays.asList("Recommendation A", "Recommendation B"));
+            results.add(result);
+        }
+        return results;
+    }
+
+    static Patient copy(Patient source) {
+        Patient p = new Patient();
+        p.setName(source.getName());
+        p.setAge(source.getAge());
+        p.setGender(source.getGender());
+        p.setBloodGroup(source.getBloodGroup());
+        p.setMedicalHistory(source.getMedicalHistory());
+        p.setSymptoms(source.getSymptoms());
+        p.setDiagnosis(source.getDiagnosis());
+        p.setConfidenceScore(source.getConfidenceScore());
+        return p;
+    }
+
+    /** Index in [0, bound) with density falling off towards the end of the range. */
+    private static int skewed(Random random, int bound) {
+        double r = random.nextDouble();
+        return (int) (bound * r * r);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SyntheticData <outDir> [diseases] [patients] [seed]");
+            System.exit(2);
+        }
+        Path dir = Paths.get(args[0]);
+        int diseases = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int patients = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+        SyntheticData data = new SyntheticData(args.length > 3 ? Long.parseLong(args[3]) : seed());
+
+        Files.createDirectories(dir);
+        data.writeModel(dir.resolve("model.json"), diseases);
+        Gson gson = new Gson();
+        try (Writer out = Files.newBufferedWriter(dir.resolve("patients.ndjson"), StandardCharsets.UTF_8)) {
+            for (Patient p : data.patients(patients, diseases)) {
+                gson.toJson(p, out);
+                out.write('\n');
+            }
+        }
+        System.out.println("Wrote " + diseases + " diseases and " + patients + " patients to " + dir);
+    }
+}
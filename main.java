@@ -1,35 +1,208 @@
 package com.medicaldiagnosis;
 
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.FilterMapping;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import javax.servlet.http.*;
 import javax.servlet.*;
 import java.io.*;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 
 public class Main {
     public static void main(String[] args) throws Exception {
-        DiseasePredictor.initializeModel();
+        if (args.length > 0 && args[0].equals("compile-model")) {
+            if (args.length != 3) {
+                System.err.println("Usage: compile-model <source.json|source.csv> <output.bin>");
+                System.exit(2);
+            }
+            CompiledDiseaseModel model = DiseaseModelLoader.load(Paths.get(args[1]));
+            DiseaseModelLoader.writeBinary(model, Paths.get(args[2]));
+            System.out.println("Compiled " + model.diseaseCount + " diseases, " + model.symptomCount
+                + " symptoms into " + args[2]);
+            return;
+        }
         
-        Server server = new Server(8080);
-        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
-        context.setContextPath("/");
-        server.setHandler(context);
+        if (args.length > 0 && args[0].equals("patientdb-bench")) {
+            PatientStoreBenchmark.run(args);
+            return;
+        }
         
-        context.addServlet(new ServletHolder(new PatientServlet()), "/api/patients/*");
-        context.addServlet(new ServletHolder(new DiagnosisServlet()), "/api/diagnosis/*");
-        context.addServlet(new ServletHolder(new HomeServlet()), "/*");
+        if (args.length > 0 && args[0].equals("patientdb-footprint")) {
+            PatientFootprintBenchmark.run(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("patientdb-stress")) {
+            PatientDbStressCheck.run(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("train-model")) {
+            TrainCommand.run(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("import-patients")) {
+            ImportCommand.run(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("load-test")) {
+            LoadTest.run(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("overload-check")) {
+            OverloadCheck.run(args);
+            return;
+        }
+        
+        if (args.length > 0 && args[0].equals("metrics-overhead")) {
+            MetricsOverheadCheck.run(args);
+            return;
+        }
+        
+        DiseasePredictor.initializeModel();
+        
+        String dataDir = System.getProperty("patientdb.dir", "data");
+        if (!dataDir.isEmpty()) {
+            PatientDB.open(Paths.get(dataDir));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    PatientDB.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to close PatientDB: " + e);
+                }
+            }));
+        }
         
+        Server server = createServer(Integer.getInteger("server.port", 8080));
         server.start();
         System.out.println("====================================");
         System.out.println("AI Medical Diagnosis System Started");
-        System.out.println("Server: http://localhost:8080");
+        System.out.println("Server: http://localhost:" + localPort(server));
         System.out.println("====================================");
         server.join();
     }
+    
+    /**
+     * Builds the server without starting it. Jetty gets at most
+     * {@code server.threads} threads (default 200) and a job queue bounded at
+     * {@code server.queue} (default 1024) instead of an unbounded one. Each API
+     * endpoint sits behind a {@link ConcurrencyLimitFilter} so that a flood on
+     * one cannot take every thread from the others; {@code server.limit.<endpoint>}
+     * overrides its limit and 0 disables it. Change feed subscribers hold no
+     * thread, so the stream endpoint's limit only caps open connections. Port 0
+     * binds an ephemeral port.
+     */
+    static Server createServer(int port) {
+        int maxThreads = Integer.getInteger("server.threads", 200);
+        QueuedThreadPool pool = new QueuedThreadPool(maxThreads, Math.min(8, maxThreads), 60_000,
+            new BlockingArrayQueue<>(Integer.getInteger("server.queue", 1024)));
+        pool.setName("jetty");
+        String help = "Jetty request threads by state.";
+        Metrics.gauge("jetty_threads", help, "state=\"busy\"", pool::getBusyThreads);
+        Metrics.gauge("jetty_threads", help, "state=\"idle\"", pool::getIdleThreads);
+        Metrics.gauge("jetty_threads", help, "state=\"total\"", pool::getThreads);
+        Metrics.gauge("jetty_threads_max", "Configured maximum Jetty threads.", "", pool::getMaxThreads);
+        Metrics.gauge("jetty_queued_jobs", "Jobs waiting for a Jetty thread.", "", pool::getQueueSize);
+        
+        Server server = new Server(pool);
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(port);
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.setContextPath("/");
+        server.setHandler(context);
+        
+        int apiLimit = Math.max(1, maxThreads / 2);
+        addEndpoint(context, "patients", "/api/patients/*", new PatientServlet(), apiLimit);
+        addEndpoint(context, "stream", "/api/patients/stream", new PatientStreamServlet(), 10000);
+        addEndpoint(context, "diagnosis", "/api/diagnosis/*", new DiagnosisServlet(), 1024);
+        addEndpoint(context, "model", "/api/model/*", new ModelServlet(), apiLimit);
+        addEndpoint(context, "symptoms", "/api/symptoms/*", new SymptomServlet(), apiLimit);
+        addEndpoint(context, "analytics", "/api/analytics/*", new AnalyticsServlet(), apiLimit);
+        context.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
+        context.addServlet(new ServletHolder(new HomeServlet()), "/*");
+        return server;
+    }
+    
+    private static void addEndpoint(ServletContextHandler context, String endpoint, String path, HttpServlet servlet,
+                                    int defaultLimit) {
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setName(endpoint);
+        holder.setAsyncSupported(true);
+        context.addServlet(holder, path);
+        // Added first so requests shed by the limit filter are still counted.
+        addFilter(context, endpoint, "metrics", new RequestMetricsFilter(endpoint));
+        int limit = Integer.getInteger("server.limit." + endpoint, defaultLimit);
+        if (limit > 0) {
+            addFilter(context, endpoint, "limit", new ConcurrencyLimitFilter(endpoint, limit));
+        }
+    }
+    
+    private static void addFilter(ServletContextHandler context, String endpoint, String role, Filter filter) {
+        FilterHolder holder = new FilterHolder(filter);
+        holder.setName(endpoint + "-" + role);
+        holder.setAsyncSupported(true);
+        // Mapped by servlet rather than path, so /api/patients/stream is filtered only as its own endpoint.
+        FilterMapping mapping = new FilterMapping();
+        mapping.setFilterName(holder.getName());
+        mapping.setServletName(endpoint);
+        mapping.setDispatcherTypes(EnumSet.of(DispatcherType.REQUEST));
+        context.getServletHandler().addFilter(holder, mapping);
+    }
+    
+    static int localPort(Server server) {
+        return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+    }
 }
 
 class Patient {
@@ -42,6 +215,7 @@ class Patient {
     private List<String> symptoms;
     private String diagnosis;
     private double confidenceScore;
+    private int version;
     
     public Patient() {
         this.symptoms = new ArrayList<>();
@@ -65,6 +239,8 @@ class Patient {
     public void setDiagnosis(String diagnosis) { this.diagnosis = diagnosis; }
     public double getConfidenceScore() { return confidenceScore; }
     public void setConfidenceScore(double confidenceScore) { this.confidenceScore = confidenceScore; }
+    public int getVersion() { return version; }
+    public void setVersion(int version) { this.version = version; }
 }
 
 class DiagnosisResult {
@@ -87,13 +263,94 @@ class DiagnosisResult {
     public void setRecommendations(List<String> recommendations) { this.recommendations = recommendations; }
 }
 
+class BatchDiagnosisResult {
+    private int index;
+    private int patientId;
+    private List<DiagnosisResult> results;
+    private String error;
+    
+    public BatchDiagnosisResult(int index, int patientId, List<DiagnosisResult> results) {
+        this.index = index;
+        this.patientId = patientId;
+        this.results = results;
+    }
+    
+    static BatchDiagnosisResult error(int index, String error) {
+        BatchDiagnosisResult result = new BatchDiagnosisResult(index, 0, null);
+        result.error = error;
+        return result;
+    }
+    
+    public int getIndex() { return index; }
+    public int getPatientId() { return patientId; }
+    public List<DiagnosisResult> getResults() { return results; }
+    public String getError() { return error; }
+}
+
 class DiseasePredictor {
-    private static Map<String, Map<String, Double>> diseaseSymptomWeights;
-    private static Map<String, List<String>> diseaseRecommendations;
+    private static volatile CompiledDiseaseModel model;
+    private static volatile Path modelPath;
+    private static final LruCache<DiagnosisCacheKey, List<DiagnosisResult>> cache = new LruCache<>(
+        Integer.getInteger("diagnosis.cache.size", 10000),
+        Long.getLong("diagnosis.cache.ttlMillis", 0L));
+    private static final LatencyHistogram predictLatency = Metrics.histogram("diagnosis_predict_seconds",
+        "Sampled end-to-end predict latency, cache hits included.", "");
+    private static final String STAGE_METRIC = "diagnosis_predict_stage_seconds";
+    private static final String STAGE_HELP = "Sampled predict latency by stage. Score sums the postings and select applies the multipliers and ranks; both run on cache misses only.";
+    private static final LatencyHistogram normalizeLatency = Metrics.histogram(STAGE_METRIC, STAGE_HELP, "stage=\"normalize\"");
+    private static final LatencyHistogram scoreLatency = Metrics.histogram(STAGE_METRIC, STAGE_HELP, "stage=\"score\"");
+    private static final LatencyHistogram selectLatency = Metrics.histogram(STAGE_METRIC, STAGE_HELP, "stage=\"select\"");
     
-    public static void initializeModel() {
-        diseaseSymptomWeights = new HashMap<>();
-        diseaseRecommendations = new HashMap<>();
+    static {
+        Metrics.counter("diagnosis_cache_hits_total", "Predictions served from the result cache.", "", () -> cache.hits());
+        Metrics.counter("diagnosis_cache_misses_total", "Predictions that had to be scored.", "", () -> cache.misses());
+        Metrics.counter("diagnosis_cache_evictions_total", "Cached predictions evicted by size.", "", () -> cache.evictions());
+        Metrics.gauge("diagnosis_cache_entries", "Predictions currently cached.", "", () -> cache.size());
+    }
+    
+    /**
+     * Loads the model named by the {@code diagnosis.model} system property
+     * (a .bin, .json or .csv file), or the built-in model when it is unset. With
+     * {@code diagnosis.model.watch=true} the file is reloaded whenever it changes.
+     */
+    public static void initializeModel() throws IOException {
+        String path = System.getProperty("diagnosis.model");
+        modelPath = path != null ? Paths.get(path) : null;
+        reloadModel();
+        if (modelPath != null && Boolean.getBoolean("diagnosis.model.watch")) {
+            ModelFileWatcher.start(modelPath);
+        }
+    }
+    
+    /**
+     * Builds a fresh immutable model and publishes it with a single volatile
+     * write. In-flight predictions keep using the snapshot they started with;
+     * if loading fails the current model stays in place.
+     */
+    public static synchronized CompiledDiseaseModel reloadModel() throws IOException {
+        Path path = modelPath;
+        CompiledDiseaseModel loaded = path != null ? DiseaseModelLoader.load(path) : builtInModel();
+        model = loaded;
+        cache.clear();
+        System.out.println("AI Model initialized with " + loaded.diseaseCount + " diseases, "
+            + loaded.symptomCount + " symptoms from " + (path != null ? path : "built-in defaults"));
+        return loaded;
+    }
+    
+    public static CompiledDiseaseModel getModel() {
+        return model;
+    }
+    
+    public static Path getModelPath() {
+        return modelPath;
+    }
+    
+    static CompiledDiseaseModel builtInModel() {
+        Map<String, Map<String, Double>> diseaseSymptomWeights = new HashMap<>();
+        Map<String, List<String>> diseaseRecommendations = new HashMap<>();
+        Map<String, Double> ageRiskMultipliers = new HashMap<>();
+        Map<String, Map<String, Double>> historyModifiers = new LinkedHashMap<>();
+        Map<String, String> symptomSynonyms = new LinkedHashMap<>();
         
         Map<String, Double> coldWeights = new HashMap<>();
         coldWeights.put("runny nose", 0.9);
@@ -210,178 +467,8079 @@ class DiseasePredictor {
             "Reduce stress and avoid alcohol"
         ));
         
-        System.out.println("AI Model initialized with " + diseaseSymptomWeights.size() + " diseases");
+        ageRiskMultipliers.put("Hypertension", 1.2);
+        ageRiskMultipliers.put("Type 2 Diabetes", 1.2);
+        
+        Map<String, Double> diabetesHistory = new HashMap<>();
+        diabetesHistory.put("Type 2 Diabetes", 1.3);
+        historyModifiers.put("diabetes", diabetesHistory);
+        
+        Map<String, Double> heartHistory = new HashMap<>();
+        heartHistory.put("Hypertension", 1.3);
+        historyModifiers.put("heart", heartHistory);
+        
+        symptomSynonyms.put("rhinorrhea", "runny nose");
+        symptomSynonyms.put("pyrexia", "fever");
+        symptomSynonyms.put("cephalalgia", "headache");
+        symptomSynonyms.put("dyspnea", "shortness of breath");
+        symptomSynonyms.put("dyspnoea", "shortness of breath");
+        symptomSynonyms.put("breathlessness", "shortness of breath");
+        symptomSynonyms.put("tiredness", "fatigue");
+        symptomSynonyms.put("myalgia", "body aches");
+        symptomSynonyms.put("muscle aches", "body aches");
+        symptomSynonyms.put("anosmia", "loss of smell");
+        symptomSynonyms.put("ageusia", "loss of taste");
+        symptomSynonyms.put("photophobia", "sensitivity to light");
+        symptomSynonyms.put("phonophobia", "sensitivity to sound");
+        symptomSynonyms.put("polydipsia", "increased thirst");
+        symptomSynonyms.put("polyuria", "frequent urination");
+        symptomSynonyms.put("epistaxis", "nosebleeds");
+        symptomSynonyms.put("nosebleed", "nosebleeds");
+        symptomSynonyms.put("emesis", "vomiting");
+        symptomSynonyms.put("throwing up", "vomiting");
+        symptomSynonyms.put("dyspepsia", "indigestion");
+        symptomSynonyms.put("heartburn", "indigestion");
+        symptomSynonyms.put("abdominal pain", "stomach pain");
+        
+        return CompiledDiseaseModel.compile(diseaseSymptomWeights, diseaseRecommendations,
+            ageRiskMultipliers, historyModifiers, symptomSynonyms);
     }
     
     public static List<DiagnosisResult> predict(List<String> symptoms, int age, String medicalHistory) {
-        List<DiagnosisResult> results = new ArrayList<>();
+        return predict(symptoms, age, medicalHistory, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Scores only the diseases that share at least one symptom with the request
+     * and returns the {@code limit} most probable ones, highest first. Input
+     * symptoms go through the model's {@link SymptomCanonicalizer}, so synonyms,
+     * punctuation variants and small typos still match. Ties keep the model's
+     * disease order. Symptoms are scored in canonical (sorted ID)
+     * order so that the result depends only on the cache key; the returned list
+     * may be shared and must not be modified.
+     */
+    public static List<DiagnosisResult> predict(List<String> symptoms, int age, String medicalHistory, int limit) {
+        return predict(model, symptoms, age, medicalHistory, limit);
+    }
+    
+    /** Predicts with {@code m} rather than the published model, for comparing models offline. */
+    static List<DiagnosisResult> predict(CompiledDiseaseModel m, List<String> symptoms, int age, String medicalHistory,
+                                         int limit) {
+        boolean timed = Metrics.samplePredict();
+        long start = timed ? System.nanoTime() : 0L;
         
-        List<String> normalizedSymptoms = new ArrayList<>();
+        int[] symptomIds = new int[symptoms.size()];
+        int symptomCount = 0;
         for (String symptom : symptoms) {
-            normalizedSymptoms.add(symptom.toLowerCase().trim());
+            int id = m.canonicalizer.resolve(symptom);
+            if (id >= 0) {
+                symptomIds[symptomCount++] = id;
+            }
+        }
+        if (symptomCount == 0 || limit <= 0) {
+            if (timed) {
+                predictLatency.record(System.nanoTime() - start);
+            }
+            return new ArrayList<>();
         }
+        Arrays.sort(symptomIds, 0, symptomCount);
         
-        for (Map.Entry<String, Map<String, Double>> disease : diseaseSymptomWeights.entrySet()) {
-            String diseaseName = disease.getKey();
-            Map<String, Double> weights = disease.getValue();
-            
-            double score = 0.0;
-            int matchCount = 0;
-            
-            for (String symptom : normalizedSymptoms) {
-                if (weights.containsKey(symptom)) {
-                    score += weights.get(symptom);
-                    matchCount++;
+        int historyFlags = medicalHistory != null ? m.historyMatcher.match(medicalHistory) : 0;
+        boolean elderly = age > CompiledDiseaseModel.ELDERLY_AGE;
+        
+        DiagnosisCacheKey key = new DiagnosisCacheKey(m, symptomIds, symptomCount, elderly, historyFlags, limit);
+        if (timed) {
+            normalizeLatency.record(System.nanoTime() - start);
+        }
+        List<DiagnosisResult> results = cache.get(key);
+        if (results == null) {
+            results = Collections.unmodifiableList(score(m, symptomIds, symptomCount, elderly, historyFlags, limit, timed));
+            cache.put(key, results);
+        }
+        if (timed) {
+            predictLatency.record(System.nanoTime() - start);
+        }
+        return results;
+    }
+    
+    public static LruCache<DiagnosisCacheKey, List<DiagnosisResult>> getCache() {
+        return cache;
+    }
+    
+    private static List<DiagnosisResult> score(CompiledDiseaseModel m, int[] symptomIds, int symptomCount,
+                                               boolean elderly, int historyFlags, int limit, boolean timed) {
+        long start = timed ? System.nanoTime() : 0L;
+        CompiledDiseaseModel.Scratch scratch = m.scratch();
+        double[] scores = scratch.scores;
+        int[] matches = scratch.matches;
+        int[] touched = scratch.touched;
+        int touchedCount = 0;
+        
+        for (int i = 0; i < symptomCount; i++) {
+            int s = symptomIds[i];
+            for (int p = m.postingOffsets[s], end = m.postingOffsets[s + 1]; p < end; p++) {
+                int d = m.postingDiseases[p];
+                if (matches[d]++ == 0) {
+                    touched[touchedCount++] = d;
                 }
+                scores[d] += m.postingWeights[p];
             }
+        }
+        
+        long scored = 0L;
+        if (timed) {
+            scored = System.nanoTime();
+            scoreLatency.record(scored - start);
+        }
+        
+        int diseaseCount = m.diseaseCount;
+        TopK top = new TopK(scratch.heapProbabilities, scratch.heapDiseases, Math.min(limit, touchedCount));
+        for (int t = 0; t < touchedCount; t++) {
+            int d = touched[t];
+            double score = scores[d];
+            scores[d] = 0.0;
+            matches[d] = 0;
             
-            if (age > 60 && (diseaseName.equals("Hypertension") || diseaseName.equals("Type 2 Diabetes"))) {
-                score *= 1.2;
+            if (elderly) {
+                score *= m.ageMultipliers[d];
             }
-            
-            if (medicalHistory != null && !medicalHistory.isEmpty()) {
-                if (medicalHistory.toLowerCase().contains("diabetes") && diseaseName.equals("Type 2 Diabetes")) {
-                    score *= 1.3;
-                }
-                if (medicalHistory.toLowerCase().contains("heart") && diseaseName.equals("Hypertension")) {
-                    score *= 1.3;
+            for (int flags = historyFlags, k = 0; flags != 0; flags >>>= 1, k++) {
+                if ((flags & 1) != 0) {
+                    score *= m.historyMultipliers[k * diseaseCount + d];
                 }
             }
             
-            if (matchCount > 0) {
-                double probability = Math.min(score / weights.size() * 100, 99.0);
-                
-                String severity = "Low";
-                if (probability > 70) severity = "High";
-                else if (probability > 50) severity = "Moderate";
-                
-                DiagnosisResult result = new DiagnosisResult(diseaseName, probability, severity);
-                result.setRecommendations(diseaseRecommendations.get(diseaseName));
-                results.add(result);
-            }
+            top.offer(Math.min(score / m.symptomsPerDisease[d] * 100, 99.0), d);
         }
         
-        results.sort((a, b) -> Double.compare(b.getProbability(), a.getProbability()));
-        return results;
+        DiagnosisResult[] ranked = new DiagnosisResult[top.size()];
+        for (int i = ranked.length - 1; i >= 0; i--) {
+            int d = top.peekDisease();
+            double probability = top.poll();
+            
+            String severity = "Low";
+            if (probability > 70) severity = "High";
+            else if (probability > 50) severity = "Moderate";
+            
+            DiagnosisResult result = new DiagnosisResult(m.diseaseNames[d], probability, severity);
+            result.setRecommendations(m.recommendations.get(d));
+            ranked[i] = result;
+        }
+        if (timed) {
+            selectLatency.record(System.nanoTime() - scored);
+        }
+        return Arrays.asList(ranked);
     }
 }
 
-class PatientDB {
-    private static Map<Integer, Patient> patients = new ConcurrentHashMap<>();
-    private static int idCounter = 1;
+/**
+ * Identifies a prediction by everything that can change its outcome: the model
+ * instance, the sorted multiset of resolved symptom IDs, whether the elderly
+ * multipliers apply, the matched history keywords and the result limit.
+ */
+final class DiagnosisCacheKey {
+    private final CompiledDiseaseModel model;
+    private final int[] symptomIds;
+    private final boolean elderly;
+    private final int historyFlags;
+    private final int limit;
+    private final int hash;
     
-    static {
-        Patient p1 = new Patient();
-        p1.setId(1);
-        p1.setName("John Smith");
-        p1.setAge(45);
-        p1.setGender("Male");
-        p1.setBloodGroup("O+");
-        p1.setMedicalHistory("History of hypertension");
-        p1.setSymptoms(Arrays.asList("headache", "dizziness", "chest pain"));
-        p1.setDiagnosis("Hypertension");
-        p1.setConfidenceScore(78.5);
-        patients.put(1, p1);
-        idCounter = 2;
+    DiagnosisCacheKey(CompiledDiseaseModel model, int[] sortedSymptomIds, int symptomCount,
+                      boolean elderly, int historyFlags, int limit) {
+        this.model = model;
+        this.symptomIds = Arrays.copyOf(sortedSymptomIds, symptomCount);
+        this.elderly = elderly;
+        this.historyFlags = historyFlags;
+        this.limit = limit;
+        int h = System.identityHashCode(model);
+        h = 31 * h + Arrays.hashCode(symptomIds);
+        h = 31 * h + (elderly ? 1 : 0);
+        h = 31 * h + historyFlags;
+        this.hash = 31 * h + limit;
     }
     
-    public static List<Patient> getAllPatients() {
-        return new ArrayList<>(patients.values());
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DiagnosisCacheKey)) return false;
+        DiagnosisCacheKey other = (DiagnosisCacheKey) o;
+        return hash == other.hash && model == other.model && elderly == other.elderly
+            && historyFlags == other.historyFlags && limit == other.limit
+            && Arrays.equals(symptomIds, other.symptomIds);
     }
     
-    public static Patient getPatient(int id) {
-        return patients.get(id);
+    @Override
+    public int hashCode() {
+        return hash;
     }
+}
+
+/**
+ * Bounded, concurrent LRU cache. Entries are spread over independently locked
+ * access-ordered segments, each evicting its own least recently used entry once
+ * full, with an optional time-to-live. A non-positive size disables caching.
+ */
+final class LruCache<K, V> {
+    private static final int SEGMENTS = 16;
     
-    public static Patient addPatient(Patient patient) {
-        patient.setId(idCounter++);
-        patients.put(patient.getId(), patient);
-        return patient;
+    private final Segment<K, V>[] segments;
+    private final long ttlNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    LruCache(int maxSize, long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(ttlMillis, 0L));
+        if (maxSize <= 0) {
+            this.segments = null;
+            return;
+        }
+        int perSegment = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>(perSegment, evictions);
+        }
     }
     
-    public static boolean deletePatient(int id) {
-        return patients.remove(id) != null;
+    V get(K key) {
+        if (segments == null) {
+            misses.increment();
+            return null;
+        }
+        Segment<K, V> segment = segmentFor(key);
+        CachedValue<V> entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if (entry != null && ttlNanos > 0 && System.nanoTime() - entry.createdNanos > ttlNanos) {
+                segment.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
     }
-}
-
-class PatientServlet extends HttpServlet {
-    private Gson gson = new Gson();
     
-    @Override
-    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-        resp.setContentType("application/json");
-        resp.setCharacterEncoding("UTF-8");
-        
-        String pathInfo = req.getPathInfo();
-        
-        if (pathInfo == null || pathInfo.equals("/")) {
-            List<Patient> patients = PatientDB.getAllPatients();
-            resp.getWriter().write(gson.toJson(patients));
-        } else {
-            try {
-                int id = Integer.parseInt(pathInfo.substring(1));
-                Patient patient = PatientDB.getPatient(id);
-                if (patient != null) {
-                    resp.getWriter().write(gson.toJson(patient));
-                } else {
-                    resp.setStatus(404);
+    void put(K key, V value) {
+        if (segments == null) {
+            return;
+        }
+        Segment<K, V> segment = segmentFor(key);
+        CachedValue<V> entry = new CachedValue<>(value, ttlNanos > 0 ? System.nanoTime() : 0L);
+        synchronized (segment) {
+            segment.put(key, entry);
+        }
+    }
+    
+    void clear() {
+        if (segments == null) {
+            return;
+        }
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+    
+    int size() {
+        int size = 0;
+        if (segments != null) {
+            for (Segment<K, V> segment : segments) {
+                synchronized (segment) {
+                    size += segment.size();
                 }
-            } catch (NumberFormatException e) {
-                resp.setStatus(400);
             }
         }
+        return size;
     }
     
-    @Override
-    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-        resp.setContentType("application/json");
-        resp.setCharacterEncoding("UTF-8");
+    long hits() { return hits.sum(); }
+    long misses() { return misses.sum(); }
+    long evictions() { return evictions.sum(); }
+    
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+    
+    private static final class CachedValue<V> {
+        final V value;
+        final long createdNanos;
         
-        Patient patient = gson.fromJson(req.getReader(), Patient.class);
-        Patient created = PatientDB.addPatient(patient);
-        resp.setStatus(201);
-        resp.getWriter().write(gson.toJson(created));
+        CachedValue(V value, long createdNanos) {
+            this.value = value;
+            this.createdNanos = createdNanos;
+        }
     }
     
-    @Override
-    protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-        String pathInfo = req.getPathInfo();
-        if (pathInfo != null && !pathInfo.equals("/")) {
-            try {
-                int id = Integer.parseInt(pathInfo.substring(1));
-                PatientDB.deletePatient(id);
-                resp.setStatus(200);
-            } catch (NumberFormatException e) {
-                resp.setStatus(400);
+    private static final class Segment<K, V> extends LinkedHashMap<K, CachedValue<V>> {
+        private final int capacity;
+        private final LongAdder evictions;
+        
+        Segment(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
             }
+            return false;
         }
     }
 }
 
-class DiagnosisServlet extends HttpServlet {
-    private Gson gson = new Gson();
+/**
+ * Bounded min-heap over (probability, disease) pairs backed by caller-owned
+ * arrays. The root is always the weakest retained entry, so offering n
+ * candidates costs O(n log k). Lower disease IDs win ties.
+ */
+final class TopK {
+    private final double[] probabilities;
+    private final int[] diseases;
+    private final int capacity;
+    private int size;
     
-    @Override
-    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-        resp.setContentType("application/json");
-        resp.setCharacterEncoding("UTF-8");
+    TopK(double[] probabilities, int[] diseases, int capacity) {
+        this.probabilities = probabilities;
+        this.diseases = diseases;
+        this.capacity = capacity;
+    }
+    
+    int size() {
+        return size;
+    }
+    
+    void offer(double probability, int disease) {
+        if (size < capacity) {
+            int i = size++;
+            probabilities[i] = probability;
+            diseases[i] = disease;
+            siftUp(i);
+        } else if (capacity > 0 && weaker(0, probability, disease)) {
+            probabilities[0] = probability;
+            diseases[0] = disease;
+            siftDown(0);
+        }
+    }
+    
+    int peekDisease() {
+        return diseases[0];
+    }
+    
+    double poll() {
+        double probability = probabilities[0];
+        size--;
+        if (size > 0) {
+            probabilities[0] = probabilities[size];
+            diseases[0] = diseases[size];
+            siftDown(0);
+        }
+        return probability;
+    }
+    
+    private boolean weaker(int i, double probability, int disease) {
+        int c = Double.compare(probabilities[i], probability);
+        return c < 0 || (c == 0 && diseases[i] > disease);
+    }
+    
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!weaker(i, probabilities[parent], diseases[parent])) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+    
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                break;
+            }
+            int weakest = left;
+            int right = left + 1;
+            if (right < size && weaker(right, probabilities[left], diseases[left])) {
+                weakest = right;
+            }
+            if (!weaker(weakest, probabilities[i], diseases[i])) {
+                break;
+            }
+            swap(i, weakest);
+            i = weakest;
+        }
+    }
+    
+    private void swap(int i, int j) {
+        double p = probabilities[i];
+        probabilities[i] = probabilities[j];
+        probabilities[j] = p;
+        int d = diseases[i];
+        diseases[i] = diseases[j];
+        diseases[j] = d;
+    }
+}
+
+/**
+ * Immutable, array-backed form of the disease model. Symptoms are interned to
+ * dense int IDs and weights are kept as an inverted index: the postings for
+ * symptom {@code s} are {@code postingDiseases/postingWeights[postingOffsets[s]
+ * .. postingOffsets[s + 1])}, sorted by disease ID. Scoring a request therefore
+ * only touches diseases that share a symptom with it.
+ */
+final class CompiledDiseaseModel {
+    static final int ELDERLY_AGE = 60;
+    
+    final int diseaseCount;
+    final int symptomCount;
+    final String[] diseaseNames;
+    final List<List<String>> recommendations;
+    final int[] postingOffsets;
+    final int[] postingDiseases;
+    final double[] postingWeights;
+    final int[] symptomsPerDisease;
+    final double[] ageMultipliers;
+    final String[] historyKeywords;
+    final double[] historyMultipliers;
+    final HistoryMatcher historyMatcher;
+    final String[] synonymAliases;
+    final int[] synonymTargets;
+    final SymptomCanonicalizer canonicalizer;
+    private final Map<String, Integer> symptomIds;
+    private final ThreadLocal<Scratch> scratch;
+    
+    static final class Scratch {
+        final double[] scores;
+        final int[] matches;
+        final int[] touched;
+        final double[] heapProbabilities;
+        final int[] heapDiseases;
         
-        Patient patient = gson.fromJson(req.getReader(), Patient.class);
-        List<DiagnosisResult> results = DiseasePredictor.predict(
-            patient.getSymptoms(), 
-            patient.getAge(), 
-            patient.getMedicalHistory()
-        );
+        Scratch(int diseaseCount) {
+            this.scores = new double[diseaseCount];
+            this.matches = new int[diseaseCount];
+            this.touched = new int[diseaseCount];
+            this.heapProbabilities = new double[diseaseCount];
+            this.heapDiseases = new int[diseaseCount];
+        }
+    }
+    
+    CompiledDiseaseModel(String[] diseaseNames, List<List<String>> recommendations,
+                         Map<String, Integer> symptomIds, int[] postingOffsets, int[] postingDiseases,
+                         double[] postingWeights, int[] symptomsPerDisease, double[] ageMultipliers,
+                         String[] historyKeywords, double[] historyMultipliers,
+                         String[] synonymAliases, int[] synonymTargets) {
+        this.diseaseCount = diseaseNames.length;
+        this.symptomCount = symptomIds.size();
+        this.diseaseNames = diseaseNames;
+        this.recommendations = recommendations;
+        this.symptomIds = symptomIds;
+        this.postingOffsets = postingOffsets;
+        this.postingDiseases = postingDiseases;
+        this.postingWeights = postingWeights;
+        this.symptomsPerDisease = symptomsPerDisease;
+        this.ageMultipliers = ageMultipliers;
+        this.historyKeywords = historyKeywords;
+        this.historyMultipliers = historyMultipliers;
+        this.historyMatcher = new HistoryMatcher(historyKeywords);
+        this.synonymAliases = synonymAliases;
+        this.synonymTargets = synonymTargets;
+        this.canonicalizer = new SymptomCanonicalizer(symptomNames(), postingOffsets, synonymAliases, synonymTargets);
+        final int size = diseaseCount;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(size));
+    }
+    
+    static CompiledDiseaseModel compile(Map<String, Map<String, Double>> diseaseSymptomWeights,
+                                        Map<String, List<String>> diseaseRecommendations,
+                                        Map<String, Double> ageRiskMultipliers,
+                                        Map<String, Map<String, Double>> historyModifiers,
+                                        Map<String, String> symptomSynonyms) {
+        int diseaseCount = diseaseSymptomWeights.size();
+        String[] diseaseNames = new String[diseaseCount];
+        List<List<String>> recommendations = new ArrayList<>(diseaseCount);
+        int[] symptomsPerDisease = new int[diseaseCount];
+        double[] ageMultipliers = new double[diseaseCount];
+        Map<String, Integer> symptomIds = new HashMap<>();
+        int[] postingCounts = new int[16];
         
-        resp.getWriter().write(gson.toJson(results));
+        int d = 0;
+        for (Map.Entry<String, Map<String, Double>> disease : diseaseSymptomWeights.entrySet()) {
+            diseaseNames[d] = disease.getKey();
+            List<String> recs = diseaseRecommendations.get(disease.getKey());
+            recommendations.add(recs != null ? recs : Collections.<String>emptyList());
+            symptomsPerDisease[d] = disease.getValue().size();
+            ageMultipliers[d] = ageRiskMultipliers.getOrDefault(disease.getKey(), 1.0);
+            for (String symptom : disease.getValue().keySet()) {
+                String key = symptom.toLowerCase().trim();
+                Integer id = symptomIds.get(key);
+                if (id == null) {
+                    id = symptomIds.size();
+                    symptomIds.put(key, id);
+                    if (id == postingCounts.length) {
+                        postingCounts = Arrays.copyOf(postingCounts, id * 2);
+                    }
+                }
+                postingCounts[id]++;
+            }
+            d++;
+        }
+        
+        int symptomCount = symptomIds.size();
+        int[] postingOffsets = new int[symptomCount + 1];
+        for (int s = 0; s < symptomCount; s++) {
+            postingOffsets[s + 1] = postingOffsets[s] + postingCounts[s];
+        }
+        int[] postingDiseases = new int[postingOffsets[symptomCount]];
+        double[] postingWeights = new double[postingDiseases.length];
+        int[] cursor = Arrays.copyOf(postingOffsets, symptomCount);
+        d = 0;
+        for (Map<String, Double> diseaseWeights : diseaseSymptomWeights.values()) {
+            for (Map.Entry<String, Double> w : diseaseWeights.entrySet()) {
+                int p = cursor[symptomIds.get(w.getKey().toLowerCase().trim())]++;
+                postingDiseases[p] = d;
+                postingWeights[p] = w.getValue();
+            }
+            d++;
+        }
+        
+        if (historyModifiers.size() > Integer.SIZE) {
+            throw new IllegalArgumentException("At most " + Integer.SIZE + " history modifiers are supported");
+        }
+        String[] historyKeywords = new String[historyModifiers.size()];
+        double[] historyMultipliers = new double[historyKeywords.length * diseaseCount];
+        Arrays.fill(historyMultipliers, 1.0);
+        int k = 0;
+        for (Map.Entry<String, Map<String, Double>> modifier : historyModifiers.entrySet()) {
+            historyKeywords[k] = modifier.getKey().toLowerCase();
+            for (d = 0; d < diseaseCount; d++) {
+                Double multiplier = modifier.getValue().get(diseaseNames[d]);
+                if (multiplier != null) {
+                    historyMultipliers[k * diseaseCount + d] = multiplier;
+                }
+            }
+            k++;
+        }
+        
+        String[] synonymAliases = new String[symptomSynonyms.size()];
+        int[] synonymTargets = new int[synonymAliases.length];
+        int n = 0;
+        for (Map.Entry<String, String> synonym : symptomSynonyms.entrySet()) {
+            Integer target = symptomIds.get(synonym.getValue().toLowerCase().trim());
+            if (target == null) {
+                throw new IllegalArgumentException("Synonym '" + synonym.getKey() + "' refers to unknown symptom '"
+                    + synonym.getValue() + "'");
+            }
+            synonymAliases[n] = synonym.getKey();
+            synonymTargets[n++] = target;
+        }
+        
+        return new CompiledDiseaseModel(diseaseNames, recommendations, symptomIds, postingOffsets,
+            postingDiseases, postingWeights, symptomsPerDisease, ageMultipliers, historyKeywords,
+            historyMultipliers, synonymAliases, synonymTargets);
+    }
+    
+    String[] symptomNames() {
+        String[] names = new String[symptomCount];
+        for (Map.Entry<String, Integer> e : symptomIds.entrySet()) {
+            names[e.getValue()] = e.getKey();
+        }
+        return names;
+    }
+    
+    int symptomId(String normalizedSymptom) {
+        Integer id = symptomIds.get(normalizedSymptom);
+        return id != null ? id : -1;
+    }
+    
+    Scratch scratch() {
+        return scratch.get();
     }
 }
 
-class HomeServlet extends HttpServlet {
-    @Override
-    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-        resp.setContentType("text/html");
-        PrintWriter out = resp.getWriter();
+/**
+ * Finds the model's history keywords in free-text medical history with one
+ * Aho-Corasick pass, so the cost is linear in the text length whatever the
+ * number of keywords. A keyword counts only as a whole word or phrase, and
+ * not when a negation cue ("no", "denies", "negative for", ...) precedes it
+ * within {@link #NEGATION_WINDOW} words of the same clause, as in
+ * "no history of diabetes". Clauses end at sentence punctuation or at words
+ * like "but". Matching is case-insensitive, char by char, and allocates
+ * nothing.
+ *
+ * <p>The automaton is a full transition table over the characters that occur
+ * in the patterns; every other character maps to class 0, which always leads
+ * back to the root.
+ */
+final class HistoryMatcher {
+    static final int NEGATION_WINDOW = 5;
+    private static final String[] NEGATIONS = {"no", "not", "denies", "denied", "deny", "without", "never",
+        "negative for", "free of", "absence of", "ruled out", "rules out"};
+    private static final String[] TERMINATORS = {"but", "however", "although", "except", "though"};
+    
+    private final int keywordCount;
+    private final int negationEnd;
+    private final int[] patternLengths;
+    private final int[] patternWords;
+    private static final byte WORD = 1;
+    private static final byte CLAUSE_END = 2;
+    private static final byte[] ASCII_KINDS = new byte[128];
+    
+    static {
+        for (char c = 0; c < 128; c++) {
+            ASCII_KINDS[c] = Character.isLetterOrDigit(c) ? WORD : ".;:!?\n".indexOf(c) >= 0 ? CLAUSE_END : 0;
+        }
+    }
+    
+    /** Class of each ASCII char, upper case folded onto lower case. */
+    private final int[] asciiClasses = new int[128];
+    private final char[] otherChars;
+    private final int[] otherClasses;
+    private final int stride;
+    private final int[] delta;
+    private final int[] outputOffsets;
+    private final int[] outputs;
+    
+    HistoryMatcher(String[] keywords) {
+        keywordCount = keywords.length;
+        negationEnd = keywordCount + NEGATIONS.length;
+        List<String> patterns = new ArrayList<>(negationEnd + TERMINATORS.length);
+        for (String keyword : keywords) {
+            patterns.add(lowerCase(keyword.trim()));
+        }
+        patterns.addAll(Arrays.asList(NEGATIONS));
+        patterns.addAll(Arrays.asList(TERMINATORS));
+        
+        patternLengths = new int[patterns.size()];
+        patternWords = new int[patterns.size()];
+        TreeMap<Character, Integer> classes = new TreeMap<>();
+        for (int p = 0; p < patterns.size(); p++) {
+            String pattern = patterns.get(p);
+            patternLengths[p] = pattern.length();
+            boolean inWord = false;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                boolean wordChar = Character.isLetterOrDigit(c);
+                if (wordChar && !inWord) {
+                    patternWords[p]++;
+                }
+                inWord = wordChar;
+                if (!classes.containsKey(c)) {
+                    classes.put(c, classes.size() + 1);
+                }
+            }
+        }
+        List<Character> others = new ArrayList<>();
+        for (Map.Entry<Character, Integer> e : classes.entrySet()) {
+            if (e.getKey() < 128) {
+                asciiClasses[e.getKey()] = e.getValue();
+                asciiClasses[Character.toUpperCase(e.getKey())] = e.getValue();
+            } else {
+                others.add(e.getKey());
+            }
+        }
+        otherChars = new char[others.size()];
+        otherClasses = new int[others.size()];
+        for (int i = 0; i < otherChars.length; i++) {
+            otherChars[i] = others.get(i);
+            otherClasses[i] = classes.get(otherChars[i]);
+        }
+        stride = classes.size() + 1;
+        
+        // Trie: goto[state * stride + class], 0 meaning no edge (the root is never a target).
+        int maxStates = 1;
+        for (int length : patternLengths) {
+            maxStates += length;
+        }
+        int[] trie = new int[maxStates * stride];
+        List<List<Integer>> terminal = new ArrayList<>();
+        terminal.add(new ArrayList<>());
+        for (int p = 0; p < patterns.size(); p++) {
+            String pattern = patterns.get(p);
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                int edge = state * stride + classOf(pattern.charAt(i));
+                if (trie[edge] == 0) {
+                    trie[edge] = terminal.size();
+                    terminal.add(new ArrayList<>());
+                }
+                state = trie[edge];
+            }
+            terminal.get(state).add(p);
+        }
+        int states = terminal.size();
+        
+        // Breadth-first: resolve failure links into a full DFA and collect
+        // each state's outputs, including those of its failure chain.
+        delta = Arrays.copyOf(trie, states * stride);
+        int[] fail = new int[states];
+        List<List<Integer>> matches = new ArrayList<>(terminal);
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < stride; c++) {
+            if (delta[c] != 0) {
+                queue[tail++] = delta[c];
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            if (!matches.get(fail[state]).isEmpty()) {
+                List<Integer> merged = new ArrayList<>(matches.get(state));
+                merged.addAll(matches.get(fail[state]));
+                matches.set(state, merged);
+            }
+            for (int c = 0; c < stride; c++) {
+                int edge = state * stride + c;
+                int fallback = delta[fail[state] * stride + c];
+                if (delta[edge] != 0) {
+                    fail[delta[edge]] = fallback;
+                    queue[tail++] = delta[edge];
+                } else {
+                    delta[edge] = fallback;
+                }
+            }
+        }
+        
+        outputOffsets = new int[states + 1];
+        for (int s = 0; s < states; s++) {
+            outputOffsets[s + 1] = outputOffsets[s] + matches.get(s).size();
+        }
+        outputs = new int[outputOffsets[states]];
+        for (int s = 0; s < states; s++) {
+            for (int i = 0; i < matches.get(s).size(); i++) {
+                outputs[outputOffsets[s] + i] = matches.get(s).get(i);
+            }
+        }
+    }
+    
+    /** Returns the bitset of keywords (by index) that occur un-negated in {@code text}. */
+    int match(String text) {
+        int flags = 0;
+        int state = 0;
+        int word = 0;
+        int negatedThrough = 0;
+        boolean inWord = false;
+        int n = text.length();
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            int cls;
+            boolean wordChar;
+            if (c < 128) {
+                cls = asciiClasses[c];
+                wordChar = (ASCII_KINDS[c] & WORD) != 0;
+                if ((ASCII_KINDS[c] & CLAUSE_END) != 0) {
+                    negatedThrough = 0;
+                }
+            } else {
+                c = Character.toLowerCase(c);
+                cls = classOf(c);
+                wordChar = Character.isLetterOrDigit(c);
+            }
+            if (wordChar && !inWord) {
+                word++;
+            }
+            inWord = wordChar;
+            
+            state = delta[state * stride + cls];
+            for (int o = outputOffsets[state], end = outputOffsets[state + 1]; o < end; o++) {
+                int p = outputs[o];
+                int start = i - patternLengths[p] + 1;
+                if ((start > 0 && Character.isLetterOrDigit(text.charAt(start - 1)))
+                        || (i + 1 < n && Character.isLetterOrDigit(text.charAt(i + 1)))) {
+                    continue;
+                }
+                if (p < keywordCount) {
+                    if (word - patternWords[p] + 1 > negatedThrough) {
+                        flags |= 1 << p;
+                    }
+                } else if (p < negationEnd) {
+                    negatedThrough = word + NEGATION_WINDOW;
+                } else {
+                    negatedThrough = 0;
+                }
+            }
+        }
+        return flags;
+    }
+    
+    private int classOf(char c) {
+        if (c < 128) {
+            return asciiClasses[c];
+        }
+        int i = Arrays.binarySearch(otherChars, c);
+        return i >= 0 ? otherClasses[i] : 0;
+    }
+    
+    private static String lowerCase(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+}
+
+/**
+ * Maps free-text symptoms to model symptom IDs. Input is normalized
+ * (lower case, punctuation and repeated spaces folded to one space, so
+ * "Runny-nose" and "runny  nose" agree), then looked up in a hash of
+ * canonical names and synonyms; failing that, the closest term within a small
+ * edit distance (Damerau-Levenshtein, so a transposition costs one) is
+ * taken from a BK-tree. Resolved strings are memoized in a concurrent map
+ * that is dropped whenever it fills up.
+ *
+ * <p>Autocomplete uses a sorted array of every term and every word-suffix of a
+ * term, which gives the same prefix ranges as a trie with a binary search
+ * and no per-node objects. A max segment tree over the entries' ranks then
+ * yields the best k entries of a range in O(k log n), however many terms
+ * share the prefix.
+ */
+final class SymptomCanonicalizer {
+    private static final int CACHE_LIMIT = 1 << 16;
+    
+    private final String[] names;
+    private final int[] popularity;
+    private final Map<String, Integer> exact = new HashMap<>();
+    private final String[] terms;
+    private final int[] termSymptoms;
+    private final int maxTermLength;
+    private final String[] prefixKeys;
+    private final int[] prefixTerms;
+    private final int[] prefixRanks;
+    private final int[] rankTree;
+    private final int leaves;
+    private final int[] childOffsets;
+    private final int[] childDistances;
+    private final int[] childNodes;
+    private final ConcurrentHashMap<String, Integer> resolved = new ConcurrentHashMap<>();
+    
+    SymptomCanonicalizer(String[] symptomNames, int[] postingOffsets, String[] synonymAliases, int[] synonymTargets) {
+        names = symptomNames;
+        popularity = new int[names.length];
+        for (int s = 0; s < names.length; s++) {
+            popularity[s] = postingOffsets[s + 1] - postingOffsets[s];
+            String key = normalize(names[s]);
+            if (!key.isEmpty()) {
+                exact.putIfAbsent(key, s);
+            }
+        }
+        for (int i = 0; i < synonymAliases.length; i++) {
+            String key = normalize(synonymAliases[i]);
+            Integer existing = exact.get(key);
+            if (existing != null && existing != synonymTargets[i]) {
+                throw new IllegalArgumentException("Synonym '" + synonymAliases[i] + "' conflicts with symptom '"
+                    + names[existing] + "'");
+            }
+            if (!key.isEmpty()) {
+                exact.put(key, synonymTargets[i]);
+            }
+        }
+        
+        terms = exact.keySet().toArray(new String[0]);
+        termSymptoms = new int[terms.length];
+        int longest = 0;
+        List<String[]> prefixes = new ArrayList<>();
+        for (int t = 0; t < terms.length; t++) {
+            String term = terms[t];
+            termSymptoms[t] = exact.get(term);
+            longest = Math.max(longest, term.length());
+            prefixes.add(new String[] {term, Integer.toString(t)});
+            for (int i = term.indexOf(' '); i >= 0; i = term.indexOf(' ', i + 1)) {
+                prefixes.add(new String[] {term.substring(i + 1), Integer.toString(t)});
+            }
+        }
+        maxTermLength = longest;
+        prefixes.sort((a, b) -> a[0].compareTo(b[0]));
+        prefixKeys = new String[prefixes.size()];
+        prefixTerms = new int[prefixes.size()];
+        prefixRanks = new int[prefixes.size()];
+        for (int i = 0; i < prefixKeys.length; i++) {
+            prefixKeys[i] = prefixes.get(i)[0];
+            int term = Integer.parseInt(prefixes.get(i)[1]);
+            prefixTerms[i] = term;
+            // Matches at the start of a term outrank matches on a later word.
+            boolean termStart = prefixKeys[i].length() == terms[term].length();
+            prefixRanks[i] = (termStart ? 1 << 30 : 0) + popularity[termSymptoms[term]];
+        }
+        leaves = Integer.highestOneBit(Math.max(1, prefixKeys.length) * 2 - 1);
+        rankTree = new int[leaves * 2];
+        Arrays.fill(rankTree, -1);
+        for (int i = 0; i < prefixKeys.length; i++) {
+            rankTree[leaves + i] = i;
+        }
+        for (int node = leaves - 1; node > 0; node--) {
+            rankTree[node] = better(rankTree[2 * node], rankTree[2 * node + 1]);
+        }
+        
+        // BK-tree rooted at term 0: each child edge is labelled with its distance to the parent.
+        List<TreeMap<Integer, Integer>> children = new ArrayList<>(terms.length);
+        DistanceScratch rows = new DistanceScratch(maxTermLength);
+        for (int t = 0; t < terms.length; t++) {
+            children.add(new TreeMap<>());
+            int node = 0;
+            while (t > 0) {
+                int d = distance(terms[t], terms[node], rows);
+                Integer child = children.get(node).get(d);
+                if (child == null) {
+                    children.get(node).put(d, t);
+                    break;
+                }
+                node = child;
+            }
+        }
+        childOffsets = new int[terms.length + 1];
+        childDistances = new int[Math.max(0, terms.length - 1)];
+        childNodes = new int[childDistances.length];
+        for (int t = 0, c = 0; t < terms.length; t++) {
+            for (Map.Entry<Integer, Integer> child : children.get(t).entrySet()) {
+                childDistances[c] = child.getKey();
+                childNodes[c++] = child.getValue();
+            }
+            childOffsets[t + 1] = c;
+        }
+    }
+    
+    /** Returns the symptom ID for {@code raw}, or -1 when nothing is close enough. */
+    int resolve(String raw) {
+        if (raw == null) {
+            return -1;
+        }
+        Integer cached = resolved.get(raw);
+        if (cached != null) {
+            return cached;
+        }
+        String key = normalize(raw);
+        Integer id = exact.get(key);
+        int result = id != null ? id : nearest(key);
+        if (resolved.size() >= CACHE_LIMIT) {
+            resolved.clear();
+        }
+        resolved.put(raw, result);
+        return result;
+    }
+    
+    /**
+     * Up to {@code limit} symptom names with a term or a word of a term
+     * starting with {@code query}. Matches at the start of a term rank first,
+     * then symptoms shared by more diseases. With no prefix match, the
+     * (memoized) typo correction for the whole query is offered instead.
+     */
+    List<String> suggest(String query, int limit) {
+        String key = normalize(query);
+        if (key.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int lo = 0;
+        int hi = prefixKeys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (prefixKeys[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int end = prefixKeys.length;
+        for (int from = lo; from < end; ) {
+            int mid = (from + end) >>> 1;
+            if (prefixKeys[mid].startsWith(key)) {
+                from = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        if (lo == end) {
+            int corrected = resolve(query);
+            return corrected >= 0 ? Collections.singletonList(names[corrected]) : Collections.<String>emptyList();
+        }
+        
+        // Best-first over subranges: pop the top entry of a range, then split
+        // the range around it. Ties go to the earlier (alphabetically lower) key.
+        PriorityQueue<int[]> ranges = new PriorityQueue<>((a, b) -> better(a[2], b[2]) == a[2] ? -1 : 1);
+        ranges.add(new int[] {lo, end, best(lo, end)});
+        Set<Integer> seen = new HashSet<>();
+        List<String> suggestions = new ArrayList<>(limit);
+        while (!ranges.isEmpty() && suggestions.size() < limit) {
+            int[] range = ranges.poll();
+            int top = range[2];
+            int symptom = termSymptoms[prefixTerms[top]];
+            if (seen.add(symptom)) {
+                suggestions.add(names[symptom]);
+            }
+            if (range[0] < top) {
+                ranges.add(new int[] {range[0], top, best(range[0], top)});
+            }
+            if (top + 1 < range[1]) {
+                ranges.add(new int[] {top + 1, range[1], best(top + 1, range[1])});
+            }
+        }
+        return suggestions;
+    }
+    
+    /** Index of the highest-ranked prefix entry in [from, to). */
+    private int best(int from, int to) {
+        int result = -1;
+        for (int l = from + leaves, r = to + leaves; l < r; l >>>= 1, r >>>= 1) {
+            if ((l & 1) == 1) {
+                result = better(result, rankTree[l++]);
+            }
+            if ((r & 1) == 1) {
+                result = better(result, rankTree[--r]);
+            }
+        }
+        return result;
+    }
+    
+    private int better(int a, int b) {
+        if (a < 0) return b;
+        if (b < 0) return a;
+        if (prefixRanks[a] != prefixRanks[b]) {
+            return prefixRanks[a] > prefixRanks[b] ? a : b;
+        }
+        return Math.min(a, b);
+    }
+    
+    /**
+     * Closest term within the typo budget for the query length: none below
+     * four characters, one edit up to seven, two beyond. Ties go to the
+     * symptom shared by more diseases, then the lower ID.
+     */
+    private int nearest(String key) {
+        int budget = key.length() < 4 ? 0 : key.length() <= 7 ? 1 : 2;
+        // The distance is at least the difference in length.
+        if (budget == 0 || terms.length == 0 || key.length() > maxTermLength + budget) {
+            return -1;
+        }
+        DistanceScratch rows = new DistanceScratch(maxTermLength);
+        int best = -1;
+        int bestDistance = budget + 1;
+        int[] stack = new int[terms.length];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            int d = distance(key, terms[node], rows);
+            int symptom = termSymptoms[node];
+            if (d < bestDistance || (d == bestDistance && best >= 0 && (popularity[symptom] > popularity[best]
+                    || (popularity[symptom] == popularity[best] && symptom < best)))) {
+                best = symptom;
+                bestDistance = d;
+            }
+            int bound = Math.min(budget, bestDistance);
+            for (int c = childOffsets[node]; c < childOffsets[node + 1]; c++) {
+                if (Math.abs(childDistances[c] - d) <= bound) {
+                    stack[top++] = childNodes[c];
+                }
+            }
+        }
+        return best;
+    }
+    
+    /**
+     * Matrix for {@link #distance} of a string of up to two characters more
+     * than the longest term against a term, per character of the term the
+     * last row it was matched in, and per column of the term the first column
+     * holding the same character.
+     */
+    private static final class DistanceScratch {
+        final int[][] d;
+        final int[] lastRow;
+        final int[] firstColumn;
+        
+        DistanceScratch(int maxTermLength) {
+            d = new int[maxTermLength + 4][maxTermLength + 2];
+            lastRow = new int[maxTermLength + 1];
+            firstColumn = new int[maxTermLength + 1];
+        }
+    }
+    
+    /**
+     * Damerau-Levenshtein distance with unrestricted transpositions (Lowrance
+     * and Wagner). Unlike optimal string alignment it satisfies the triangle
+     * inequality, which the BK-tree's pruning relies on. {@code b} must be a
+     * term and {@code a} at most two characters longer than the longest term.
+     */
+    private static int distance(String a, String b, DistanceScratch scratch) {
+        int n = a.length();
+        int m = b.length();
+        int infinity = n + m;
+        int[] lastRow = scratch.lastRow;
+        // Rows are tracked under the first column holding each character of b.
+        int[] firstColumn = scratch.firstColumn;
+        for (int j = 0; j < m; j++) {
+            firstColumn[j] = b.indexOf(b.charAt(j));
+        }
+        // d[i + 1][j + 1] is the distance between the first i characters of a and the first j of b.
+        int[][] d = scratch.d;
+        d[0][0] = infinity;
+        for (int i = 0; i <= n; i++) {
+            d[i + 1][0] = infinity;
+            d[i + 1][1] = i;
+        }
+        for (int j = 0; j <= m; j++) {
+            d[0][j + 1] = infinity;
+            d[1][j + 1] = j;
+            lastRow[j] = 0;
+        }
+        for (int i = 1; i <= n; i++) {
+            char ca = a.charAt(i - 1);
+            int lastMatchColumn = 0;
+            for (int j = 1; j <= m; j++) {
+                char cb = b.charAt(j - 1);
+                int k = lastRow[firstColumn[j - 1]];
+                int l = lastMatchColumn;
+                int cost = 1;
+                if (ca == cb) {
+                    cost = 0;
+                    lastMatchColumn = j;
+                }
+                int v = Math.min(Math.min(d[i][j + 1] + 1, d[i + 1][j] + 1), d[i][j] + cost);
+                d[i + 1][j + 1] = Math.min(v, d[k][l] + (i - k - 1) + 1 + (j - l - 1));
+            }
+            int column = b.indexOf(ca);
+            if (column >= 0) {
+                lastRow[column] = i;
+            }
+        }
+        return d[n + 1][m + 1];
+    }
+    
+    static String normalize(String raw) {
+        StringBuilder out = new StringBuilder(raw.length());
+        boolean space = false;
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (space && out.length() > 0) {
+                    out.append(' ');
+                }
+                space = false;
+                out.append(Character.toLowerCase(c));
+            } else if (c != '\'') {
+                space = true;
+            }
+        }
+        return out.toString();
+    }
+}
+
+/**
+ * Reads and writes disease models. JSON and CSV are the editable source
+ * formats; both are compiled into a {@link CompiledDiseaseModel}, which can be
+ * saved in a compact binary form and memory-mapped back at startup.
+ *
+ * <p>CSV rows are {@code type,disease,key,value} where type is one of
+ * {@code weight} (key = symptom), {@code recommendation} (key = text),
+ * {@code age} (value = multiplier for patients over 60), {@code history}
+ * (key = history keyword) or {@code synonym} (disease empty, key = alias,
+ * value = the symptom it stands for). Fields may be double-quoted.
+ */
+final class DiseaseModelLoader {
+    private static final int MAGIC = 0x4D44444D;
+    private static final int VERSION = 2;
+    
+    private DiseaseModelLoader() {}
+    
+    static CompiledDiseaseModel load(Path path) throws IOException {
+        String name = path.getFileName().toString().toLowerCase();
+        if (name.endsWith(".json")) return readJson(path);
+        if (name.endsWith(".csv")) return readCsv(path);
+        return readBinary(path);
+    }
+    
+    static class ModelDocument {
+        List<DiseaseDefinition> diseases;
+        Map<String, Map<String, Double>> historyModifiers;
+        Map<String, String> synonyms;
+    }
+    
+    static class DiseaseDefinition {
+        String name;
+        Map<String, Double> symptoms;
+        List<String> recommendations;
+        Double ageMultiplier;
+    }
+    
+    static CompiledDiseaseModel readJson(Path path) throws IOException {
+        ModelDocument doc;
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            doc = new Gson().fromJson(reader, ModelDocument.class);
+        } catch (JsonParseException e) {
+            throw new IOException("Invalid model file " + path + ": " + e.getMessage(), e);
+        }
+        if (doc == null || doc.diseases == null) {
+            throw new IOException("Model file " + path + " has no diseases");
+        }
+        
+        Map<String, Map<String, Double>> weights = new LinkedHashMap<>();
+        Map<String, List<String>> recommendations = new HashMap<>();
+        Map<String, Double> ageMultipliers = new HashMap<>();
+        for (DiseaseDefinition disease : doc.diseases) {
+            if (disease.name == null || disease.symptoms == null || disease.symptoms.isEmpty()) {
+                throw new IOException("Model file " + path + " has a disease without a name or symptoms");
+            }
+            weights.put(disease.name, disease.symptoms);
+            if (disease.recommendations != null) {
+                recommendations.put(disease.name, disease.recommendations);
+            }
+            if (disease.ageMultiplier != null) {
+                ageMultipliers.put(disease.name, disease.ageMultiplier);
+            }
+        }
+        Map<String, Map<String, Double>> history = doc.historyModifiers != null
+            ? doc.historyModifiers : Collections.<String, Map<String, Double>>emptyMap();
+        Map<String, String> synonyms = doc.synonyms != null ? doc.synonyms : Collections.<String, String>emptyMap();
+        return CompiledDiseaseModel.compile(weights, recommendations, ageMultipliers, history, synonyms);
+    }
+    
+    static CompiledDiseaseModel readCsv(Path path) throws IOException {
+        Map<String, Map<String, Double>> weights = new LinkedHashMap<>();
+        Map<String, List<String>> recommendations = new HashMap<>();
+        Map<String, Double> ageMultipliers = new HashMap<>();
+        Map<String, Map<String, Double>> history = new LinkedHashMap<>();
+        Map<String, String> synonyms = new LinkedHashMap<>();
+        
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.startsWith("#") || (lineNumber == 1 && line.startsWith("type,"))) {
+                    continue;
+                }
+                List<String> f = splitCsv(line);
+                if (f.size() < 3) {
+                    throw new IOException(path + ":" + lineNumber + ": expected type,disease,key,value");
+                }
+                String type = f.get(0).trim();
+                String disease = f.get(1).trim();
+                String key = f.get(2).trim();
+                String value = f.size() > 3 ? f.get(3).trim() : "";
+                try {
+                    switch (type) {
+                        case "weight":
+                            weights.computeIfAbsent(disease, d -> new LinkedHashMap<>()).put(key, Double.parseDouble(value));
+                            break;
+                        case "recommendation":
+                            recommendations.computeIfAbsent(disease, d -> new ArrayList<>()).add(key);
+                            break;
+                        case "age":
+                            ageMultipliers.put(disease, Double.parseDouble(value));
+                            break;
+                        case "history":
+                            history.computeIfAbsent(key, k -> new HashMap<>()).put(disease, Double.parseDouble(value));
+                            break;
+                        case "synonym":
+                            synonyms.put(key, value);
+                            break;
+                        default:
+                            throw new IOException(path + ":" + lineNumber + ": unknown row type '" + type + "'");
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException(path + ":" + lineNumber + ": invalid number '" + value + "'");
+                }
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IOException("Model file " + path + " has no weights");
+        }
+        return CompiledDiseaseModel.compile(weights, recommendations, ageMultipliers, history, synonyms);
+    }
+    
+    private static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+    
+    /**
+     * Writes the model to a temporary file next to {@code path} and moves it
+     * into place, so a watcher or a concurrent reader never sees a partial file.
+     */
+    static void writeBinary(CompiledDiseaseModel model, Path path) throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                int diseases = model.diseaseCount;
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(diseases);
+                out.writeInt(model.symptomCount);
+                out.writeInt(model.historyKeywords.length);
+                out.writeInt(model.postingDiseases.length);
+                for (int d = 0; d < diseases; d++) {
+                    writeString(out, model.diseaseNames[d]);
+                    List<String> recs = model.recommendations.get(d);
+                    out.writeInt(recs.size());
+                    for (String rec : recs) {
+                        writeString(out, rec);
+                    }
+                }
+                for (String symptom : model.symptomNames()) {
+                    writeString(out, symptom);
+                }
+                for (String keyword : model.historyKeywords) {
+                    writeString(out, keyword);
+                }
+                for (int v : model.postingOffsets) out.writeInt(v);
+                for (int v : model.postingDiseases) out.writeInt(v);
+                for (int v : model.symptomsPerDisease) out.writeInt(v);
+                for (double v : model.postingWeights) out.writeDouble(v);
+                for (double v : model.ageMultipliers) out.writeDouble(v);
+                for (double v : model.historyMultipliers) out.writeDouble(v);
+                out.writeInt(model.synonymAliases.length);
+                for (int i = 0; i < model.synonymAliases.length; i++) {
+                    writeString(out, model.synonymAliases[i]);
+                    out.writeInt(model.synonymTargets[i]);
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+    
+    /** Writes {@code doc} as indented JSON, replacing {@code path} atomically like {@link #writeBinary}. */
+    static void writeJson(ModelDocument doc, Path path) throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                new GsonBuilder().setPrettyPrinting().create().toJson(doc, out);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+    
+    static CompiledDiseaseModel readBinary(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < 24 || buf.getInt() != MAGIC) {
+                throw new IOException(path + " is not a compiled disease model");
+            }
+            int version = buf.getInt();
+            if (version != 1 && version != VERSION) {
+                throw new IOException(path + " has unsupported model version " + version);
+            }
+            int diseases = readCount(buf, 8, path, "disease");
+            int symptoms = readCount(buf, 8, path, "symptom");
+            int keywords = readCount(buf, 4, path, "history keyword");
+            int postings = readCount(buf, 12, path, "posting");
+            
+            String[] diseaseNames = new String[diseases];
+            List<List<String>> recommendations = new ArrayList<>(diseases);
+            for (int d = 0; d < diseases; d++) {
+                diseaseNames[d] = readString(buf);
+                String[] recs = new String[readCount(buf, 4, path, "recommendation")];
+                for (int i = 0; i < recs.length; i++) {
+                    recs[i] = readString(buf);
+                }
+                recommendations.add(Collections.unmodifiableList(Arrays.asList(recs)));
+            }
+            Map<String, Integer> symptomIds = new HashMap<>(symptoms * 2);
+            for (int s = 0; s < symptoms; s++) {
+                String name = readString(buf);
+                if (symptomIds.put(name, s) != null) {
+                    throw new IOException(path + " lists symptom " + name + " twice");
+                }
+            }
+            String[] historyKeywords = new String[keywords];
+            for (int k = 0; k < keywords; k++) {
+                historyKeywords[k] = readString(buf);
+            }
+            int[] postingOffsets = readInts(buf, symptoms + 1);
+            int[] postingDiseases = readInts(buf, postings);
+            int[] symptomsPerDisease = readInts(buf, diseases);
+            double[] postingWeights = readDoubles(buf, postings);
+            double[] ageMultipliers = readDoubles(buf, diseases);
+            double[] historyMultipliers = readDoubles(buf, (long) keywords * diseases);
+            if (postingOffsets[0] != 0 || postingOffsets[symptoms] != postings) {
+                throw new IOException(path + " has posting offsets that do not span its " + postings + " postings");
+            }
+            for (int s = 0; s < symptoms; s++) {
+                if (postingOffsets[s] > postingOffsets[s + 1]) {
+                    throw new IOException(path + " has decreasing posting offsets at symptom " + s);
+                }
+            }
+            for (int d : postingDiseases) {
+                if (d < 0 || d >= diseases) {
+                    throw new IOException(path + " has a posting for unknown disease " + d);
+                }
+            }
+            // Version 1 files predate synonyms.
+            int synonyms = version >= 2 ? readCount(buf, 8, path, "synonym") : 0;
+            String[] synonymAliases = new String[synonyms];
+            int[] synonymTargets = new int[synonyms];
+            for (int i = 0; i < synonyms; i++) {
+                synonymAliases[i] = readString(buf);
+                synonymTargets[i] = buf.getInt();
+                if (synonymTargets[i] < 0 || synonymTargets[i] >= symptoms) {
+                    throw new IOException(path + " has a synonym for unknown symptom " + synonymTargets[i]);
+                }
+            }
+            
+            return new CompiledDiseaseModel(diseaseNames, recommendations, symptomIds, postingOffsets,
+                postingDiseases, postingWeights, symptomsPerDisease, ageMultipliers, historyKeywords,
+                historyMultipliers, synonymAliases, synonymTargets);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException(path + " is truncated or corrupt", e);
+        }
+    }
+    
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    /**
+     * Reads a count of items taking at least {@code minBytes} each, rejecting
+     * one the rest of the file cannot hold before anything is allocated for it.
+     */
+    private static int readCount(ByteBuffer buf, int minBytes, Path path, String what) throws IOException {
+        int count = buf.getInt();
+        if (count < 0 || (long) count * minBytes > buf.remaining()) {
+            throw new IOException(path + " has an invalid " + what + " count " + count);
+        }
+        return count;
+    }
+    
+    private static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static int[] readInts(ByteBuffer buf, long count) {
+        if (count * Integer.BYTES > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        int[] values = new int[(int) count];
+        buf.asIntBuffer().get(values);
+        buf.position(buf.position() + values.length * Integer.BYTES);
+        return values;
+    }
+    
+    private static double[] readDoubles(ByteBuffer buf, long count) {
+        if (count * Double.BYTES > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        double[] values = new double[(int) count];
+        buf.asDoubleBuffer().get(values);
+        buf.position(buf.position() + values.length * Double.BYTES);
+        return values;
+    }
+}
+
+/**
+ * Reloads the model when its file is created or modified. Editors and
+ * {@link DiseaseModelLoader#writeBinary} often produce several events per
+ * save, so events are coalesced for a short quiet period before reloading.
+ */
+final class ModelFileWatcher implements Runnable {
+    private static final long QUIET_PERIOD_MILLIS = 250;
+    
+    private final Path file;
+    private final WatchService watcher;
+    
+    private ModelFileWatcher(Path file, WatchService watcher) {
+        this.file = file;
+        this.watcher = watcher;
+    }
+    
+    static void start(Path file) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        WatchService watcher = absolute.getFileSystem().newWatchService();
+        absolute.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread thread = new Thread(new ModelFileWatcher(absolute, watcher), "model-file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= file.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                } while ((key = watcher.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS)) != null);
+                
+                if (changed) {
+                    try {
+                        DiseasePredictor.reloadModel();
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Model reload from " + file + " failed, keeping current model: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+/**
+ * Learns symptom weights from the diagnosed patients in PatientDB with
+ * multinomial logistic regression. Each patient becomes a sparse binary vector
+ * of symptom ids, stored as primitive arrays in CSR form, and is weighted by
+ * its confidence score. Training runs synchronous mini-batch gradient descent:
+ * each batch is split across {@code threads} workers, which compute gradients
+ * into private buffers touching only the rows of the symptoms they saw. The
+ * buffers are summed over the rows any worker touched, and each batch takes
+ * one projected step with weight decay, so the thread count changes only the
+ * order of floating-point additions, not the step.
+ * <p>
+ * Weights are kept non-negative and there is no bias, so a disease's logit is
+ * simply the sum of its weights for the symptoms present. The exported model
+ * scales each disease's weights by its symptom count, so
+ * {@link DiseasePredictor}'s score, the sum of matched weights divided by the
+ * symptom count, follows the trained logits. It is not an exact match: weights
+ * under 1% of a disease's largest are pruned, scores are capped at 99%, and the
+ * carried-over age and history multipliers rescale them, any of which can
+ * reorder close diseases. A global scale puts the strongest training logit
+ * just under the cap. Symptoms
+ * resolve through the current model's canonicalizer, and symptoms it does not
+ * know join the vocabulary once seen {@code minCount} times; recommendations,
+ * age and history multipliers and synonyms carry over from the current model.
+ * <p>
+ * Every {@code holdout} percent of patients, picked by a hash of the id, is
+ * held out and scored three ways: with the trained logits, with the exported
+ * model through the predictor, and with the current model as a baseline.
+ */
+final class ModelTrainer {
+    private final int epochs;
+    private final int batchSize;
+    private final int threads;
+    private final double rate;
+    private final double l2;
+    private final int holdoutPercent;
+    private final int minCount;
+    private final long seed;
+    
+    private final List<String> classes = new ArrayList<>();
+    private final Map<String, Integer> classIds = new HashMap<>();
+    private final List<String> vocabulary = new ArrayList<>();
+    private final Map<String, Integer> featureIds = new HashMap<>();
+    private int[] rowStart = new int[1024];
+    private int[] features = new int[4096];
+    private int[] labels = new int[1024];
+    private float[] sampleWeights = new float[1024];
+    private int rows;
+    private int featureCount;
+    private double[] weights;
+    
+    ModelTrainer(int epochs, int batchSize, int threads, double rate, double l2, int holdoutPercent, int minCount,
+                 long seed) {
+        this.epochs = epochs;
+        this.batchSize = batchSize;
+        this.threads = threads;
+        this.rate = rate;
+        this.l2 = l2;
+        this.holdoutPercent = holdoutPercent;
+        this.minCount = minCount;
+        this.seed = seed;
+    }
+    
+    /** Training outcome, written next to the model as JSON. */
+    static final class Report {
+        long patientsScanned;
+        long patientsSkipped;
+        int trainRecords;
+        int holdoutRecords;
+        int diseases;
+        int symptoms;
+        int postings;
+        int epochs;
+        int threads;
+        double trainSeconds;
+        double recordsPerSecond;
+        List<Double> epochLogLoss = new ArrayList<>();
+        Evaluation trained;
+        Evaluation exported;
+        Evaluation baseline;
+        List<DiseaseReport> perDisease = new ArrayList<>();
+    }
+    
+    /** Holdout accuracy of one way of scoring. */
+    static final class Evaluation {
+        String model;
+        double top1;
+        double top3;
+        Double logLoss;
+    }
+    
+    static final class DiseaseReport {
+        String disease;
+        int support;
+        double precision;
+        double recall;
+    }
+    
+    Report train(CompiledDiseaseModel current, Path output) throws Exception {
+        Report report = new Report();
+        report.epochs = epochs;
+        report.threads = threads;
+        
+        List<Patient> holdout = new ArrayList<>();
+        List<Patient> training = new ArrayList<>();
+        Map<String, Integer> unknownCounts = new HashMap<>();
+        for (Patient p : PatientDB.getPatientsAfter(Integer.MIN_VALUE)) {
+            report.patientsScanned++;
+            if (p.getDiagnosis() == null || p.getDiagnosis().isEmpty() || p.getSymptoms() == null
+                    || p.getSymptoms().isEmpty()) {
+                report.patientsSkipped++;
+                continue;
+            }
+            for (String symptom : p.getSymptoms()) {
+                if (current.canonicalizer.resolve(symptom) < 0) {
+                    unknownCounts.merge(normalize(symptom), 1, Integer::sum);
+                }
+            }
+            (isHoldout(p.getId()) ? holdout : training).add(p);
+        }
+        String[] currentSymptoms = current.symptomNames();
+        for (Patient p : training) {
+            addRow(p, current, currentSymptoms, unknownCounts);
+        }
+        report.patientsSkipped += training.size() - rows;
+        int trainRows = rows;
+        featureCount = vocabulary.size();
+        report.trainRecords = trainRows;
+        if (trainRows == 0) {
+            throw new IllegalStateException("PatientDB has no diagnosed patients with symptoms to train on");
+        }
+        
+        int classCount = classes.size();
+        weights = new double[featureCount * classCount];
+        long start = System.nanoTime();
+        fit(trainRows, report);
+        report.trainSeconds = (System.nanoTime() - start) / 1e9;
+        report.recordsPerSecond = (double) trainRows * epochs / report.trainSeconds;
+        
+        Map<String, Map<String, Double>> diseaseWeights = export(trainRows);
+        Map<String, List<String>> recommendations = new HashMap<>();
+        Map<String, Double> ageMultipliers = new HashMap<>();
+        Map<String, Map<String, Double>> history = new LinkedHashMap<>();
+        Map<String, String> synonyms = new LinkedHashMap<>();
+        carryOver(current, diseaseWeights, recommendations, ageMultipliers, history, synonyms);
+        CompiledDiseaseModel trained = CompiledDiseaseModel.compile(diseaseWeights, recommendations, ageMultipliers,
+            history, synonyms);
+        report.diseases = trained.diseaseCount;
+        report.symptoms = trained.symptomCount;
+        report.postings = trained.postingDiseases.length;
+        
+        if (output.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".json")) {
+            DiseaseModelLoader.ModelDocument doc = new DiseaseModelLoader.ModelDocument();
+            doc.diseases = new ArrayList<>();
+            for (Map.Entry<String, Map<String, Double>> e : diseaseWeights.entrySet()) {
+                DiseaseModelLoader.DiseaseDefinition disease = new DiseaseModelLoader.DiseaseDefinition();
+                disease.name = e.getKey();
+                disease.symptoms = e.getValue();
+                disease.recommendations = recommendations.get(e.getKey());
+                disease.ageMultiplier = ageMultipliers.get(e.getKey());
+                doc.diseases.add(disease);
+            }
+            doc.historyModifiers = history;
+            doc.synonyms = synonyms;
+            DiseaseModelLoader.writeJson(doc, output);
+        } else {
+            DiseaseModelLoader.writeBinary(trained, output);
+        }
+        
+        evaluate(report, holdout, current, currentSymptoms, unknownCounts, trained);
+        return report;
+    }
+    
+    private boolean isHoldout(int id) {
+        return Integer.remainderUnsigned((int) ((id ^ seed) * 0x9E3779B9L >>> 8), 100) < holdoutPercent;
+    }
+    
+    private static String normalize(String symptom) {
+        return symptom.toLowerCase(Locale.ROOT).trim();
+    }
+    
+    /** The feature id of {@code symptom}, or -1 if it is neither in the current model nor common enough. */
+    private int feature(String symptom, CompiledDiseaseModel current, String[] currentSymptoms,
+                        Map<String, Integer> unknownCounts, boolean add) {
+        int known = current.canonicalizer.resolve(symptom);
+        String name;
+        if (known >= 0) {
+            name = currentSymptoms[known];
+        } else {
+            name = normalize(symptom);
+            if (unknownCounts.getOrDefault(name, 0) < minCount) {
+                return -1;
+            }
+        }
+        Integer id = featureIds.get(name);
+        if (id == null) {
+            if (!add) {
+                return -1;
+            }
+            id = vocabulary.size();
+            vocabulary.add(name);
+            featureIds.put(name, id);
+        }
+        return id;
+    }
+    
+    private void addRow(Patient p, CompiledDiseaseModel current, String[] currentSymptoms,
+                        Map<String, Integer> unknownCounts) {
+        int from = rowStart[rows];
+        int n = from;
+        for (String symptom : p.getSymptoms()) {
+            int f = feature(symptom, current, currentSymptoms, unknownCounts, true);
+            if (f < 0 || contains(features, from, n, f)) {
+                continue;
+            }
+            if (n == features.length) {
+                features = Arrays.copyOf(features, n * 2);
+            }
+            features[n++] = f;
+        }
+        if (n == from) {
+            return;
+        }
+        Integer label = classIds.get(p.getDiagnosis());
+        if (label == null) {
+            label = classes.size();
+            classes.add(p.getDiagnosis());
+            classIds.put(p.getDiagnosis(), label);
+        }
+        if (rows + 2 > rowStart.length) {
+            rowStart = Arrays.copyOf(rowStart, rowStart.length * 2);
+            labels = Arrays.copyOf(labels, rowStart.length);
+            sampleWeights = Arrays.copyOf(sampleWeights, rowStart.length);
+        }
+        double confidence = p.getConfidenceScore();
+        labels[rows] = label;
+        sampleWeights[rows] = confidence > 0 ? (float) Math.max(0.05, Math.min(1.0, confidence / 100)) : 1f;
+        rowStart[rows] = from;
+        rowStart[++rows] = n;
+    }
+    
+    private static boolean contains(int[] values, int from, int to, int value) {
+        for (int i = from; i < to; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void fit(int trainRows, Report report) throws InterruptedException, ExecutionException {
+        int classCount = classes.size();
+        int[] order = new int[trainRows];
+        for (int i = 0; i < trainRows; i++) {
+            order[i] = i;
+        }
+        Gradient[] gradients = new Gradient[threads];
+        for (int t = 0; t < threads; t++) {
+            gradients[t] = new Gradient(weights.length, featureCount, classCount);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "model-trainer");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            Random random = new Random(seed);
+            List<Callable<Void>> tasks = new ArrayList<>(threads);
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                for (int i = trainRows - 1; i > 0; i--) {
+                    int j = random.nextInt(i + 1);
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                }
+                double step = rate / (1 + 0.5 * epoch);
+                double loss = 0;
+                double seen = 0;
+                for (int from = 0; from < trainRows; from += batchSize) {
+                    int to = Math.min(trainRows, from + batchSize);
+                    int per = (to - from + threads - 1) / threads;
+                    tasks.clear();
+                    for (int t = 0; t < threads; t++) {
+                        Gradient g = gradients[t];
+                        int a = Math.min(to, from + t * per);
+                        int b = Math.min(to, a + per);
+                        tasks.add(() -> {
+                            g.accumulate(order, a, b);
+                            return null;
+                        });
+                    }
+                    for (Future<Void> done : pool.invokeAll(tasks)) {
+                        done.get();
+                    }
+                    double batchWeight = 0;
+                    for (Gradient g : gradients) {
+                        batchWeight += g.weight;
+                        loss += g.loss;
+                    }
+                    seen += batchWeight;
+                    for (int t = 1; t < threads; t++) {
+                        gradients[0].absorb(gradients[t]);
+                    }
+                    gradients[0].apply(step / batchWeight);
+                }
+                report.epochLogLoss.add(loss / seen);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    /**
+     * One worker's gradient for part of a batch. Only the rows of symptoms it
+     * saw are written, and absorbing or applying the gradient clears just
+     * those rows.
+     */
+    private final class Gradient {
+        final double[] values;
+        final int[] touched;
+        final boolean[] marked;
+        final double[] logits;
+        int touchedCount;
+        double loss;
+        double weight;
+        
+        Gradient(int size, int featureCount, int classCount) {
+            values = new double[size];
+            touched = new int[featureCount];
+            marked = new boolean[featureCount];
+            logits = new double[classCount];
+        }
+        
+        void accumulate(int[] order, int from, int to) {
+            int classCount = logits.length;
+            loss = 0;
+            weight = 0;
+            for (int i = from; i < to; i++) {
+                int row = order[i];
+                int label = labels[row];
+                double sw = sampleWeights[row];
+                softmax(weights, row, logits);
+                loss -= sw * Math.log(Math.max(logits[label], 1e-15));
+                weight += sw;
+                for (int k = rowStart[row]; k < rowStart[row + 1]; k++) {
+                    int f = features[k];
+                    if (!marked[f]) {
+                        marked[f] = true;
+                        touched[touchedCount++] = f;
+                    }
+                    int base = f * classCount;
+                    for (int c = 0; c < classCount; c++) {
+                        values[base + c] += sw * (c == label ? logits[c] - 1 : logits[c]);
+                    }
+                }
+            }
+        }
+        
+        /** Adds {@code other}'s touched rows into this gradient and clears them from {@code other}. */
+        void absorb(Gradient other) {
+            int classCount = logits.length;
+            for (int t = 0; t < other.touchedCount; t++) {
+                int f = other.touched[t];
+                other.marked[f] = false;
+                if (!marked[f]) {
+                    marked[f] = true;
+                    touched[touchedCount++] = f;
+                }
+                for (int i = f * classCount, end = i + classCount; i < end; i++) {
+                    values[i] += other.values[i];
+                    other.values[i] = 0;
+                }
+            }
+            other.touchedCount = 0;
+        }
+        
+        /** Takes a projected step of {@code scale} times this gradient, keeping weights non-negative. */
+        void apply(double scale) {
+            int classCount = logits.length;
+            for (int t = 0; t < touchedCount; t++) {
+                int f = touched[t];
+                marked[f] = false;
+                for (int i = f * classCount, end = i + classCount; i < end; i++) {
+                    double w = weights[i] - scale * values[i] - scale * l2 * weights[i];
+                    weights[i] = w > 0 ? w : 0;
+                    values[i] = 0;
+                }
+            }
+            touchedCount = 0;
+        }
+    }
+    
+    /** Fills {@code out} with the class probabilities for training row {@code row}. */
+    private void softmax(double[] w, int row, double[] out) {
+        Arrays.fill(out, 0);
+        for (int k = rowStart[row]; k < rowStart[row + 1]; k++) {
+            logits(w, features[k], out);
+        }
+        normalize(out);
+    }
+    
+    private static void logits(double[] w, int feature, double[] out) {
+        int base = feature * out.length;
+        for (int c = 0; c < out.length; c++) {
+            out[c] += w[base + c];
+        }
+    }
+    
+    private static void normalize(double[] logits) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double z : logits) {
+            max = Math.max(max, z);
+        }
+        double sum = 0;
+        for (int c = 0; c < logits.length; c++) {
+            logits[c] = Math.exp(logits[c] - max);
+            sum += logits[c];
+        }
+        for (int c = 0; c < logits.length; c++) {
+            logits[c] /= sum;
+        }
+    }
+    
+    /**
+     * Per-disease symptom weights for the predictor, dropping weights under 1%
+     * of the disease's largest and scaling by the symptom count kept.
+     */
+    private Map<String, Map<String, Double>> export(int trainRows) {
+        int classCount = classes.size();
+        double maxLogit = 0;
+        double[] z = new double[classCount];
+        for (int row = 0; row < trainRows; row++) {
+            Arrays.fill(z, 0);
+            for (int k = rowStart[row]; k < rowStart[row + 1]; k++) {
+                logits(weights, features[k], z);
+            }
+            for (double v : z) {
+                maxLogit = Math.max(maxLogit, v);
+            }
+        }
+        double scale = maxLogit > 0 ? 0.99 / maxLogit : 1;
+        
+        Map<String, Map<String, Double>> exported = new LinkedHashMap<>();
+        for (int c = 0; c < classCount; c++) {
+            double largest = 0;
+            for (int f = 0; f < featureCount; f++) {
+                largest = Math.max(largest, weights[f * classCount + c]);
+            }
+            List<Integer> kept = new ArrayList<>();
+            for (int f = 0; f < featureCount; f++) {
+                if (weights[f * classCount + c] > largest * 0.01) {
+                    kept.add(f);
+                }
+            }
+            if (kept.isEmpty()) {
+                continue;
+            }
+            final int cls = c;
+            kept.sort((a, b) -> Double.compare(weights[b * classCount + cls], weights[a * classCount + cls]));
+            Map<String, Double> symptoms = new LinkedHashMap<>();
+            for (int f : kept) {
+                double w = weights[f * classCount + c] * scale * kept.size();
+                symptoms.put(vocabulary.get(f), Math.round(w * 1e6) / 1e6);
+            }
+            exported.put(classes.get(c), symptoms);
+        }
+        return exported;
+    }
+    
+    private static void carryOver(CompiledDiseaseModel current, Map<String, Map<String, Double>> diseases,
+                                  Map<String, List<String>> recommendations, Map<String, Double> ageMultipliers,
+                                  Map<String, Map<String, Double>> history, Map<String, String> synonyms) {
+        int currentCount = current.diseaseCount;
+        for (int d = 0; d < currentCount; d++) {
+            String name = current.diseaseNames[d];
+            if (!diseases.containsKey(name)) {
+                continue;
+            }
+            if (!current.recommendations.get(d).isEmpty()) {
+                recommendations.put(name, current.recommendations.get(d));
+            }
+            if (current.ageMultipliers[d] != 1.0) {
+                ageMultipliers.put(name, current.ageMultipliers[d]);
+            }
+            for (int k = 0; k < current.historyKeywords.length; k++) {
+                double multiplier = current.historyMultipliers[k * currentCount + d];
+                if (multiplier != 1.0) {
+                    history.computeIfAbsent(current.historyKeywords[k], key -> new LinkedHashMap<>()).put(name, multiplier);
+                }
+            }
+        }
+        Set<String> symptoms = new HashSet<>();
+        for (Map<String, Double> weights : diseases.values()) {
+            symptoms.addAll(weights.keySet());
+        }
+        String[] currentSymptoms = current.symptomNames();
+        for (int i = 0; i < current.synonymAliases.length; i++) {
+            String target = currentSymptoms[current.synonymTargets[i]];
+            if (symptoms.contains(target)) {
+                synonyms.put(current.synonymAliases[i], target);
+            }
+        }
+    }
+    
+    private void evaluate(Report report, List<Patient> holdout, CompiledDiseaseModel current, String[] currentSymptoms,
+                          Map<String, Integer> unknownCounts, CompiledDiseaseModel exported) {
+        int classCount = classes.size();
+        int[] trainedHits = new int[2];
+        int[] exportedHits = new int[2];
+        int[] baselineHits = new int[2];
+        int[] support = new int[classCount];
+        int[] predicted = new int[classCount];
+        int[] correct = new int[classCount];
+        double logLoss = 0;
+        double[] z = new double[classCount];
+        int n = 0;
+        for (Patient p : holdout) {
+            Integer label = classIds.get(p.getDiagnosis());
+            if (label == null) {
+                continue;
+            }
+            Arrays.fill(z, 0);
+            boolean any = false;
+            for (String symptom : p.getSymptoms()) {
+                int f = feature(symptom, current, currentSymptoms, unknownCounts, false);
+                if (f >= 0) {
+                    logits(weights, f, z);
+                    any = true;
+                }
+            }
+            if (!any) {
+                continue;
+            }
+            n++;
+            normalize(z);
+            logLoss -= Math.log(Math.max(z[label], 1e-15));
+            int rank = 0;
+            for (int c = 0; c < classCount; c++) {
+                if (z[c] > z[label] || (z[c] == z[label] && c < label)) {
+                    rank++;
+                }
+            }
+            hits(trainedHits, rank);
+            support[label]++;
+            
+            List<DiagnosisResult> results = DiseasePredictor.predict(exported, p.getSymptoms(), p.getAge(),
+                p.getMedicalHistory(), 3);
+            hits(exportedHits, rankOf(results, p.getDiagnosis()));
+            if (!results.isEmpty()) {
+                Integer top = classIds.get(results.get(0).getDisease());
+                if (top != null) {
+                    predicted[top]++;
+                    if (top.intValue() == label) {
+                        correct[label]++;
+                    }
+                }
+            }
+            hits(baselineHits, rankOf(DiseasePredictor.predict(current, p.getSymptoms(), p.getAge(),
+                p.getMedicalHistory(), 3), p.getDiagnosis()));
+        }
+        report.holdoutRecords = n;
+        report.trained = evaluation("trained logits", trainedHits, n);
+        report.trained.logLoss = n > 0 ? logLoss / n : null;
+        report.exported = evaluation("exported model via DiseasePredictor", exportedHits, n);
+        report.baseline = evaluation("current model via DiseasePredictor", baselineHits, n);
+        for (int c = 0; c < classCount; c++) {
+            DiseaseReport disease = new DiseaseReport();
+            disease.disease = classes.get(c);
+            disease.support = support[c];
+            disease.precision = predicted[c] > 0 ? (double) correct[c] / predicted[c] : 0;
+            disease.recall = support[c] > 0 ? (double) correct[c] / support[c] : 0;
+            report.perDisease.add(disease);
+        }
+    }
+    
+    private static int rankOf(List<DiagnosisResult> results, String diagnosis) {
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).getDisease().equals(diagnosis)) {
+                return i;
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+    
+    private static void hits(int[] hits, int rank) {
+        if (rank == 0) {
+            hits[0]++;
+        }
+        if (rank < 3) {
+            hits[1]++;
+        }
+    }
+    
+    private static Evaluation evaluation(String model, int[] hits, int n) {
+        Evaluation e = new Evaluation();
+        e.model = model;
+        e.top1 = n > 0 ? (double) hits[0] / n : 0;
+        e.top3 = n > 0 ? (double) hits[1] / n : 0;
+        return e;
+    }
+}
+
+/**
+ * Trains a model from the store in {@code patientdb.dir} (default data) with
+ * {@link ModelTrainer} and writes it to {@code output} (.json, or the binary
+ * format otherwise), with the report beside it as {@code output.report.json}.
+ * Usage: {@code train-model <output> [--epochs=N] [--batch=N] [--threads=N]
+ * [--rate=X] [--l2=X] [--holdout=PERCENT] [--min-count=N] [--seed=N]}.
+ */
+final class TrainCommand {
+    private TrainCommand() {}
+    
+    static void run(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: train-model <output.json|output.bin> [--epochs=N] [--batch=N] [--threads=N]"
+                + " [--rate=X] [--l2=X] [--holdout=PERCENT] [--min-count=N] [--seed=N]");
+            System.exit(2);
+        }
+        Path output = Paths.get(args[1]);
+        int epochs = 10;
+        int batch = 1024;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double rate = 2.0;
+        double l2 = 1e-6;
+        int holdout = 10;
+        int minCount = 5;
+        long seed = 42;
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--epochs=")) {
+                epochs = Integer.parseInt(value);
+            } else if (arg.startsWith("--batch=")) {
+                batch = Integer.parseInt(value);
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(value);
+            } else if (arg.startsWith("--rate=")) {
+                rate = Double.parseDouble(value);
+            } else if (arg.startsWith("--l2=")) {
+                l2 = Double.parseDouble(value);
+            } else if (arg.startsWith("--holdout=")) {
+                holdout = Integer.parseInt(value);
+            } else if (arg.startsWith("--min-count=")) {
+                minCount = Integer.parseInt(value);
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(value);
+            } else {
+                System.err.println("Unknown option " + arg);
+                System.exit(2);
+            }
+        }
+        if (epochs < 1 || batch < 1 || threads < 1 || holdout < 0 || holdout > 50) {
+            System.err.println("epochs, batch and threads must be positive and holdout 0 to 50");
+            System.exit(2);
+        }
+        
+        DiseasePredictor.initializeModel();
+        String dataDir = System.getProperty("patientdb.dir", "data");
+        if (!dataDir.isEmpty()) {
+            PatientDB.open(Paths.get(dataDir));
+        }
+        ModelTrainer.Report report;
+        try {
+            report = new ModelTrainer(epochs, batch, threads, rate, l2, holdout, minCount, seed)
+                .train(DiseasePredictor.getModel(), output);
+        } finally {
+            PatientDB.close();
+        }
+        Path reportPath = output.resolveSibling(output.getFileName() + ".report.json");
+        Files.write(reportPath, new GsonBuilder().setPrettyPrinting().create().toJson(report)
+            .getBytes(StandardCharsets.UTF_8));
+        
+        System.out.printf("Trained on %,d patients (%,d scanned, %,d skipped) in %.2f s, %,.0f records/s over %d epochs"
+                + " on %d threads%n", report.trainRecords, report.patientsScanned, report.patientsSkipped,
+            report.trainSeconds, report.recordsPerSecond, report.epochs, report.threads);
+        System.out.printf("Log loss by epoch: %s%n", formatLosses(report.epochLogLoss));
+        System.out.printf("Wrote %s: %d diseases, %d symptoms, %d weights; report in %s%n", output, report.diseases,
+            report.symptoms, report.postings, reportPath);
+        System.out.printf("Holdout of %,d patients:%n", report.holdoutRecords);
+        for (ModelTrainer.Evaluation e : Arrays.asList(report.trained, report.exported, report.baseline)) {
+            System.out.printf("  %-38s top-1 %5.1f%%  top-3 %5.1f%%%s%n", e.model, e.top1 * 100, e.top3 * 100,
+                e.logLoss != null ? String.format("  log loss %.4f", e.logLoss) : "");
+        }
+        System.out.printf("  %-30s %8s %10s %8s%n", "disease", "support", "precision", "recall");
+        for (ModelTrainer.DiseaseReport d : report.perDisease) {
+            System.out.printf("  %-30s %8d %9.1f%% %7.1f%%%n", d.disease, d.support, d.precision * 100,
+                d.recall * 100);
+        }
+    }
+    
+    private static String formatLosses(List<Double> losses) {
+        StringBuilder out = new StringBuilder();
+        for (double loss : losses) {
+            out.append(out.length() > 0 ? " " : "").append(String.format("%.4f", loss));
+        }
+        return out.toString();
+    }
+}
+
+enum Durability {
+    /** Return once the record has been forced to disk; concurrent writers share one fsync. */
+    FSYNC,
+    /** Return once the record is written to the log; it is forced within the fsync interval. */
+    BATCHED,
+    /** Return immediately; the record is written and forced in the background. */
+    ASYNC;
+    
+    static Durability parse(String value, Durability fallback) {
+        if (value == null || value.isEmpty()) {
+            return fallback;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+}
+
+/**
+ * Compact binary encoding of a patient, shared by the write-ahead log and
+ * snapshots. The id is stored by the caller so that a record can be encoded
+ * before an id has been assigned. Decoding canonicalizes the short categorical
+ * strings so that millions of recovered patients share a handful of instances.
+ */
+final class PatientCodec {
+    private byte[] scratch = new byte[256];
+    private final Utf8Interner interner = new Utf8Interner();
+    
+    static byte[] encode(Patient patient) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            write(out, patient);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+    
+    static void write(DataOutput out, Patient patient) throws IOException {
+        writeString(out, patient.getName());
+        out.writeInt(patient.getAge());
+        writeString(out, patient.getGender());
+        writeString(out, patient.getBloodGroup());
+        writeString(out, patient.getMedicalHistory());
+        List<String> symptoms = patient.getSymptoms();
+        out.writeInt(symptoms != null ? symptoms.size() : -1);
+        if (symptoms != null) {
+            for (String symptom : symptoms) {
+                writeString(out, symptom);
+            }
+        }
+        writeString(out, patient.getDiagnosis());
+        out.writeDouble(patient.getConfidenceScore());
+    }
+    
+    Patient read(ByteBuffer in) {
+        Patient patient = new Patient();
+        patient.setName(readString(in, false));
+        patient.setAge(in.getInt());
+        patient.setGender(readString(in, true));
+        patient.setBloodGroup(readString(in, true));
+        patient.setMedicalHistory(readString(in, false));
+        int symptomCount = in.getInt();
+        if (symptomCount < 0) {
+            patient.setSymptoms(null);
+        } else {
+            List<String> symptoms = new ArrayList<>(symptomCount);
+            for (int i = 0; i < symptomCount; i++) {
+                symptoms.add(readString(in, true));
+            }
+            patient.setSymptoms(symptoms);
+        }
+        patient.setDiagnosis(readString(in, true));
+        patient.setConfidenceScore(in.getDouble());
+        return patient;
+    }
+    
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private String readString(ByteBuffer in, boolean categorical) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        in.get(scratch, 0, length);
+        return categorical ? interner.intern(scratch, 0, length) : new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
+
+/**
+ * Decodes short UTF-8 byte strings to canonical String instances, so that
+ * millions of decoded records share one instance per distinct value without
+ * allocating a String to look each one up. Values over 64 bytes, and all new
+ * values once {@link #MAX_CANONICAL} are held, are decoded without sharing.
+ * Not thread-safe.
+ */
+final class Utf8Interner {
+    private static final int MAX_CANONICAL = 1 << 16;
+    
+    private byte[][] canonicalKeys = new byte[256][];
+    private String[] canonicalValues = new String[256];
+    private int canonicalSize;
+    
+    String intern(byte[] bytes, int offset, int length) {
+        if (length > 64) {
+            return new String(bytes, offset, length, StandardCharsets.UTF_8);
+        }
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + bytes[offset + i];
+        }
+        int mask = canonicalKeys.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        for (byte[] key; (key = canonicalKeys[slot]) != null; slot = (slot + 1) & mask) {
+            if (sameBytes(key, bytes, offset, length)) {
+                return canonicalValues[slot];
+            }
+        }
+        String value = new String(bytes, offset, length, StandardCharsets.UTF_8);
+        if (canonicalSize < MAX_CANONICAL) {
+            canonicalKeys[slot] = Arrays.copyOfRange(bytes, offset, offset + length);
+            canonicalValues[slot] = value;
+            if (++canonicalSize * 2 > canonicalKeys.length) {
+                growCanonical();
+            }
+        }
+        return value;
+    }
+    
+    private static boolean sameBytes(byte[] key, byte[] bytes, int offset, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void growCanonical() {
+        byte[][] oldKeys = canonicalKeys;
+        String[] oldValues = canonicalValues;
+        canonicalKeys = new byte[oldKeys.length * 2][];
+        canonicalValues = new String[oldKeys.length * 2];
+        int mask = canonicalKeys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            byte[] key = oldKeys[i];
+            if (key == null) {
+                continue;
+            }
+            int hash = 1;
+            for (byte b : key) {
+                hash = 31 * hash + b;
+            }
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (canonicalKeys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            canonicalKeys[slot] = key;
+            canonicalValues[slot] = oldValues[i];
+        }
+    }
+}
+
+/**
+ * Append-only write-ahead log of patient mutations, written through a
+ * {@link FileChannel} by a single writer thread. Writers enqueue records and
+ * the writer drains everything that is queued into one write, so concurrent
+ * {@link Durability#FSYNC} callers share a single {@code force}. The log is
+ * split into segments named after the first LSN they may contain.
+ *
+ * <p>Record layout: {@code int length, int crc32, long lsn, byte type, payload},
+ * where length and the CRC cover lsn, type and payload.
+ *
+ * <p>The log stops at its first I/O error: nothing more is written, every
+ * record not yet forced fails, and so does every record appended after it.
+ * Before failing them the writer runs their undo actions, newest first, inside
+ * {@code exclusive}, which must keep records from being appended meanwhile, so
+ * the caller can take back what it applied for records that never reached disk.
+ */
+final class PatientLog implements Closeable {
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    /** PUT carrying the patient's version after the id; plain PUT records are version 1. */
+    static final byte PUT_VERSIONED = 3;
+    
+    private static final int SEGMENT_MAGIC = 0x5057414C;
+    private static final int HEADER_BYTES = 16;
+    private static final int RECORD_OVERHEAD = 4 + 4 + 8 + 1;
+    private static final long MAX_SEGMENT_BYTES = 256L << 20;
+    private static final int MAX_BATCH = 4096;
+    
+    private final Path dir;
+    private final long fsyncIntervalNanos;
+    private final BlockingQueue<LogWrite> queue = new LinkedBlockingQueue<>();
+    private final Consumer<Runnable> exclusive;
+    private final Thread writer;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    private FileChannel channel;
+    private long segmentStartLsn;
+    /** Length of the current segment as of its last force. */
+    private long forcedBytes;
+    private long lastLsn;
+    private volatile IOException failure;
+    
+    private static final class LogWrite {
+        final long lsn;
+        final byte type;
+        final byte[] payload;
+        final Durability durability;
+        final Runnable undo;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        
+        LogWrite(long lsn, byte type, byte[] payload, Durability durability, Runnable undo) {
+            this.lsn = lsn;
+            this.type = type;
+            this.payload = payload;
+            this.durability = durability;
+            this.undo = undo;
+        }
+    }
+    
+    /** A record read back during recovery. */
+    static final class Record {
+        final long lsn;
+        final byte type;
+        final ByteBuffer payload;
+        
+        Record(long lsn, byte type, ByteBuffer payload) {
+            this.lsn = lsn;
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+    
+    interface RecordHandler {
+        void accept(Record record) throws IOException;
+    }
+    
+    PatientLog(Path dir, long nextLsn, long fsyncIntervalMillis, Consumer<Runnable> exclusive) throws IOException {
+        this.dir = dir;
+        this.exclusive = exclusive;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.lastLsn = nextLsn - 1;
+        openSegment(nextLsn);
+        this.writer = new Thread(this::writeLoop, "patient-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /**
+     * Queues a record. Must be called in LSN order; the returned future completes
+     * when the record has reached the requested durability. If the log fails
+     * first, {@code undo} runs before the future fails. A record appended after
+     * a failure is still queued, so that its undo runs too.
+     */
+    CompletableFuture<Void> append(long lsn, byte type, byte[] payload, Durability durability, Runnable undo) {
+        LogWrite write = new LogWrite(lsn, type, payload, durability, undo);
+        queue.add(write);
+        return write.done;
+    }
+    
+    /** The error that stopped the log, or null while it is healthy. */
+    IOException failure() {
+        return failure;
+    }
+    
+    /**
+     * Starts a new segment beginning at {@code nextLsn}; every record with a
+     * smaller LSN has been forced to disk once the returned future completes.
+     */
+    CompletableFuture<Void> roll(long nextLsn) {
+        LogWrite roll = new LogWrite(nextLsn, (byte) 0, null, Durability.FSYNC, null);
+        queue.add(roll);
+        return roll.done;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        LogWrite close = new LogWrite(-1, (byte) 0, null, Durability.FSYNC, null);
+        queue.add(close);
+        try {
+            close.done.get();
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing patient log");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to close patient log", e.getCause());
+        }
+    }
+    
+    static Path segmentPath(Path dir, long startLsn) {
+        return dir.resolve(String.format("wal-%020d.log", startLsn));
+    }
+    
+    static List<Path> segments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+    
+    static long segmentStart(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(4, name.length() - 4));
+    }
+    
+    /**
+     * Replays every intact record with {@code lsn >= fromLsn} in order. A torn or
+     * corrupt record at the end of the newest segment (a crash mid-write) is
+     * truncated away; corruption anywhere else fails recovery.
+     */
+    static long replay(Path dir, long fromLsn, RecordHandler handler) throws IOException {
+        List<Path> segments = segments(dir);
+        long lastLsn = fromLsn - 1;
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            boolean newest = i == segments.size() - 1;
+            try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = ch.size();
+                if (size < HEADER_BYTES) {
+                    ch.truncate(0);
+                    continue;
+                }
+                ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (buf.getInt() != SEGMENT_MAGIC) {
+                    throw new IOException(segment + " is not a patient log segment");
+                }
+                buf.getInt();
+                buf.getLong();
+                CRC32 crc = new CRC32();
+                while (buf.remaining() >= 8) {
+                    int start = buf.position();
+                    int length = buf.getInt();
+                    int expected = buf.getInt();
+                    if (length < 9 || length > buf.remaining()) {
+                        buf.position(start);
+                        break;
+                    }
+                    ByteBuffer body = buf.slice();
+                    body.limit(length);
+                    crc.reset();
+                    crc.update(body.duplicate());
+                    if ((int) crc.getValue() != expected) {
+                        buf.position(start);
+                        break;
+                    }
+                    buf.position(buf.position() + length);
+                    long lsn = body.getLong();
+                    byte type = body.get();
+                    if (lsn >= fromLsn) {
+                        handler.accept(new Record(lsn, type, body.slice()));
+                        lastLsn = lsn;
+                    }
+                }
+                if (buf.position() < size) {
+                    if (!newest) {
+                        throw new IOException(segment + " is corrupt at offset " + buf.position());
+                    }
+                    System.out.println("Truncating torn log tail of " + segment + " at offset " + buf.position());
+                    ch.truncate(buf.position());
+                    ch.force(true);
+                }
+            }
+        }
+        return lastLsn;
+    }
+    
+    private void openSegment(long startLsn) throws IOException {
+        if (channel != null) {
+            if (startLsn == segmentStartLsn) {
+                channel.force(false);
+                forcedBytes = channel.position();
+                return;
+            }
+            channel.force(false);
+            channel.close();
+        }
+        // A segment that already starts at this LSN holds no intact records (recovery replayed up to
+        // startLsn - 1 and truncated the rest), so it is safe to replace.
+        Path path = segmentPath(dir, startLsn);
+        Files.deleteIfExists(path);
+        segmentStartLsn = startLsn;
+        forcedBytes = 0;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(SEGMENT_MAGIC).putInt(1).putLong(startLsn).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(true);
+        forcedBytes = HEADER_BYTES;
+    }
+    
+    private void writeLoop() {
+        List<LogWrite> batch = new ArrayList<>();
+        List<LogWrite> unforced = new ArrayList<>();
+        long lastForce = System.nanoTime();
+        try {
+            while (true) {
+                LogWrite first;
+                if (unforced.isEmpty()) {
+                    first = queue.take();
+                } else {
+                    long wait = fsyncIntervalNanos - (System.nanoTime() - lastForce);
+                    first = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH);
+                }
+                
+                if (failure != null) {
+                    if (failStopped(batch)) {
+                        return;
+                    }
+                    batch.clear();
+                    continue;
+                }
+                boolean forceNow = first == null || System.nanoTime() - lastForce >= fsyncIntervalNanos;
+                boolean stop = false;
+                try {
+                    for (LogWrite w : batch) {
+                        if (w.payload != null) {
+                            encode(w);
+                            unforced.add(w);
+                            forceNow |= w.durability == Durability.FSYNC;
+                            continue;
+                        }
+                        flush(unforced, true);
+                        lastForce = System.nanoTime();
+                        if (w.lsn >= 0) {
+                            openSegment(w.lsn);
+                        } else {
+                            channel.close();
+                            stop = true;
+                        }
+                        w.done.complete(null);
+                    }
+                    if (!stop) {
+                        flush(unforced, forceNow);
+                        if (forceNow) {
+                            lastForce = System.nanoTime();
+                        }
+                        if (channel.position() >= MAX_SEGMENT_BYTES) {
+                            flush(unforced, true);
+                            openSegment(lastLsn + 1);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Patient log write failed, refusing further writes: " + e);
+                    Set<LogWrite> failed = new LinkedHashSet<>(unforced);
+                    for (LogWrite w : batch) {
+                        if (!w.done.isDone()) {
+                            failed.add(w);
+                        }
+                    }
+                    unforced.clear();
+                    failure = e;
+                    truncateUnforced();
+                    stop = failStopped(new ArrayList<>(failed));
+                }
+                batch.clear();
+                if (stop) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Cuts the current segment back to its last force after a failure, so that
+     * records about to be undone cannot come back on recovery. Best effort: if
+     * the file cannot be truncated either, recovery may replay them.
+     */
+    private void truncateUnforced() {
+        try (FileChannel ch = FileChannel.open(segmentPath(dir, segmentStartLsn), StandardOpenOption.WRITE)) {
+            if (ch.size() > forcedBytes) {
+                ch.truncate(forcedBytes);
+                ch.force(true);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not truncate unforced patient log records: " + e);
+        }
+    }
+    
+    /**
+     * Fails {@code failed}, which are in LSN order, and everything still
+     * queued once appends are excluded, undoing their records newest first.
+     * Returns whether a close was among them, after closing the channel.
+     */
+    private boolean failStopped(List<LogWrite> failed) {
+        exclusive.accept(() -> {
+            queue.drainTo(failed);
+            for (int i = failed.size() - 1; i >= 0; i--) {
+                Runnable undo = failed.get(i).undo;
+                if (undo != null) {
+                    undo.run();
+                }
+            }
+        });
+        boolean stop = false;
+        for (LogWrite w : failed) {
+            if (w.payload == null && w.lsn < 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // The log has already failed; closing is best effort.
+                }
+                w.done.complete(null);
+                stop = true;
+            } else {
+                w.done.completeExceptionally(failure);
+            }
+        }
+        return stop;
+    }
+    
+    private void encode(LogWrite w) throws IOException {
+        int length = 8 + 1 + w.payload.length;
+        if (buffer.remaining() < 8 + length) {
+            if (buffer.capacity() < 8 + length) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, 8 + length + buffer.position()));
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            } else {
+                drain();
+            }
+        }
+        int start = buffer.position();
+        buffer.putInt(length).putInt(0).putLong(w.lsn).put(w.type).put(w.payload);
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + 8).limit(buffer.position());
+        crc.reset();
+        crc.update(body);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        lastLsn = w.lsn;
+    }
+    
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    /** Writes the buffered records and completes every waiter the write satisfies. */
+    private void flush(List<LogWrite> unforced, boolean force) throws IOException {
+        drain();
+        if (force) {
+            channel.force(false);
+            forcedBytes = channel.position();
+        }
+        Iterator<LogWrite> it = unforced.iterator();
+        while (it.hasNext()) {
+            LogWrite w = it.next();
+            if (force || w.durability != Durability.FSYNC) {
+                w.done.complete(null);
+            }
+            if (force) {
+                it.remove();
+            }
+        }
+    }
+}
+
+/**
+ * Id-keyed storage engine behind {@link PatientDB}. Writes to one table are
+ * serialized by the caller; reads run concurrently with them and never
+ * block. {@code patientdb.engine} selects the implementation: {@code heap}
+ * (default) keeps the {@link Patient} objects themselves, {@code columnar}
+ * keeps them as encoded columns, appending a row per write and compacting
+ * once superseded rows outnumber live ones.
+ */
+interface PatientTable {
+    Patient get(int id);
+    
+    void put(Patient patient);
+    
+    Patient remove(int id);
+    
+    int size();
+    
+    void clear();
+    
+    /**
+     * Id-ordered view of the patients with an id greater than {@code afterId};
+     * iteration is weakly consistent. It has no size, since a table that
+     * materializes rows could only count them by reading every one.
+     */
+    Iterable<Patient> after(int afterId);
+    
+    default Iterable<Patient> values() {
+        return after(Integer.MIN_VALUE);
+    }
+    
+    static PatientTable create() {
+        String engine = System.getProperty("patientdb.engine", "heap").trim().toLowerCase(Locale.ROOT);
+        switch (engine) {
+            case "heap":
+                return new HeapPatientTable();
+            case "columnar":
+                return new ColumnarPatientTable(Boolean.getBoolean("patientdb.offHeap"));
+            default:
+                throw new IllegalArgumentException("Unknown patientdb.engine " + engine);
+        }
+    }
+}
+
+/** Patients as objects in a skip list; every stored patient is the instance that was put. */
+final class HeapPatientTable implements PatientTable {
+    private final ConcurrentNavigableMap<Integer, Patient> patients = new ConcurrentSkipListMap<>();
+    
+    @Override
+    public Patient get(int id) {
+        return patients.get(id);
+    }
+    
+    @Override
+    public void put(Patient patient) {
+        patients.put(patient.getId(), patient);
+    }
+    
+    @Override
+    public Patient remove(int id) {
+        return patients.remove(id);
+    }
+    
+    @Override
+    public int size() {
+        return patients.size();
+    }
+    
+    @Override
+    public void clear() {
+        patients.clear();
+    }
+    
+    @Override
+    public Iterable<Patient> after(int afterId) {
+        return Collections.unmodifiableCollection(patients.tailMap(afterId, false).values());
+    }
+}
+
+/**
+ * Patients as structure-of-arrays columns. Rows live in chunks of
+ * {@link #CHUNK_ROWS}, each one buffer laid out column by column: age,
+ * dictionary codes for gender, blood group and diagnosis, the confidence
+ * score, the version, and references into two shared arenas, one holding
+ * name and history as UTF-8 and one holding each symptom list as a range of
+ * dictionary codes.
+ * With {@code offHeap} the buffers are direct, leaving only the id map and
+ * dictionaries on the Java heap.
+ *
+ * <p>A {@link Patient} is materialized on every read and never retained.
+ * Rows are immutable: replacing a patient appends a new row and repoints the
+ * id, and deleting clears the id. Once superseded and deleted rows
+ * outnumber the live ones (and fill at least a chunk), the write that
+ * tipped the balance copies the live rows into a fresh generation and swaps
+ * it in, so storage stays within about twice the live data and each update
+ * pays for its own copy over time. Row data is written before the id map
+ * entry that publishes it, so readers need no lock; a reader or iterator
+ * still holding the old generation keeps seeing it intact.
+ */
+final class ColumnarPatientTable implements PatientTable {
+    static final int CHUNK_ROWS = 1 << 14;
+    private static final int ID_PAGE_SHIFT = 16;
+    private static final int ID_PAGE = 1 << ID_PAGE_SHIFT;
+    
+    private static final int AGE = 0;
+    private static final int GENDER = AGE + 4 * CHUNK_ROWS;
+    private static final int BLOOD_GROUP = GENDER + 4 * CHUNK_ROWS;
+    private static final int DIAGNOSIS = BLOOD_GROUP + 4 * CHUNK_ROWS;
+    private static final int CONFIDENCE = DIAGNOSIS + 4 * CHUNK_ROWS;
+    private static final int TEXT = CONFIDENCE + 8 * CHUNK_ROWS;
+    private static final int NAME_LENGTH = TEXT + 8 * CHUNK_ROWS;
+    private static final int HISTORY_LENGTH = NAME_LENGTH + 4 * CHUNK_ROWS;
+    private static final int SYMPTOMS = HISTORY_LENGTH + 4 * CHUNK_ROWS;
+    private static final int SYMPTOM_COUNT = SYMPTOMS + 8 * CHUNK_ROWS;
+    private static final int VERSION = SYMPTOM_COUNT + 4 * CHUNK_ROWS;
+    static final int ROW_BYTES = (VERSION + 4 * CHUNK_ROWS) / CHUNK_ROWS;
+    
+    private final boolean offHeap;
+    private volatile Columns columns;
+    
+    ColumnarPatientTable(boolean offHeap) {
+        this.offHeap = offHeap;
+        this.columns = new Columns(offHeap);
+    }
+    
+    @Override
+    public Patient get(int id) {
+        Columns c = columns;
+        int row = c.row(id);
+        return row >= 0 ? c.materialize(id, row) : null;
+    }
+    
+    @Override
+    public void put(Patient patient) {
+        Columns c = columns;
+        c.map(patient.getId(), c.append(patient));
+        compactIfSparse(c);
+    }
+    
+    @Override
+    public Patient remove(int id) {
+        Columns c = columns;
+        int row = c.row(id);
+        if (row < 0) {
+            return null;
+        }
+        Patient removed = c.materialize(id, row);
+        c.unmap(id);
+        compactIfSparse(c);
+        return removed;
+    }
+    
+    @Override
+    public int size() {
+        return columns.live;
+    }
+    
+    @Override
+    public void clear() {
+        columns = new Columns(offHeap);
+    }
+    
+    @Override
+    public Iterable<Patient> after(int afterId) {
+        Columns c = columns;
+        int from = Math.max(afterId, 0) + 1;
+        return () -> c.iterator(from);
+    }
+    
+    private void compactIfSparse(Columns c) {
+        int dead = c.rows - c.live;
+        if (dead >= CHUNK_ROWS && dead >= c.live) {
+            columns = c.compacted();
+        }
+    }
+    
+    /** Total bytes held in row chunks and arenas, live or superseded. */
+    long allocatedBytes() {
+        Columns c = columns;
+        return (long) c.chunkCount * CHUNK_ROWS * ROW_BYTES + c.text.allocatedBytes() + c.symptoms.allocatedBytes();
+    }
+    
+    /** Everything one generation of the table owns; {@link #clear} swaps in a fresh one. */
+    private static final class Columns {
+        final boolean offHeap;
+        final StringDictionary categories = new StringDictionary();
+        final StringDictionary symptomNames = new StringDictionary();
+        final Arena text;
+        final Arena symptoms;
+        volatile ByteBuffer[] chunks = new ByteBuffer[16];
+        volatile AtomicIntegerArray[] ids = new AtomicIntegerArray[16];
+        volatile int maxId;
+        volatile int live;
+        int chunkCount;
+        int rows;
+        
+        Columns(boolean offHeap) {
+            this.offHeap = offHeap;
+            this.text = new Arena(offHeap);
+            this.symptoms = new Arena(offHeap);
+        }
+        
+        int append(Patient p) {
+            int row = rows;
+            int slot = row & (CHUNK_ROWS - 1);
+            if (slot == 0) {
+                if (chunkCount == chunks.length) {
+                    chunks = Arrays.copyOf(chunks, chunkCount * 2);
+                }
+                chunks[chunkCount++] = allocate(CHUNK_ROWS * ROW_BYTES, offHeap);
+            }
+            ByteBuffer chunk = chunks[row / CHUNK_ROWS];
+            
+            byte[] name = utf8(p.getName());
+            byte[] history = utf8(p.getMedicalHistory());
+            int nameLength = name != null ? name.length : 0;
+            int historyLength = history != null ? history.length : 0;
+            long textRef = text.reserve(nameLength + historyLength);
+            if (nameLength + historyLength > 0) {
+                ByteBuffer view = text.page(textRef).duplicate();
+                view.position(Arena.offset(textRef));
+                if (name != null) {
+                    view.put(name);
+                }
+                if (history != null) {
+                    view.put(history);
+                }
+            }
+            
+            List<String> list = p.getSymptoms();
+            int symptomCount = list != null ? list.size() : -1;
+            long symptomRef = symptoms.reserve(Math.max(symptomCount, 0) * 4);
+            if (symptomCount > 0) {
+                ByteBuffer page = symptoms.page(symptomRef);
+                int at = Arena.offset(symptomRef);
+                for (String symptom : list) {
+                    page.putInt(at, symptomNames.encode(symptom));
+                    at += 4;
+                }
+            }
+            
+            chunk.putInt(AGE + 4 * slot, p.getAge());
+            chunk.putInt(GENDER + 4 * slot, categories.encode(p.getGender()));
+            chunk.putInt(BLOOD_GROUP + 4 * slot, categories.encode(p.getBloodGroup()));
+            chunk.putInt(DIAGNOSIS + 4 * slot, categories.encode(p.getDiagnosis()));
+            chunk.putDouble(CONFIDENCE + 8 * slot, p.getConfidenceScore());
+            chunk.putLong(TEXT + 8 * slot, textRef);
+            chunk.putInt(NAME_LENGTH + 4 * slot, name != null ? nameLength : -1);
+            chunk.putInt(HISTORY_LENGTH + 4 * slot, history != null ? historyLength : -1);
+            chunk.putLong(SYMPTOMS + 8 * slot, symptomRef);
+            chunk.putInt(SYMPTOM_COUNT + 4 * slot, symptomCount);
+            chunk.putInt(VERSION + 4 * slot, p.getVersion());
+            rows++;
+            return row;
+        }
+        
+        Patient materialize(int id, int row) {
+            ByteBuffer chunk = chunks[row / CHUNK_ROWS];
+            int slot = row & (CHUNK_ROWS - 1);
+            Patient p = new Patient();
+            p.setId(id);
+            p.setAge(chunk.getInt(AGE + 4 * slot));
+            p.setGender(categories.decode(chunk.getInt(GENDER + 4 * slot)));
+            p.setBloodGroup(categories.decode(chunk.getInt(BLOOD_GROUP + 4 * slot)));
+            p.setDiagnosis(categories.decode(chunk.getInt(DIAGNOSIS + 4 * slot)));
+            p.setConfidenceScore(chunk.getDouble(CONFIDENCE + 8 * slot));
+            p.setVersion(chunk.getInt(VERSION + 4 * slot));
+            
+            long textRef = chunk.getLong(TEXT + 8 * slot);
+            int nameLength = chunk.getInt(NAME_LENGTH + 4 * slot);
+            int historyLength = chunk.getInt(HISTORY_LENGTH + 4 * slot);
+            ByteBuffer page = text.page(textRef);
+            int at = Arena.offset(textRef);
+            p.setName(string(page, at, nameLength));
+            p.setMedicalHistory(string(page, at + Math.max(nameLength, 0), historyLength));
+            
+            int symptomCount = chunk.getInt(SYMPTOM_COUNT + 4 * slot);
+            if (symptomCount < 0) {
+                p.setSymptoms(null);
+            } else {
+                long symptomRef = chunk.getLong(SYMPTOMS + 8 * slot);
+                List<String> list = new ArrayList<>(symptomCount);
+                if (symptomCount > 0) {
+                    page = symptoms.page(symptomRef);
+                    at = Arena.offset(symptomRef);
+                    for (int i = 0; i < symptomCount; i++) {
+                        list.add(symptomNames.decode(page.getInt(at + 4 * i)));
+                    }
+                }
+                p.setSymptoms(list);
+            }
+            return p;
+        }
+        
+        /** A new generation holding only the live rows, with text, symptoms and dictionaries rebuilt. */
+        Columns compacted() {
+            Columns fresh = new Columns(offHeap);
+            Iterator<Patient> it = iterator(1);
+            while (it.hasNext()) {
+                Patient p = it.next();
+                fresh.map(p.getId(), fresh.append(p));
+            }
+            return fresh;
+        }
+        
+        int row(int id) {
+            if (id <= 0) {
+                return -1;
+            }
+            AtomicIntegerArray[] pages = ids;
+            int page = id >>> ID_PAGE_SHIFT;
+            AtomicIntegerArray entries = page < pages.length ? pages[page] : null;
+            return entries != null ? entries.get(id & (ID_PAGE - 1)) - 1 : -1;
+        }
+        
+        void map(int id, int row) {
+            if (id <= 0) {
+                throw new IllegalArgumentException("Patient id must be positive: " + id);
+            }
+            int page = id >>> ID_PAGE_SHIFT;
+            AtomicIntegerArray[] pages = ids;
+            if (page >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(pages.length * 2, page + 1));
+                ids = pages;
+            }
+            if (pages[page] == null) {
+                pages[page] = new AtomicIntegerArray(ID_PAGE);
+                ids = pages;
+            }
+            if (pages[page].getAndSet(id & (ID_PAGE - 1), row + 1) == 0) {
+                live++;
+            }
+            if (id > maxId) {
+                maxId = id;
+            }
+        }
+        
+        void unmap(int id) {
+            AtomicIntegerArray entries = ids[id >>> ID_PAGE_SHIFT];
+            if (entries.getAndSet(id & (ID_PAGE - 1), 0) != 0) {
+                live--;
+            }
+        }
+        
+        Iterator<Patient> iterator(int from) {
+            return new Iterator<Patient>() {
+                private int nextId = from;
+                private Patient next;
+                
+                @Override
+                public boolean hasNext() {
+                    int last = maxId;
+                    while (next == null && nextId > 0 && nextId <= last) {
+                        AtomicIntegerArray[] pages = ids;
+                        int page = nextId >>> ID_PAGE_SHIFT;
+                        if (page < pages.length && pages[page] == null) {
+                            nextId = (page + 1) << ID_PAGE_SHIFT;
+                            continue;
+                        }
+                        int id = nextId++;
+                        int row = row(id);
+                        if (row >= 0) {
+                            next = materialize(id, row);
+                        }
+                    }
+                    return next != null;
+                }
+                
+                @Override
+                public Patient next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Patient p = next;
+                    next = null;
+                    return p;
+                }
+            };
+        }
+    }
+    
+    /** Dictionary of categorical strings; encoding is serialized with the other writes, decoding happens anywhere. */
+    private static final class StringDictionary {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private volatile String[] values = new String[16];
+        
+        int encode(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer code = codes.get(value);
+            if (code != null) {
+                return code;
+            }
+            int next = codes.size();
+            String[] current = values;
+            if (next == current.length) {
+                current = Arrays.copyOf(current, next * 2);
+            }
+            current[next] = value;
+            values = current;
+            codes.put(value, next);
+            return next;
+        }
+        
+        String decode(int code) {
+            return code >= 0 ? values[code] : null;
+        }
+    }
+    
+    /**
+     * Append-only pages addressed by references holding the page number in
+     * the high and the offset in the low 32 bits. An allocation never spans
+     * pages; one larger than {@link #PAGE} gets a page of its own.
+     */
+    private static final class Arena {
+        static final int PAGE = 1 << 20;
+        
+        private final boolean offHeap;
+        private volatile ByteBuffer[] pages = new ByteBuffer[16];
+        private int count;
+        private int used = PAGE;
+        private long allocated;
+        
+        Arena(boolean offHeap) {
+            this.offHeap = offHeap;
+        }
+        
+        long reserve(int bytes) {
+            if (bytes == 0) {
+                return 0;
+            }
+            ByteBuffer[] current = pages;
+            if (count > 0 && used + bytes <= current[count - 1].capacity()) {
+                long ref = ((long) (count - 1) << 32) | used;
+                used += bytes;
+                return ref;
+            }
+            if (count == current.length) {
+                current = Arrays.copyOf(current, count * 2);
+            }
+            int capacity = Math.max(PAGE, bytes);
+            current[count] = allocate(capacity, offHeap);
+            allocated += capacity;
+            pages = current;
+            used = bytes;
+            return (long) count++ << 32;
+        }
+        
+        ByteBuffer page(long ref) {
+            return pages[(int) (ref >>> 32)];
+        }
+        
+        static int offset(long ref) {
+            return (int) ref;
+        }
+        
+        long allocatedBytes() {
+            return allocated;
+        }
+    }
+    
+    private static ByteBuffer allocate(int bytes, boolean offHeap) {
+        return (offHeap ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes)).order(ByteOrder.nativeOrder());
+    }
+    
+    private static byte[] utf8(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+    
+    private static String string(ByteBuffer page, int at, int length) {
+        if (length < 0) {
+            return null;
+        }
+        if (length == 0) {
+            return "";
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer view = page.duplicate();
+        view.position(at);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+/**
+ * Durable storage under {@link PatientDB}: a write-ahead log plus periodic
+ * snapshots in one directory. Mutations are applied to memory and appended to
+ * the log in one critical section, so log order always matches memory order.
+ *
+ * <p>A snapshot rolls the log to a new segment inside that critical section
+ * and then copies the live map without blocking writers. Records in the new
+ * segment are replayed on top of the snapshot; because PUT and DELETE records
+ * are idempotent, mutations that the copy already saw are simply reapplied.
+ * Recovery loads the newest complete snapshot and replays the log tail.
+ */
+final class PatientStore implements Closeable {
+    private static final int SNAPSHOT_MAGIC = 0x50534E50;
+    private static final int SNAPSHOT_END = 0x50454E44;
+    /** Format 2 stores each patient's version after its id; format 1 snapshots are read as version 1. */
+    private static final int SNAPSHOT_FORMAT = 2;
+    private static final long SNAPSHOT_WINDOW = 1L << 30;
+    
+    private final Path dir;
+    private final PatientTable patients;
+    private final PatientLog log;
+    private final long snapshotEveryRecords;
+    private final ExecutorService snapshotter;
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+    private long nextLsn;
+    private long recordsSinceSnapshot;
+    
+    final int recoveredNextId;
+    final boolean fresh;
+    
+    private PatientStore(Path dir, PatientTable patients, long nextLsn, int nextId, boolean fresh,
+                         long fsyncIntervalMillis, long snapshotEveryRecords, Consumer<Runnable> exclusive)
+            throws IOException {
+        this.dir = dir;
+        this.patients = patients;
+        this.nextLsn = nextLsn;
+        this.recoveredNextId = nextId;
+        this.fresh = fresh;
+        this.snapshotEveryRecords = snapshotEveryRecords;
+        this.log = new PatientLog(dir, nextLsn, fsyncIntervalMillis, exclusive);
+        this.snapshotter = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "patient-snapshotter");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    /**
+     * Recovers {@code patients} from {@code dir} and opens the log for appends.
+     * {@code exclusive} runs an action while no writer can append; the log
+     * uses it to undo the records it lost if it fails.
+     */
+    static PatientStore open(Path dir, PatientTable patients, long fsyncIntervalMillis, long snapshotEveryRecords,
+                             Consumer<Runnable> exclusive) throws IOException {
+        long startNanos = System.nanoTime();
+        Files.createDirectories(dir);
+        
+        Path snapshot = latestSnapshot(dir);
+        boolean fresh = snapshot == null && PatientLog.segments(dir).isEmpty();
+        long replayFrom = 0;
+        int[] nextId = {1};
+        PatientCodec codec = new PatientCodec();
+        int fromSnapshot = 0;
+        if (snapshot != null) {
+            long[] header = readSnapshot(snapshot, patients, codec);
+            replayFrom = header[0];
+            nextId[0] = (int) header[1];
+            fromSnapshot = patients.size();
+        }
+        long snapshotNanos = System.nanoTime() - startNanos;
+        
+        long[] replayed = {0};
+        long lastLsn = PatientLog.replay(dir, replayFrom, record -> {
+            int id = record.payload.getInt();
+            if (record.type == PatientLog.PUT || record.type == PatientLog.PUT_VERSIONED) {
+                int version = record.type == PatientLog.PUT_VERSIONED ? record.payload.getInt() : 1;
+                Patient patient = codec.read(record.payload);
+                patient.setId(id);
+                patient.setVersion(version);
+                patients.put(patient);
+                nextId[0] = Math.max(nextId[0], id + 1);
+            } else if (record.type == PatientLog.DELETE) {
+                patients.remove(id);
+            } else {
+                throw new IOException("Unknown patient log record type " + record.type);
+            }
+            replayed[0]++;
+        });
+        
+        long totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        System.out.println("PatientDB recovered " + patients.size() + " patients from " + dir + " in "
+            + totalMillis + " ms (snapshot: " + fromSnapshot + " patients in "
+            + TimeUnit.NANOSECONDS.toMillis(snapshotNanos) + " ms, log: " + replayed[0] + " records)");
+        return new PatientStore(dir, patients, Math.max(lastLsn + 1, replayFrom), nextId[0], fresh,
+            fsyncIntervalMillis, snapshotEveryRecords, exclusive);
+    }
+    
+    /**
+     * Logs a PUT. Must be called while holding the patient's shard lock, so that
+     * the log orders the writes to one patient the way they were applied.
+     * {@code undo} takes the write back out of memory if the log fails first.
+     */
+    CompletableFuture<Void> logPut(int id, int version, byte[] encoded, Durability durability, Runnable undo) {
+        byte[] payload = new byte[8 + encoded.length];
+        ByteBuffer.wrap(payload).putInt(id).putInt(version).put(encoded);
+        return append(PatientLog.PUT_VERSIONED, payload, durability, undo);
+    }
+    
+    /** Logs a DELETE; must be called while holding the patient's shard lock. */
+    CompletableFuture<Void> logDelete(int id, Durability durability, Runnable undo) {
+        return append(PatientLog.DELETE, ByteBuffer.allocate(4).putInt(id).array(), durability, undo);
+    }
+    
+    /** The error that stopped the log, after which nothing more can be made durable; null while healthy. */
+    IOException failure() {
+        return log.failure();
+    }
+    
+    private synchronized CompletableFuture<Void> append(byte type, byte[] payload, Durability durability,
+                                                        Runnable undo) {
+        CompletableFuture<Void> done = log.append(nextLsn++, type, payload, durability, undo);
+        if (++recordsSinceSnapshot >= snapshotEveryRecords && snapshotRunning.compareAndSet(false, true)) {
+            recordsSinceSnapshot = 0;
+            snapshotter.execute(() -> {
+                try {
+                    snapshot();
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("PatientDB snapshot failed: " + e);
+                } finally {
+                    snapshotRunning.set(false);
+                }
+            });
+        }
+        return durability == Durability.ASYNC ? CompletableFuture.<Void>completedFuture(null) : done;
+    }
+    
+    /** Writes a snapshot and deletes the log segments and snapshots it supersedes. */
+    void snapshot() throws IOException {
+        long replayFrom;
+        int nextId;
+        CompletableFuture<Void> rolled;
+        synchronized (this) {
+            replayFrom = nextLsn;
+            nextId = PatientDB.peekNextId();
+            rolled = log.roll(replayFrom);
+        }
+        PatientDB.await(rolled);
+        
+        Path target = dir.resolve(String.format("snapshot-%020d.dat", replayFrom));
+        Path tmp = dir.resolve(target.getFileName() + ".tmp");
+        long count = 0;
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_FORMAT);
+            out.writeLong(replayFrom);
+            out.writeInt(nextId);
+            for (Patient patient : patients.values()) {
+                out.writeInt(patient.getId());
+                out.writeInt(patient.getVersion());
+                PatientCodec.write(out, patient);
+                count++;
+            }
+            out.writeInt(SNAPSHOT_END);
+            out.writeLong(count);
+            out.flush();
+            ch.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        
+        for (Path segment : PatientLog.segments(dir)) {
+            if (PatientLog.segmentStart(segment) < replayFrom) {
+                Files.deleteIfExists(segment);
+            }
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "snapshot-*.dat")) {
+            for (Path old : stream) {
+                if (!old.equals(target)) {
+                    Files.deleteIfExists(old);
+                }
+            }
+        }
+        System.out.println("PatientDB snapshot of " + count + " patients written to " + target);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+    
+    private static Path latestSnapshot(Path dir) throws IOException {
+        Path latest = null;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "snapshot-*.dat")) {
+            for (Path path : stream) {
+                if (latest == null || path.compareTo(latest) > 0) {
+                    latest = path;
+                }
+            }
+        }
+        return latest;
+    }
+    
+    /**
+     * Loads a snapshot through read-only mappings of at most 1 GiB each, so
+     * snapshots larger than a single buffer can address are supported.
+     * Returns {replayFromLsn, nextId}.
+     */
+    private static long[] readSnapshot(Path path, PatientTable patients, PatientCodec codec) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer header = ByteBuffer.allocate(20);
+            ByteBuffer trailer = ByteBuffer.allocate(12);
+            if (size < 32 || ch.read(header, 0) != 20 || ch.read(trailer, size - 12) != 12) {
+                throw new IOException(path + " is not a complete patient snapshot");
+            }
+            header.flip();
+            trailer.flip();
+            if (header.getInt() != SNAPSHOT_MAGIC || trailer.getInt() != SNAPSHOT_END) {
+                throw new IOException(path + " is not a complete patient snapshot");
+            }
+            int format = header.getInt();
+            if (format < 1 || format > SNAPSHOT_FORMAT) {
+                throw new IOException(path + " has unsupported snapshot format " + format);
+            }
+            long replayFrom = header.getLong();
+            int nextId = header.getInt();
+            long count = trailer.getLong();
+            
+            long offset = 20;
+            long end = size - 12;
+            ByteBuffer window = null;
+            for (long i = 0; i < count; ) {
+                if (window == null) {
+                    window = ch.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(SNAPSHOT_WINDOW, end - offset));
+                }
+                int start = window.position();
+                try {
+                    int id = window.getInt();
+                    int version = format >= 2 ? window.getInt() : 1;
+                    Patient patient = codec.read(window);
+                    patient.setId(id);
+                    patient.setVersion(version);
+                    patients.put(patient);
+                    i++;
+                } catch (BufferUnderflowException e) {
+                    if (start == 0 || offset + window.limit() >= end) {
+                        throw new IOException(path + " is truncated", e);
+                    }
+                    offset += start;
+                    window = null;
+                }
+            }
+            return new long[] {replayFrom, nextId};
+        }
+    }
+}
+
+/**
+ * Filters for {@code GET /api/patients}. Categorical values and symptoms are
+ * compared case-insensitively; every symptom listed must be present.
+ */
+final class PatientQuery {
+    String diagnosis;
+    String gender;
+    String bloodGroup;
+    List<String> symptoms = new ArrayList<>();
+    Integer minAge;
+    Integer maxAge;
+    Double minConfidence;
+    
+    /** Returns null when the request carries no filter parameters. */
+    static PatientQuery fromRequest(HttpServletRequest req) {
+        PatientQuery q = new PatientQuery();
+        q.diagnosis = PatientIndex.key(req.getParameter("diagnosis"));
+        q.gender = PatientIndex.key(req.getParameter("gender"));
+        q.bloodGroup = PatientIndex.key(req.getParameter("bloodGroup"));
+        String[] symptoms = req.getParameterValues("symptom");
+        if (symptoms != null) {
+            for (String symptom : symptoms) {
+                q.symptoms.add(PatientIndex.key(symptom));
+            }
+        }
+        String minAge = req.getParameter("minAge");
+        String maxAge = req.getParameter("maxAge");
+        String minConfidence = req.getParameter("minConfidence");
+        q.minAge = minAge != null ? Integer.valueOf(minAge) : null;
+        q.maxAge = maxAge != null ? Integer.valueOf(maxAge) : null;
+        q.minConfidence = minConfidence != null ? Double.valueOf(minConfidence) : null;
+        return q.isEmpty() ? null : q;
+    }
+    
+    boolean isEmpty() {
+        return diagnosis == null && gender == null && bloodGroup == null && symptoms.isEmpty()
+            && minAge == null && maxAge == null && minConfidence == null;
+    }
+    
+    boolean matches(Patient p) {
+        if (diagnosis != null && !diagnosis.equals(PatientIndex.key(p.getDiagnosis()))) return false;
+        if (gender != null && !gender.equals(PatientIndex.key(p.getGender()))) return false;
+        if (bloodGroup != null && !bloodGroup.equals(PatientIndex.key(p.getBloodGroup()))) return false;
+        if (minAge != null && p.getAge() < minAge) return false;
+        if (maxAge != null && p.getAge() > maxAge) return false;
+        if (minConfidence != null && p.getConfidenceScore() < minConfidence) return false;
+        if (!symptoms.isEmpty()) {
+            if (p.getSymptoms() == null) return false;
+            for (String wanted : symptoms) {
+                boolean found = false;
+                for (String symptom : p.getSymptoms()) {
+                    if (wanted.equals(PatientIndex.key(symptom))) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) return false;
+            }
+        }
+        return true;
+    }
+}
+
+/**
+ * Secondary indexes over the patient table: hash indexes from each
+ * categorical value (and each symptom) to patient ids, and navigable indexes
+ * on age and confidence score. Updates to a patient happen under its
+ * PatientDB shard lock; queries run without locking and re-check every
+ * candidate against the live table, so a concurrent mutation can never
+ * produce a wrong row.
+ *
+ * <p>A query drives from its most selective filter: the smallest hash bucket,
+ * or a range whose size is counted only up to the best bucket found so far,
+ * so the cost is proportional to the rows the chosen filter matches rather
+ * than to the table size.
+ */
+final class PatientIndex {
+    private final Map<String, Set<Integer>> byDiagnosis = new ConcurrentHashMap<>();
+    private final Map<String, Set<Integer>> byGender = new ConcurrentHashMap<>();
+    private final Map<String, Set<Integer>> byBloodGroup = new ConcurrentHashMap<>();
+    private final Map<String, Set<Integer>> bySymptom = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Set<Integer>> byAge = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Double, Set<Integer>> byConfidence = new ConcurrentSkipListMap<>();
+    
+    static String key(String value) {
+        if (value == null) {
+            return null;
+        }
+        String key = value.trim().toLowerCase(Locale.ROOT);
+        return key.isEmpty() ? null : key;
+    }
+    
+    void add(Patient p) {
+        int id = p.getId();
+        put(byDiagnosis, key(p.getDiagnosis()), id);
+        put(byGender, key(p.getGender()), id);
+        put(byBloodGroup, key(p.getBloodGroup()), id);
+        if (p.getSymptoms() != null) {
+            for (String symptom : p.getSymptoms()) {
+                put(bySymptom, key(symptom), id);
+            }
+        }
+        put(byAge, p.getAge(), id);
+        put(byConfidence, p.getConfidenceScore(), id);
+    }
+    
+    void remove(Patient p) {
+        int id = p.getId();
+        take(byDiagnosis, key(p.getDiagnosis()), id);
+        take(byGender, key(p.getGender()), id);
+        take(byBloodGroup, key(p.getBloodGroup()), id);
+        if (p.getSymptoms() != null) {
+            for (String symptom : p.getSymptoms()) {
+                take(bySymptom, key(symptom), id);
+            }
+        }
+        take(byAge, p.getAge(), id);
+        take(byConfidence, p.getConfidenceScore(), id);
+    }
+    
+    void clear() {
+        byDiagnosis.clear();
+        byGender.clear();
+        byBloodGroup.clear();
+        bySymptom.clear();
+        byAge.clear();
+        byConfidence.clear();
+    }
+    
+    /**
+     * Returns up to {@code limit} patients matching {@code q} with ids above
+     * {@code afterId}, ordered by id. Candidates at or before the cursor are
+     * dropped by id alone, and rows are fetched and matched in id order only
+     * until the page is full, so paging through a large result never re-reads
+     * the rows of earlier pages.
+     */
+    List<Patient> query(PatientQuery q, PatientTable patients, int afterId, int limit) {
+        if (q.minAge != null && q.maxAge != null && q.minAge > q.maxAge) {
+            return new ArrayList<>();
+        }
+        Collection<Integer> best = null;
+        for (Collection<Integer> bucket : hashCandidates(q)) {
+            if (best == null || bucket.size() < best.size()) {
+                best = bucket;
+            }
+        }
+        if (best == null || !best.isEmpty()) {
+            int budget = best != null ? best.size() : Integer.MAX_VALUE;
+            NavigableMap<Integer, Set<Integer>> ages = null;
+            if (q.minAge != null || q.maxAge != null) {
+                ages = byAge.subMap(q.minAge != null ? q.minAge : Integer.MIN_VALUE, true,
+                    q.maxAge != null ? q.maxAge : Integer.MAX_VALUE, true);
+            }
+            NavigableMap<Double, Set<Integer>> confidences = q.minConfidence != null
+                ? byConfidence.tailMap(q.minConfidence, true) : null;
+            int ageCount = ages != null ? countUpTo(ages.values(), budget) : Integer.MAX_VALUE;
+            int confidenceCount = confidences != null ? countUpTo(confidences.values(), budget) : Integer.MAX_VALUE;
+            if (ageCount < budget) {
+                best = flatten(ages.values(), ageCount);
+                budget = ageCount;
+            }
+            if (confidenceCount < budget) {
+                best = flatten(confidences.values(), confidenceCount);
+            }
+        }
+        
+        List<Patient> results = new ArrayList<>();
+        if (best == null) {
+            return results;
+        }
+        int[] ids = new int[best.size()];
+        int count = 0;
+        for (Integer id : best) {
+            if (id > afterId) {
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2 + 1);
+                }
+                ids[count++] = id;
+            }
+        }
+        Arrays.sort(ids, 0, count);
+        for (int i = 0; i < count && results.size() < limit; i++) {
+            Patient p = patients.get(ids[i]);
+            if (p != null && q.matches(p)) {
+                results.add(p);
+            }
+        }
+        return results;
+    }
+    
+    private List<Collection<Integer>> hashCandidates(PatientQuery q) {
+        List<Collection<Integer>> buckets = new ArrayList<>();
+        if (q.diagnosis != null) buckets.add(bucket(byDiagnosis, q.diagnosis));
+        if (q.gender != null) buckets.add(bucket(byGender, q.gender));
+        if (q.bloodGroup != null) buckets.add(bucket(byBloodGroup, q.bloodGroup));
+        for (String symptom : q.symptoms) {
+            buckets.add(bucket(bySymptom, symptom));
+        }
+        return buckets;
+    }
+    
+    private static Collection<Integer> bucket(Map<String, Set<Integer>> index, String key) {
+        Set<Integer> ids = index.get(key);
+        return ids != null ? ids : Collections.<Integer>emptySet();
+    }
+    
+    private static int countUpTo(Collection<Set<Integer>> buckets, int budget) {
+        int count = 0;
+        for (Set<Integer> ids : buckets) {
+            count += ids.size();
+            if (count >= budget) {
+                return Integer.MAX_VALUE;
+            }
+        }
+        return count;
+    }
+    
+    private static Collection<Integer> flatten(Collection<Set<Integer>> buckets, int sizeHint) {
+        List<Integer> ids = new ArrayList<>(sizeHint == Integer.MAX_VALUE ? 16 : sizeHint);
+        for (Set<Integer> bucket : buckets) {
+            ids.addAll(bucket);
+        }
+        return ids;
+    }
+    
+    private static <K> void put(Map<K, Set<Integer>> index, K key, int id) {
+        if (key == null) {
+            return;
+        }
+        index.compute(key, (k, ids) -> {
+            if (ids == null) {
+                ids = ConcurrentHashMap.newKeySet();
+            }
+            ids.add(id);
+            return ids;
+        });
+    }
+    
+    private static <K> void take(Map<K, Set<Integer>> index, K key, int id) {
+        if (key == null) {
+            return;
+        }
+        index.computeIfPresent(key, (k, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+}
+
+/**
+ * Population aggregates behind {@code /api/analytics}, updated by PatientDB
+ * on every add, update and delete so reads never touch the patients themselves.
+ * Counters are {@link LongAdder}s and histograms have fixed buckets, so a
+ * read costs the same with a hundred patients as with a hundred million.
+ * Diagnoses are grouped case-insensitively under the first spelling seen.
+ *
+ * <p>Adds and deletes are also counted per minute in a ring covering the last
+ * {@link #WINDOW_MINUTES}, so rollups over a recent window sum at most that
+ * many slots. Patients recovered at startup count towards the totals only, as
+ * their creation time is not stored.
+ */
+final class PatientAnalytics {
+    static final int WINDOW_MINUTES = 24 * 60;
+    private static final int AGE_BUCKET_WIDTH = 10;
+    private static final int AGE_BUCKETS = 11;
+    private static final int CONFIDENCE_BUCKET_WIDTH = 10;
+    private static final int CONFIDENCE_BUCKETS = 10;
+    
+    private final Map<String, Condition> conditions = new ConcurrentHashMap<>();
+    private final LongAdder patients = new LongAdder();
+    private final LongAdder[] confidence = adders(CONFIDENCE_BUCKETS);
+    private final Slot[] ring = new Slot[WINDOW_MINUTES];
+    
+    PatientAnalytics() {
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new Slot();
+        }
+    }
+    
+    /** Counts a newly created patient, including in the current minute. */
+    void add(Patient p) {
+        Condition condition = load(p);
+        Slot slot = slot(currentMinute());
+        slot.added.increment();
+        slot.byDiagnosis.computeIfAbsent(condition.key, k -> new LongAdder()).increment();
+    }
+    
+    /** Counts a patient towards the totals only. */
+    Condition load(Patient p) {
+        Condition condition = condition(p.getDiagnosis());
+        patients.increment();
+        condition.count.increment();
+        condition.ageSum.add(p.getAge());
+        condition.ages[ageBucket(p.getAge())].increment();
+        int bucket = confidenceBucket(p.getConfidenceScore());
+        condition.confidence[bucket].increment();
+        confidence[bucket].increment();
+        return condition;
+    }
+    
+    void remove(Patient p) {
+        unload(p);
+        slot(currentMinute()).deleted.increment();
+    }
+    
+    /** Moves a patient's contribution from its old to its new values; an update is neither an add nor a delete. */
+    void update(Patient old, Patient updated) {
+        unload(old);
+        load(updated);
+    }
+    
+    private void unload(Patient p) {
+        Condition condition = condition(p.getDiagnosis());
+        patients.decrement();
+        condition.count.decrement();
+        condition.ageSum.add(-p.getAge());
+        condition.ages[ageBucket(p.getAge())].decrement();
+        int bucket = confidenceBucket(p.getConfidenceScore());
+        condition.confidence[bucket].decrement();
+        confidence[bucket].decrement();
+    }
+    
+    void clear() {
+        conditions.clear();
+        patients.reset();
+        for (LongAdder adder : confidence) {
+            adder.reset();
+        }
+        for (Slot slot : ring) {
+            synchronized (slot) {
+                slot.minute = -1;
+            }
+        }
+    }
+    
+    Summary summary() {
+        Summary summary = new Summary();
+        summary.patients = patients.sum();
+        summary.prevalence = prevalence();
+        summary.confidence = histogram(confidence, CONFIDENCE_BUCKET_WIDTH);
+        summary.agesByDiagnosis = agesByDiagnosis();
+        summary.lastHour = window(60);
+        summary.lastDay = window(WINDOW_MINUTES);
+        return summary;
+    }
+    
+    /** Diagnoses by descending patient count. */
+    List<Prevalence> prevalence() {
+        long total = patients.sum();
+        List<Prevalence> result = new ArrayList<>();
+        for (Condition condition : conditions.values()) {
+            long count = condition.count.sum();
+            if (count > 0) {
+                Prevalence p = new Prevalence(condition.diagnosis, count, total);
+                p.meanAge = (double) condition.ageSum.sum() / count;
+                result.add(p);
+            }
+        }
+        result.sort(Prevalence.BY_COUNT);
+        return result;
+    }
+    
+    /** Confidence histogram over all patients, or those with {@code diagnosis}; null if no such diagnosis. */
+    Histogram confidence(String diagnosis) {
+        if (diagnosis == null) {
+            return histogram(confidence, CONFIDENCE_BUCKET_WIDTH);
+        }
+        Condition condition = conditions.get(key(diagnosis));
+        return condition != null ? histogram(condition.confidence, CONFIDENCE_BUCKET_WIDTH) : null;
+    }
+    
+    /** Age histogram of patients with {@code diagnosis}; null if no such diagnosis. */
+    Histogram ages(String diagnosis) {
+        Condition condition = conditions.get(key(diagnosis));
+        return condition != null ? histogram(condition.ages, AGE_BUCKET_WIDTH) : null;
+    }
+    
+    Map<String, Histogram> agesByDiagnosis() {
+        Map<String, Histogram> result = new TreeMap<>();
+        for (Condition condition : conditions.values()) {
+            if (condition.count.sum() > 0) {
+                result.put(condition.diagnosis != null ? condition.diagnosis : "", histogram(condition.ages, AGE_BUCKET_WIDTH));
+            }
+        }
+        return result;
+    }
+    
+    /** Adds and deletes in the last {@code minutes} minutes, including the current one. */
+    Rollup window(int minutes) {
+        if (minutes < 1 || minutes > WINDOW_MINUTES) {
+            throw new IllegalArgumentException("Window must be 1 to " + WINDOW_MINUTES + " minutes");
+        }
+        long now = currentMinute();
+        Rollup rollup = new Rollup();
+        rollup.minutes = minutes;
+        Map<String, long[]> byKey = new HashMap<>();
+        for (long minute = now - minutes + 1; minute <= now; minute++) {
+            Slot slot = ring[(int) (minute % WINDOW_MINUTES)];
+            if (slot.minute != minute) {
+                continue;
+            }
+            rollup.added += slot.added.sum();
+            rollup.deleted += slot.deleted.sum();
+            for (Map.Entry<String, LongAdder> e : slot.byDiagnosis.entrySet()) {
+                byKey.computeIfAbsent(e.getKey(), k -> new long[1])[0] += e.getValue().sum();
+            }
+        }
+        rollup.addedByDiagnosis = new ArrayList<>(byKey.size());
+        for (Map.Entry<String, long[]> e : byKey.entrySet()) {
+            Condition condition = conditions.get(e.getKey());
+            String diagnosis = condition != null ? condition.diagnosis : e.getKey();
+            rollup.addedByDiagnosis.add(new Prevalence(diagnosis, e.getValue()[0], rollup.added));
+        }
+        rollup.addedByDiagnosis.sort(Prevalence.BY_COUNT);
+        return rollup;
+    }
+    
+    private Condition condition(String diagnosis) {
+        String key = key(diagnosis);
+        Condition condition = conditions.get(key);
+        if (condition == null) {
+            condition = conditions.computeIfAbsent(key,
+                k -> new Condition(k, diagnosis != null && !k.isEmpty() ? diagnosis.trim() : null));
+        }
+        return condition;
+    }
+    
+    private static String key(String diagnosis) {
+        String key = PatientIndex.key(diagnosis);
+        return key != null ? key : "";
+    }
+    
+    private Slot slot(long minute) {
+        Slot slot = ring[(int) (minute % WINDOW_MINUTES)];
+        if (slot.minute != minute) {
+            synchronized (slot) {
+                if (slot.minute != minute) {
+                    slot.added.reset();
+                    slot.deleted.reset();
+                    slot.byDiagnosis.clear();
+                    slot.minute = minute;
+                }
+            }
+        }
+        return slot;
+    }
+    
+    private static long currentMinute() {
+        return System.currentTimeMillis() / 60_000L;
+    }
+    
+    private static int ageBucket(int age) {
+        return Math.min(Math.max(age, 0) / AGE_BUCKET_WIDTH, AGE_BUCKETS - 1);
+    }
+    
+    private static int confidenceBucket(double confidence) {
+        if (!(confidence > 0)) {
+            return 0;
+        }
+        return Math.min((int) (confidence / CONFIDENCE_BUCKET_WIDTH), CONFIDENCE_BUCKETS - 1);
+    }
+    
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+    
+    private static Histogram histogram(LongAdder[] buckets, int width) {
+        Histogram histogram = new Histogram();
+        histogram.lowerBounds = new int[buckets.length];
+        histogram.counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            histogram.lowerBounds[i] = i * width;
+            histogram.counts[i] = buckets[i].sum();
+        }
+        return histogram;
+    }
+    
+    private static final class Condition {
+        final String key;
+        final String diagnosis;
+        final LongAdder count = new LongAdder();
+        final LongAdder ageSum = new LongAdder();
+        final LongAdder[] ages = adders(AGE_BUCKETS);
+        final LongAdder[] confidence = adders(CONFIDENCE_BUCKETS);
+        
+        Condition(String key, String diagnosis) {
+            this.key = key;
+            this.diagnosis = diagnosis;
+        }
+    }
+    
+    private static final class Slot {
+        volatile long minute = -1;
+        final LongAdder added = new LongAdder();
+        final LongAdder deleted = new LongAdder();
+        final Map<String, LongAdder> byDiagnosis = new ConcurrentHashMap<>();
+    }
+    
+    static final class Summary {
+        long patients;
+        List<Prevalence> prevalence;
+        Histogram confidence;
+        Map<String, Histogram> agesByDiagnosis;
+        Rollup lastHour;
+        Rollup lastDay;
+    }
+    
+    static final class Prevalence {
+        static final Comparator<Prevalence> BY_COUNT = (a, b) -> Long.compare(b.count, a.count);
+        
+        String diagnosis;
+        long count;
+        double share;
+        Double meanAge;
+        
+        Prevalence(String diagnosis, long count, long total) {
+            this.diagnosis = diagnosis;
+            this.count = count;
+            this.share = total > 0 ? (double) count / total : 0;
+        }
+    }
+    
+    /**
+     * Bucket {@code i} covers {@code [lowerBounds[i], lowerBounds[i + 1])}. Values below the first bound
+     * are counted in the first bucket, and the last bucket is open-ended.
+     */
+    static final class Histogram {
+        int[] lowerBounds;
+        long[] counts;
+    }
+    
+    static final class Rollup {
+        int minutes;
+        long added;
+        long deleted;
+        List<Prevalence> addedByDiagnosis;
+    }
+}
+
+/**
+ * Spreads patients over a power-of-two number of {@link PatientTable}s by id,
+ * each guarded by its own lock, so writers to different shards never contend.
+ * Callers hold {@link #lock} for an id while writing it; {@link #lockAll}
+ * excludes every writer. Id-ordered views merge the shards' own views.
+ */
+final class ShardedPatientTable implements PatientTable {
+    private final PatientTable[] shards;
+    private final ReentrantLock[] locks;
+    private final int mask;
+    
+    ShardedPatientTable(int count, Supplier<PatientTable> factory) {
+        int n = Integer.highestOneBit(Math.max(1, count - 1) << 1);
+        shards = new PatientTable[n];
+        locks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) {
+            shards[i] = factory.get();
+            locks[i] = new ReentrantLock();
+        }
+        mask = n - 1;
+    }
+    
+    int shardCount() {
+        return shards.length;
+    }
+    
+    ReentrantLock lock(int id) {
+        return locks[id & mask];
+    }
+    
+    void lockAll() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+    }
+    
+    void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+    
+    @Override
+    public Patient get(int id) {
+        return shards[id & mask].get(id);
+    }
+    
+    @Override
+    public void put(Patient patient) {
+        shards[patient.getId() & mask].put(patient);
+    }
+    
+    @Override
+    public Patient remove(int id) {
+        return shards[id & mask].remove(id);
+    }
+    
+    @Override
+    public int size() {
+        int size = 0;
+        for (PatientTable shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+    
+    @Override
+    public void clear() {
+        for (PatientTable shard : shards) {
+            shard.clear();
+        }
+    }
+    
+    @Override
+    public Iterable<Patient> after(int afterId) {
+        if (shards.length == 1) {
+            return shards[0].after(afterId);
+        }
+        return () -> new MergeIterator(afterId);
+    }
+    
+    /** Merges the shards' id-ordered iterators, holding the next patient of each in a heap. */
+    private final class MergeIterator implements Iterator<Patient> {
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(shards.length,
+            Comparator.comparingInt(head -> head.patient.getId()));
+        
+        MergeIterator(int afterId) {
+            for (PatientTable shard : shards) {
+                Iterator<Patient> it = shard.after(afterId).iterator();
+                if (it.hasNext()) {
+                    heads.add(new Head(it.next(), it));
+                }
+            }
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+        
+        @Override
+        public Patient next() {
+            Head head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            Patient next = head.patient;
+            if (head.rest.hasNext()) {
+                head.patient = head.rest.next();
+                heads.add(head);
+            }
+            return next;
+        }
+    }
+    
+    private static final class Head {
+        Patient patient;
+        final Iterator<Patient> rest;
+        
+        Head(Patient patient, Iterator<Patient> rest) {
+            this.patient = patient;
+            this.rest = rest;
+        }
+    }
+}
+
+/**
+ * Lock-free patient id allocation from an atomic sequence. With
+ * {@code patientdb.nodeBits} set, the top bits of every id hold
+ * {@code patientdb.node}, so each instance of a multi-instance deployment
+ * allocates from its own range of {@code 2^(31 - nodeBits)} ids.
+ */
+final class PatientIds {
+    private final int first;
+    private final int last;
+    private final AtomicInteger next;
+    
+    PatientIds(int node, int nodeBits) {
+        if (nodeBits < 0 || nodeBits > 16) {
+            throw new IllegalArgumentException("patientdb.nodeBits must be between 0 and 16: " + nodeBits);
+        }
+        if (node < 0 || node >= 1 << nodeBits) {
+            throw new IllegalArgumentException("patientdb.node must be between 0 and " + ((1 << nodeBits) - 1) + ": " + node);
+        }
+        long span = 1L << (31 - nodeBits);
+        first = (int) Math.max(1, node * span);
+        last = (int) (node * span + span - 1);
+        next = new AtomicInteger(first);
+    }
+    
+    static PatientIds fromProperties() {
+        return new PatientIds(Integer.getInteger("patientdb.node", 0), Integer.getInteger("patientdb.nodeBits", 0));
+    }
+    
+    int allocate() {
+        return allocate(1);
+    }
+    
+    /** Allocates {@code count} consecutive ids and returns the first. */
+    int allocate(int count) {
+        int id = next.getAndAdd(count);
+        if (id < first || (long) id + count - 1 > last) {
+            throw new IllegalStateException("Patient id range " + first + ".." + last + " is exhausted");
+        }
+        return id;
+    }
+    
+    boolean owns(int id) {
+        return id >= first && id <= last;
+    }
+    
+    int peek() {
+        return next.get();
+    }
+    
+    /** Continues after {@code maxUsed}, or from the start of the range if this node has used no id yet. */
+    void resume(int maxUsed) {
+        next.set(owns(maxUsed) ? maxUsed + 1 : first);
+    }
+}
+
+/** Thrown when an update names a version that is no longer current; carries the current patient. */
+final class StaleVersionException extends RuntimeException {
+    final transient Patient current;
+    
+    StaleVersionException(Patient current) {
+        super("Patient " + current.getId() + " is at version " + current.getVersion());
+        this.current = current;
+    }
+}
+
+/**
+ * Change feed behind {@code /api/patients/stream}. PatientDB publishes every
+ * add, update and delete, while still holding the patient's shard lock, into a
+ * ring of {@code patientdb.feed.capacity} events (default 16384). Publishing
+ * is serialized on the feed, so the ring has a single writer and readers need
+ * no lock: an event is an immutable object and a reader that finds a newer
+ * sequence in a slot knows it has been lapped. Event ids are
+ * {@code <epoch>-<sequence>}, the epoch being this process's start, so a
+ * {@code Last-Event-ID} from before a restart is recognised.
+ * <p>
+ * Subscribers hold no thread. One dispatcher thread writes to all of them with
+ * non-blocking servlet output, batching whatever is pending into one write, and
+ * sends a comment line as a heartbeat every {@code patientdb.feed.heartbeatMillis}
+ * (default 15000) when idle. A subscriber whose client cannot keep up is never
+ * buffered for: once it falls a full ring behind, or asks to resume from an
+ * event the ring no longer holds, it gets a {@code resync} event whose id is
+ * the newest sequence and is disconnected. The client should then reload the
+ * patients it shows; EventSource reconnects with that id and carries on from
+ * there.
+ */
+final class PatientFeed implements Runnable {
+    private static final int MAX_BATCH = 256;
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PREAMBLE = "retry: 2000\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final Gson GSON = new Gson();
+    
+    private final Event[] ring;
+    private final int mask;
+    private final long epoch = System.currentTimeMillis();
+    private final long heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("patientdb.feed.heartbeatMillis", 15000L));
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final LongAdder dropped = Metrics.counter("patient_feed_dropped_total",
+        "Feed subscribers sent a resync event, or dropped, because the ring no longer held their next event.", "");
+    private volatile long published;
+    private boolean signalled;
+    private Thread dispatcher;
+    
+    PatientFeed(int capacity) {
+        int n = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        ring = new Event[n];
+        mask = n - 1;
+        Metrics.gauge("patient_feed_subscribers", "Open /api/patients/stream connections.", "", subscribers::size);
+        Metrics.counter("patient_feed_events_total", "Events published to the patient change feed.", "", () -> published);
+    }
+    
+    /** Publishes {@code type} for {@code patient}, or for a deleted id when {@code patient} is null. */
+    synchronized void publish(String type, int patientId, Patient patient) {
+        long sequence = published + 1;
+        ring[(int) (sequence & mask)] = new Event(sequence, type, patientId, patient);
+        published = sequence;
+        if (!subscribers.isEmpty()) {
+            signalled = true;
+            notifyAll();
+        }
+    }
+    
+    long published() {
+        return published;
+    }
+    
+    /**
+     * Streams events to {@code context} from after {@code lastEventId}, or
+     * from now on if it is null. The response must not have been written to.
+     */
+    void subscribe(AsyncContext context, String lastEventId) throws IOException {
+        long head = published;
+        long cursor = head;
+        boolean resync = false;
+        if (lastEventId != null) {
+            long sequence = parse(lastEventId);
+            resync = sequence < 0 || sequence > head || head - sequence > ring.length;
+            cursor = resync ? head : sequence;
+        }
+        Subscriber subscriber = new Subscriber(context, cursor, resync);
+        context.addListener(subscriber);
+        synchronized (this) {
+            if (dispatcher == null) {
+                dispatcher = new Thread(this, "patient-feed");
+                dispatcher.setDaemon(true);
+                dispatcher.start();
+            }
+        }
+        subscribers.add(subscriber);
+        subscriber.out.setWriteListener(subscriber);
+    }
+    
+    /** The sequence in an id this process issued, or -1 for any other id. */
+    private long parse(String id) {
+        int dash = id.indexOf('-');
+        try {
+            if (dash > 0 && Long.parseLong(id.substring(0, dash).trim()) == epoch) {
+                return Long.parseLong(id.substring(dash + 1).trim());
+            }
+        } catch (NumberFormatException e) {
+            // Not one of ours; the subscriber resyncs.
+        }
+        return -1;
+    }
+    
+    private synchronized void signal() {
+        signalled = true;
+        notifyAll();
+    }
+    
+    @Override
+    public void run() {
+        long nextHeartbeat = System.nanoTime() + heartbeatNanos;
+        while (true) {
+            synchronized (this) {
+                long wait;
+                while (!signalled && (wait = nextHeartbeat - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                signalled = false;
+            }
+            boolean heartbeat = System.nanoTime() - nextHeartbeat >= 0;
+            if (heartbeat) {
+                nextHeartbeat = System.nanoTime() + heartbeatNanos;
+            }
+            long head = published;
+            for (Subscriber subscriber : subscribers) {
+                subscriber.drain(head, heartbeat);
+            }
+        }
+    }
+    
+    private String id(long sequence) {
+        return epoch + "-" + sequence;
+    }
+    
+    /** One change; its SSE frame is encoded on first use and shared by every subscriber. */
+    private final class Event {
+        final long sequence;
+        final String type;
+        final int patientId;
+        final Patient patient;
+        private volatile byte[] frame;
+        
+        Event(long sequence, String type, int patientId, Patient patient) {
+            this.sequence = sequence;
+            this.type = type;
+            this.patientId = patientId;
+            this.patient = patient;
+        }
+        
+        byte[] frame() {
+            byte[] f = frame;
+            if (f == null) {
+                String data = patient != null ? GSON.toJson(patient) : "{\"id\":" + patientId + "}";
+                f = ("id: " + id(sequence) + "\nevent: " + type + "\ndata: " + data + "\n\n")
+                    .getBytes(StandardCharsets.UTF_8);
+                frame = f;
+            }
+            return f;
+        }
+    }
+    
+    /**
+     * One open stream. Only the dispatcher thread writes to it; the container
+     * callbacks just wake the dispatcher or mark the stream closed.
+     */
+    private final class Subscriber implements WriteListener, AsyncListener {
+        final AsyncContext context;
+        final ServletOutputStream out;
+        private long cursor;
+        private boolean resync;
+        private boolean started;
+        private boolean unflushed;
+        private boolean closing;
+        private volatile boolean closed;
+        
+        Subscriber(AsyncContext context, long cursor, boolean resync) throws IOException {
+            this.context = context;
+            this.out = context.getResponse().getOutputStream();
+            this.cursor = cursor;
+            this.resync = resync;
+        }
+        
+        void drain(long head, boolean heartbeat) {
+            if (closed) {
+                return;
+            }
+            try {
+                if (!resync && head - cursor > ring.length) {
+                    resync = true;
+                    if (!out.isReady()) {
+                        dropped.increment();
+                        close();
+                        return;
+                    }
+                }
+                ByteArrayOutputStream batch = null;
+                while (!closed && out.isReady()) {
+                    if (unflushed) {
+                        unflushed = false;
+                        out.flush();
+                    } else if (closing) {
+                        close();
+                    } else if (!started) {
+                        started = true;
+                        out.write(PREAMBLE);
+                        unflushed = true;
+                    } else if (resync) {
+                        dropped.increment();
+                        out.write(("id: " + id(head) + "\nevent: resync\ndata: {}\n\n").getBytes(StandardCharsets.US_ASCII));
+                        unflushed = true;
+                        closing = true;
+                    } else if (cursor < head) {
+                        if (batch == null) {
+                            batch = new ByteArrayOutputStream(4096);
+                        }
+                        batch.reset();
+                        long end = Math.min(head, cursor + MAX_BATCH);
+                        for (long sequence = cursor + 1; sequence <= end; sequence++) {
+                            Event event = ring[(int) (sequence & mask)];
+                            if (event == null || event.sequence != sequence) {
+                                resync = true;
+                                break;
+                            }
+                            batch.write(event.frame());
+                            cursor = sequence;
+                        }
+                        if (batch.size() > 0) {
+                            batch.writeTo(out);
+                            unflushed = true;
+                            heartbeat = false;
+                        }
+                    } else if (heartbeat) {
+                        heartbeat = false;
+                        out.write(HEARTBEAT);
+                        unflushed = true;
+                    } else {
+                        break;
+                    }
+                }
+            } catch (IOException | IllegalStateException e) {
+                close();
+            }
+        }
+        
+        private void close() {
+            if (!closed) {
+                closed = true;
+                subscribers.remove(this);
+                try {
+                    context.complete();
+                } catch (IllegalStateException e) {
+                    // Already completed by the container.
+                }
+            }
+        }
+        
+        @Override
+        public void onWritePossible() {
+            signal();
+        }
+        
+        @Override
+        public void onError(Throwable t) {
+            closed = true;
+            subscribers.remove(this);
+        }
+        
+        @Override
+        public void onComplete(AsyncEvent event) {
+            closed = true;
+            subscribers.remove(this);
+        }
+        
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+        }
+        
+        @Override
+        public void onError(AsyncEvent event) {
+            closed = true;
+            subscribers.remove(this);
+        }
+        
+        @Override
+        public void onStartAsync(AsyncEvent event) {}
+    }
+}
+
+/**
+ * The patient database. Ids come from {@link PatientIds} without locking and
+ * patients are sharded by id over {@link ShardedPatientTable}; a write holds
+ * only its patient's shard lock while it applies the change, updates the
+ * index and analytics and appends to the log, so writers to different
+ * patients proceed in parallel and reads never lock. Every patient carries a
+ * version, starting at 1 and bumped by each update; updates name the version
+ * they replace and fail with {@link StaleVersionException} if another writer
+ * got there first.
+ */
+class PatientDB {
+    private static final Object lifecycle = new Object();
+    private static final ShardedPatientTable patients = new ShardedPatientTable(
+        Integer.getInteger("patientdb.shards", 16), PatientTable::create);
+    private static final PatientIndex index = new PatientIndex();
+    private static final PatientAnalytics analytics = new PatientAnalytics();
+    private static final PatientIds ids = PatientIds.fromProperties();
+    private static final AtomicInteger size = new AtomicInteger();
+    private static final PatientFeed feed = new PatientFeed(Integer.getInteger("patientdb.feed.capacity", 16384));
+    private static volatile PatientStore store;
+    private static volatile Durability defaultDurability = Durability.FSYNC;
+    
+    static {
+        Patient seed = seedPatient();
+        seed.setId(ids.allocate());
+        patients.put(seed);
+        index.add(seed);
+        analytics.load(seed);
+        size.set(1);
+        Metrics.gauge("patientdb_patients", "Patients currently stored.", "", PatientDB::size);
+    }
+    
+    private static Patient seedPatient() {
+        Patient p1 = new Patient();
+        p1.setName("John Smith");
+        p1.setAge(45);
+        p1.setGender("Male");
+        p1.setBloodGroup("O+");
+        p1.setMedicalHistory("History of hypertension");
+        p1.setSymptoms(Arrays.asList("headache", "dizziness", "chest pain"));
+        p1.setDiagnosis("Hypertension");
+        p1.setConfidenceScore(78.5);
+        p1.setVersion(1);
+        return p1;
+    }
+    
+    /**
+     * Replaces the in-memory contents with the patients recovered from
+     * {@code dir} and logs every later mutation there. A new store is seeded
+     * with the sample patient, like the in-memory database.
+     */
+    public static void open(Path dir) throws IOException {
+        PatientStore opened;
+        synchronized (lifecycle) {
+            if (store != null) {
+                throw new IllegalStateException("PatientDB is already open");
+            }
+            patients.lockAll();
+            try {
+                patients.clear();
+                index.clear();
+                analytics.clear();
+                opened = PatientStore.open(dir, patients,
+                    Long.getLong("patientdb.fsyncIntervalMillis", 10L),
+                    Long.getLong("patientdb.snapshotEveryRecords", 1_000_000L),
+                    PatientDB::exclusively);
+                int maxUsed = ids.owns(opened.recoveredNextId - 1) ? opened.recoveredNextId - 1 : 0;
+                int count = 0;
+                for (Patient patient : patients.values()) {
+                    index.add(patient);
+                    analytics.load(patient);
+                    if (ids.owns(patient.getId()) && patient.getId() > maxUsed) {
+                        maxUsed = patient.getId();
+                    }
+                    count++;
+                }
+                ids.resume(maxUsed);
+                size.set(count);
+                defaultDurability = Durability.parse(System.getProperty("patientdb.durability"), Durability.FSYNC);
+                store = opened;
+            } finally {
+                patients.unlockAll();
+            }
+        }
+        if (opened.fresh) {
+            addPatient(seedPatient());
+        }
+    }
+    
+    public static void close() throws IOException {
+        PatientStore closing;
+        synchronized (lifecycle) {
+            patients.lockAll();
+            try {
+                closing = store;
+                store = null;
+            } finally {
+                patients.unlockAll();
+            }
+        }
+        if (closing != null) {
+            closing.close();
+        }
+    }
+    
+    public static void snapshot() throws IOException {
+        PatientStore current = store;
+        if (current != null) {
+            current.snapshot();
+        }
+    }
+    
+    public static Durability getDefaultDurability() {
+        return defaultDurability;
+    }
+    
+    /** Number of stored patients, tracked on every write so reading it is O(1). */
+    public static int size() {
+        return size.get();
+    }
+    
+    public static List<Patient> getAllPatients() {
+        List<Patient> all = new ArrayList<>(patients.size());
+        for (Patient patient : patients.values()) {
+            all.add(patient);
+        }
+        return all;
+    }
+    
+    /**
+     * Live, id-ordered view of the patients with an id greater than
+     * {@code afterId}. Iteration is weakly consistent and copies nothing.
+     */
+    public static Iterable<Patient> getPatientsAfter(int afterId) {
+        return patients.after(afterId);
+    }
+    
+    /** Aggregates kept up to date by every add, update and delete. */
+    static PatientAnalytics analytics() {
+        return analytics;
+    }
+    
+    /** Every add, update and delete, in the order they were applied. */
+    static PatientFeed feed() {
+        return feed;
+    }
+    
+    public static Patient getPatient(int id) {
+        return patients.get(id);
+    }
+    
+    /**
+     * Returns up to {@code limit} patients matching every filter in
+     * {@code query} with ids above {@code after}, ordered by id.
+     */
+    public static List<Patient> findPatients(PatientQuery query, int after, int limit) {
+        return index.query(query, patients, after, limit);
+    }
+    
+    public static Patient addPatient(Patient patient) {
+        return addPatient(patient, defaultDurability);
+    }
+    
+    public static Patient addPatient(Patient patient, Durability durability) {
+        byte[] encoded = store != null ? PatientCodec.encode(patient) : null;
+        patient.setId(ids.allocate());
+        patient.setVersion(1);
+        CompletableFuture<Void> written = null;
+        ReentrantLock shard = patients.lock(patient.getId());
+        shard.lock();
+        try {
+            PatientStore current = writableStore();
+            patients.put(patient);
+            index.add(patient);
+            analytics.add(patient);
+            size.incrementAndGet();
+            feed.publish("added", patient.getId(), patient);
+            if (current != null) {
+                written = current.logPut(patient.getId(), 1, encoded != null ? encoded : PatientCodec.encode(patient),
+                    durability, () -> undoAdd(patient));
+            }
+        } finally {
+            shard.unlock();
+        }
+        await(written);
+        return patient;
+    }
+    
+    /**
+     * Adds {@code batch} under consecutive ids. Each shard's lock is taken
+     * once for all of the batch's patients in it, and the log is waited on
+     * once for the whole batch, so bulk loads share locks and fsyncs.
+     */
+    public static List<Patient> addPatients(List<Patient> batch, Durability durability) {
+        if (batch.isEmpty()) {
+            return batch;
+        }
+        byte[][] encoded = new byte[batch.size()][];
+        if (store != null) {
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = PatientCodec.encode(batch.get(i));
+            }
+        }
+        int first = ids.allocate(batch.size());
+        for (int i = 0; i < encoded.length; i++) {
+            batch.get(i).setId(first + i);
+            batch.get(i).setVersion(1);
+        }
+        int shards = patients.shardCount();
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        for (int s = 0; s < Math.min(shards, encoded.length); s++) {
+            ReentrantLock shard = patients.lock(first + s);
+            shard.lock();
+            try {
+                PatientStore current = writableStore();
+                for (int i = s; i < encoded.length; i += shards) {
+                    Patient patient = batch.get(i);
+                    patients.put(patient);
+                    index.add(patient);
+                    analytics.add(patient);
+                    size.incrementAndGet();
+                    feed.publish("added", patient.getId(), patient);
+                    if (current != null) {
+                        written.add(current.logPut(patient.getId(), 1,
+                            encoded[i] != null ? encoded[i] : PatientCodec.encode(patient), durability,
+                            () -> undoAdd(patient)));
+                    }
+                }
+            } finally {
+                shard.unlock();
+            }
+        }
+        for (CompletableFuture<Void> write : written) {
+            await(write);
+        }
+        return batch;
+    }
+    
+    public static Patient updatePatient(int id, int expectedVersion, Patient replacement) {
+        return updatePatient(id, expectedVersion, replacement, defaultDurability);
+    }
+    
+    /**
+     * Replaces patient {@code id} with {@code replacement} if it is still at
+     * {@code expectedVersion}. Returns the stored replacement, now at the next
+     * version, or null if there is no such patient.
+     *
+     * @throws StaleVersionException if the patient has been updated since
+     */
+    public static Patient updatePatient(int id, int expectedVersion, Patient replacement, Durability durability) {
+        byte[] encoded = store != null ? PatientCodec.encode(replacement) : null;
+        CompletableFuture<Void> written = null;
+        ReentrantLock shard = patients.lock(id);
+        shard.lock();
+        try {
+            PatientStore log = writableStore();
+            Patient current = patients.get(id);
+            if (current == null) {
+                return null;
+            }
+            if (current.getVersion() != expectedVersion) {
+                throw new StaleVersionException(current);
+            }
+            replacement.setId(id);
+            replacement.setVersion(expectedVersion + 1);
+            patients.put(replacement);
+            index.remove(current);
+            index.add(replacement);
+            analytics.update(current, replacement);
+            boolean diagnosed = !Objects.equals(current.getDiagnosis(), replacement.getDiagnosis())
+                || current.getConfidenceScore() != replacement.getConfidenceScore();
+            feed.publish(diagnosed ? "diagnosed" : "updated", id, replacement);
+            if (log != null) {
+                written = log.logPut(id, replacement.getVersion(),
+                    encoded != null ? encoded : PatientCodec.encode(replacement), durability,
+                    () -> undoUpdate(current, replacement));
+            }
+        } finally {
+            shard.unlock();
+        }
+        await(written);
+        return replacement;
+    }
+    
+    public static boolean deletePatient(int id) {
+        return deletePatient(id, defaultDurability);
+    }
+    
+    public static boolean deletePatient(int id, Durability durability) {
+        CompletableFuture<Void> written = null;
+        boolean removed;
+        ReentrantLock shard = patients.lock(id);
+        shard.lock();
+        try {
+            PatientStore current = writableStore();
+            Patient patient = patients.remove(id);
+            removed = patient != null;
+            if (removed) {
+                index.remove(patient);
+                analytics.remove(patient);
+                size.decrementAndGet();
+                feed.publish("deleted", id, null);
+                if (current != null) {
+                    written = current.logDelete(id, durability, () -> undoDelete(patient));
+                }
+            }
+        } finally {
+            shard.unlock();
+        }
+        await(written);
+        return removed;
+    }
+    
+    /**
+     * The open store, or null when running in memory. Writers call this under
+     * the shard lock before changing anything, so once the log has failed a
+     * write is refused without touching memory, the indexes or the feed.
+     */
+    private static PatientStore writableStore() {
+        PatientStore current = store;
+        IOException failure = current != null ? current.failure() : null;
+        if (failure != null) {
+            throw new UncheckedIOException(new IOException("Patient log has failed; writes are refused until restart",
+                failure));
+        }
+        return current;
+    }
+    
+    /** Runs {@code action} holding every shard lock, so that no write can be applied or logged meanwhile. */
+    private static void exclusively(Runnable action) {
+        patients.lockAll();
+        try {
+            action.run();
+        } finally {
+            patients.unlockAll();
+        }
+    }
+    
+    /**
+     * Takes back an add the log failed to make durable. The log runs undo
+     * actions newest first under {@link #exclusively}, so each finds the state
+     * its own write left, recognised by version: a table may hand out a new
+     * instance on every read. The feed gets the reverse change, so subscribers
+     * end up showing what is on disk.
+     */
+    private static void undoAdd(Patient patient) {
+        Patient current = patients.get(patient.getId());
+        if (current != null && current.getVersion() == patient.getVersion()) {
+            patients.remove(patient.getId());
+            index.remove(patient);
+            analytics.remove(patient);
+            size.decrementAndGet();
+            feed.publish("deleted", patient.getId(), null);
+        }
+    }
+    
+    /** Takes back an update the log failed to make durable; see {@link #undoAdd}. */
+    private static void undoUpdate(Patient previous, Patient replacement) {
+        Patient current = patients.get(replacement.getId());
+        if (current != null && current.getVersion() == replacement.getVersion()) {
+            patients.put(previous);
+            index.remove(current);
+            index.add(previous);
+            analytics.update(replacement, previous);
+            feed.publish("updated", previous.getId(), previous);
+        }
+    }
+    
+    /** Takes back a delete the log failed to make durable; see {@link #undoAdd}. */
+    private static void undoDelete(Patient patient) {
+        if (patients.get(patient.getId()) == null) {
+            patients.put(patient);
+            index.add(patient);
+            analytics.load(patient);
+            size.incrementAndGet();
+            feed.publish("added", patient.getId(), patient);
+        }
+    }
+    
+    /** The next id to be allocated; a snapshot records it so ids are never reused after recovery. */
+    static int peekNextId() {
+        return ids.peek();
+    }
+    
+    static void await(CompletableFuture<Void> written) {
+        if (written == null) {
+            return;
+        }
+        try {
+            written.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted waiting for patient log"));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw new UncheckedIOException(cause instanceof IOException
+                ? (IOException) cause : new IOException(cause));
+        }
+    }
+}
+
+/**
+ * Bulk import of CSV or NDJSON patient exports. The file is memory-mapped and
+ * cut into chunks of about {@link #CHUNK_BYTES} on line boundaries, which a
+ * pool parses in parallel straight from the mapped bytes: CSV fields are
+ * decoded one by one with categorical values interned, and each NDJSON line
+ * is read through a reader over its bytes, so no String is built for a whole
+ * line. With {@code predict}, records without a diagnosis get the top
+ * {@link DiseasePredictor} result, with its probability as the confidence
+ * score. Records are inserted with {@link PatientDB#addPatients} in batches.
+ * A malformed line is counted, reported by byte offset among the first
+ * {@link #MAX_ERRORS}, and skipped.
+ * <p>
+ * A CSV file starts with a header naming its columns: name, age, gender,
+ * bloodGroup, medicalHistory, symptoms (separated by {@code ;}), diagnosis and
+ * confidenceScore, in any order and case, with underscores allowed and other
+ * columns ignored. Quoted fields may contain commas and doubled quotes but not
+ * line breaks.
+ */
+final class PatientImporter {
+    static final int CHUNK_BYTES = 8 << 20;
+    static final int MAX_ERRORS = 20;
+    static final int DEFAULT_THREADS = Integer.getInteger("patientdb.import.threads",
+        Runtime.getRuntime().availableProcessors());
+    static final int DEFAULT_BATCH = Integer.getInteger("patientdb.import.batch", 1000);
+    private static final Gson GSON = new Gson();
+    
+    enum Format {
+        CSV, NDJSON;
+        
+        /** Picks the format from a file name, content type or {@code format} parameter; null if none matches. */
+        static Format of(String value) {
+            if (value == null) {
+                return null;
+            }
+            String v = value.toLowerCase(Locale.ROOT);
+            if (v.equals("csv") || v.endsWith(".csv") || v.startsWith("text/csv")) {
+                return CSV;
+            }
+            if (v.equals("ndjson") || v.endsWith(".ndjson") || v.endsWith(".jsonl")
+                    || v.startsWith("application/x-ndjson") || v.startsWith("application/jsonl")) {
+                return NDJSON;
+            }
+            return null;
+        }
+    }
+    
+    /** Receives a progress report about once a second while an import runs. */
+    interface Listener {
+        void progress(Report report) throws IOException;
+    }
+    
+    private final Format format;
+    private final boolean predict;
+    private final int threads;
+    private final int batchSize;
+    private final Durability durability;
+    
+    PatientImporter(Format format, boolean predict, int threads, int batchSize, Durability durability) {
+        if (threads < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("Import threads and batch size must be positive");
+        }
+        this.format = format;
+        this.predict = predict;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.durability = durability;
+    }
+    
+    /**
+     * Imports {@code file} on a background thread, passing {@code listener} a
+     * report every second, and returns the final report once every chunk is
+     * in. If the listener fails it is not called again, but the import still
+     * runs to the end before its failure is rethrown. A CSV header naming no
+     * known column fails with IllegalArgumentException.
+     */
+    Report run(Path file, Listener listener) throws IOException {
+        Progress progress = new Progress(Files.size(file));
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            importFile(file, progress);
+            return null;
+        });
+        Thread worker = new Thread(task, "patient-import");
+        worker.setDaemon(true);
+        worker.start();
+        IOException listenerFailure = null;
+        try {
+            while (true) {
+                try {
+                    task.get(1, TimeUnit.SECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    if (listenerFailure == null && listener != null) {
+                        try {
+                            listener.progress(progress.report(false));
+                        } catch (IOException failure) {
+                            listenerFailure = failure;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            worker.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Import failed", cause);
+        }
+        if (listenerFailure != null) {
+            throw listenerFailure;
+        }
+        return progress.report(true);
+    }
+    
+    private void importFile(Path file, Progress progress) throws IOException, InterruptedException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            long start = 0;
+            int[] columns = null;
+            if (format == Format.CSV) {
+                long headerEnd = lineEnd(ch, 0, size);
+                columns = CsvParser.columns(ch.map(FileChannel.MapMode.READ_ONLY, 0, headerEnd));
+                start = Math.min(size, headerEnd + 1);
+                progress.bytes.add(start);
+            }
+            
+            ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "patient-import-parser");
+                t.setDaemon(true);
+                return t;
+            });
+            Semaphore inFlight = new Semaphore(threads * 2);
+            List<Future<Void>> chunks = new ArrayList<>();
+            try {
+                while (start < size) {
+                    long end = Math.min(size, lineEnd(ch, Math.min(size, start + CHUNK_BYTES), size) + 1);
+                    if (end - start > Integer.MAX_VALUE) {
+                        throw new IOException("Line at byte " + start + " is longer than 2 GiB");
+                    }
+                    long from = start;
+                    int[] header = columns;
+                    inFlight.acquire();
+                    chunks.add(pool.submit(() -> {
+                        try {
+                            importChunk(ch, from, end, header, progress);
+                        } finally {
+                            inFlight.release();
+                        }
+                        return null;
+                    }));
+                    start = end;
+                }
+                for (Future<Void> chunk : chunks) {
+                    chunk.get();
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException("Import failed", cause);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+    
+    /** Position of the first line feed at or after {@code from}, or {@code size} if there is none. */
+    private static long lineEnd(FileChannel ch, long from, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        long position = from;
+        while (position < size) {
+            buf.clear();
+            int n = ch.read(buf, position);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') {
+                    return position + i;
+                }
+            }
+            position += n;
+        }
+        return size;
+    }
+    
+    private void importChunk(FileChannel ch, long from, long to, int[] columns, Progress progress) throws IOException {
+        ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        RecordParser parser = columns != null ? new CsvParser(columns) : new NdjsonParser();
+        List<Patient> batch = new ArrayList<>(batchSize);
+        int limit = buf.limit();
+        int counted = 0;
+        int lineStart = 0;
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && buf.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int end = lineEnd > lineStart && buf.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            if (!blank(buf, lineStart, end)) {
+                try {
+                    Patient patient = parser.parse(buf, lineStart, end);
+                    if (predict) {
+                        diagnose(patient, progress);
+                    }
+                    batch.add(patient);
+                } catch (IllegalArgumentException e) {
+                    progress.error(from + lineStart, e.getMessage());
+                }
+                if (batch.size() >= batchSize) {
+                    insert(batch, progress);
+                    progress.bytes.add(lineEnd - counted);
+                    counted = lineEnd;
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        insert(batch, progress);
+        progress.bytes.add(limit - counted);
+    }
+    
+    private void insert(List<Patient> batch, Progress progress) {
+        if (!batch.isEmpty()) {
+            PatientDB.addPatients(new ArrayList<>(batch), durability);
+            progress.imported.add(batch.size());
+            batch.clear();
+        }
+    }
+    
+    private static void diagnose(Patient patient, Progress progress) {
+        List<String> symptoms = patient.getSymptoms();
+        if ((patient.getDiagnosis() != null && !patient.getDiagnosis().isEmpty())
+                || symptoms == null || symptoms.isEmpty()) {
+            return;
+        }
+        List<DiagnosisResult> results = DiseasePredictor.predict(symptoms, patient.getAge(),
+            patient.getMedicalHistory(), 1);
+        if (!results.isEmpty()) {
+            patient.setDiagnosis(results.get(0).getDisease());
+            patient.setConfidenceScore(results.get(0).getProbability());
+            progress.predicted.increment();
+        }
+    }
+    
+    private static boolean blank(ByteBuffer buf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte b = buf.get(i);
+            if (b != ' ' && b != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /** Parses one line; a malformed line throws IllegalArgumentException with the reason. */
+    private interface RecordParser {
+        Patient parse(ByteBuffer buf, int from, int to);
+    }
+    
+    /** Decodes CSV fields from the mapped bytes into a reused scratch array. */
+    private static final class CsvParser implements RecordParser {
+        private static final int NAME = 0;
+        private static final int AGE = 1;
+        private static final int GENDER = 2;
+        private static final int BLOOD_GROUP = 3;
+        private static final int HISTORY = 4;
+        private static final int SYMPTOMS = 5;
+        private static final int DIAGNOSIS = 6;
+        private static final int CONFIDENCE = 7;
+        private static final String[] NAMES = {"name", "age", "gender", "bloodgroup", "medicalhistory", "symptoms",
+            "diagnosis", "confidencescore"};
+        private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+        
+        private final int[] columns;
+        private final Utf8Interner interner = new Utf8Interner();
+        private byte[] scratch = new byte[256];
+        private int length;
+        
+        CsvParser(int[] columns) {
+            this.columns = columns;
+        }
+        
+        /** Maps each header field to a known column, or -1 to skip it. */
+        static int[] columns(ByteBuffer header) {
+            CsvParser parser = new CsvParser(null);
+            int end = header.limit() > 0 && header.get(header.limit() - 1) == '\r' ? header.limit() - 1 : header.limit();
+            List<Integer> columns = new ArrayList<>();
+            boolean named = false;
+            try {
+                int pos = 0;
+                do {
+                    pos = parser.field(header, pos, end);
+                    String name = new String(parser.scratch, 0, parser.length, StandardCharsets.UTF_8)
+                        .replace("\uFEFF", "").replace("_", "").trim().toLowerCase(Locale.ROOT);
+                    int column = Arrays.asList(NAMES).indexOf(name);
+                    named |= column >= 0;
+                    columns.add(column);
+                } while (pos++ < end);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Malformed CSV header: " + e.getMessage());
+            }
+            if (!named) {
+                throw new IllegalArgumentException("CSV header names none of the patient columns " + Arrays.toString(NAMES));
+            }
+            int[] mapping = new int[columns.size()];
+            for (int i = 0; i < mapping.length; i++) {
+                mapping[i] = columns.get(i);
+            }
+            return mapping;
+        }
+        
+        @Override
+        public Patient parse(ByteBuffer buf, int from, int to) {
+            Patient patient = new Patient();
+            int pos = from;
+            int field = 0;
+            do {
+                if (field >= columns.length) {
+                    throw new IllegalArgumentException("More than the header's " + columns.length + " fields");
+                }
+                pos = field(buf, pos, to);
+                if (columns[field] >= 0) {
+                    set(patient, columns[field]);
+                }
+                field++;
+            } while (pos++ < to);
+            return patient;
+        }
+        
+        /** Copies the field starting at {@code pos} into the scratch array and returns the position after it. */
+        private int field(ByteBuffer buf, int pos, int to) {
+            length = 0;
+            if (pos < to && buf.get(pos) == '"') {
+                pos++;
+                while (true) {
+                    if (pos >= to) {
+                        throw new IllegalArgumentException("Unterminated quoted field");
+                    }
+                    byte b = buf.get(pos++);
+                    if (b == '"') {
+                        if (pos < to && buf.get(pos) == '"') {
+                            pos++;
+                        } else {
+                            break;
+                        }
+                    }
+                    append(b);
+                }
+                if (pos < to && buf.get(pos) != ',') {
+                    throw new IllegalArgumentException("Text after a closing quote");
+                }
+                return pos;
+            }
+            while (pos < to && buf.get(pos) != ',') {
+                append(buf.get(pos++));
+            }
+            return pos;
+        }
+        
+        private void append(byte b) {
+            if (length == scratch.length) {
+                scratch = Arrays.copyOf(scratch, length * 2);
+            }
+            scratch[length++] = b;
+        }
+        
+        private void set(Patient patient, int column) {
+            int from = 0;
+            int to = length;
+            while (from < to && scratch[from] == ' ') {
+                from++;
+            }
+            while (to > from && scratch[to - 1] == ' ') {
+                to--;
+            }
+            if (from == to) {
+                return;
+            }
+            switch (column) {
+                case NAME:
+                    patient.setName(new String(scratch, from, to - from, StandardCharsets.UTF_8));
+                    break;
+                case AGE:
+                    patient.setAge(parseAge(from, to));
+                    break;
+                case GENDER:
+                    patient.setGender(interner.intern(scratch, from, to - from));
+                    break;
+                case BLOOD_GROUP:
+                    patient.setBloodGroup(interner.intern(scratch, from, to - from));
+                    break;
+                case HISTORY:
+                    patient.setMedicalHistory(new String(scratch, from, to - from, StandardCharsets.UTF_8));
+                    break;
+                case SYMPTOMS:
+                    patient.setSymptoms(symptoms(from, to));
+                    break;
+                case DIAGNOSIS:
+                    patient.setDiagnosis(interner.intern(scratch, from, to - from));
+                    break;
+                default:
+                    patient.setConfidenceScore(parseDecimal(from, to));
+                    break;
+            }
+        }
+        
+        private List<String> symptoms(int from, int to) {
+            List<String> symptoms = new ArrayList<>(4);
+            int start = from;
+            for (int i = from; i <= to; i++) {
+                if (i == to || scratch[i] == ';') {
+                    int a = start;
+                    int b = i;
+                    while (a < b && scratch[a] == ' ') {
+                        a++;
+                    }
+                    while (b > a && scratch[b - 1] == ' ') {
+                        b--;
+                    }
+                    if (a < b) {
+                        symptoms.add(interner.intern(scratch, a, b - a));
+                    }
+                    start = i + 1;
+                }
+            }
+            return symptoms;
+        }
+        
+        private int parseAge(int from, int to) {
+            if (to - from > 9) {
+                throw new IllegalArgumentException("Invalid age");
+            }
+            int age = 0;
+            for (int i = from; i < to; i++) {
+                int digit = scratch[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new IllegalArgumentException("Invalid age");
+                }
+                age = age * 10 + digit;
+            }
+            return age;
+        }
+        
+        /**
+         * Plain decimals of up to 15 digits are exact in a double, as is every
+         * power of ten up to 1e22, so one division gives the correctly rounded
+         * value; anything else goes through Double.parseDouble.
+         */
+        private double parseDecimal(int from, int to) {
+            int i = from;
+            boolean negative = scratch[i] == '-';
+            if (negative || scratch[i] == '+') {
+                i++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int scale = -1;
+            for (; i < to; i++) {
+                byte b = scratch[i];
+                if (b >= '0' && b <= '9') {
+                    if (++digits > 15) {
+                        break;
+                    }
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (scale >= 0) {
+                        scale++;
+                    }
+                } else if (b == '.' && scale < 0) {
+                    scale = 0;
+                } else {
+                    break;
+                }
+            }
+            if (i == to && digits > 0) {
+                double value = mantissa / POWERS_OF_TEN[Math.max(scale, 0)];
+                return negative ? -value : value;
+            }
+            try {
+                return Double.parseDouble(new String(scratch, from, to - from, StandardCharsets.ISO_8859_1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid confidence score");
+            }
+        }
+    }
+    
+    /**
+     * Decodes each line's UTF-8 into a reused char array and reads one JSON
+     * object from it. Categorical values are canonicalized per parser.
+     */
+    private static final class NdjsonParser implements RecordParser {
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+        private final Map<String, String> canonical = new HashMap<>();
+        private char[] chars = new char[1024];
+        
+        @Override
+        public Patient parse(ByteBuffer buf, int from, int to) {
+            if (chars.length < to - from) {
+                chars = new char[Math.max(to - from, chars.length * 2)];
+            }
+            ByteBuffer line = buf.duplicate();
+            line.limit(to).position(from);
+            CharBuffer out = CharBuffer.wrap(chars);
+            decoder.reset();
+            if (decoder.decode(line, out, true).isError() || decoder.flush(out).isError()) {
+                throw new IllegalArgumentException("Invalid UTF-8");
+            }
+            Patient patient;
+            try {
+                JsonReader in = new JsonReader(new CharArrayReader(chars, 0, out.position()));
+                if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                    throw new IllegalArgumentException("Expected a JSON object");
+                }
+                patient = GSON.fromJson(in, Patient.class);
+                if (in.peek() != JsonToken.END_DOCUMENT) {
+                    throw new IllegalArgumentException("Text after the JSON object");
+                }
+            } catch (IOException | JsonParseException e) {
+                throw new IllegalArgumentException("Malformed JSON: " + e.getMessage());
+            }
+            patient.setGender(canonical(patient.getGender()));
+            patient.setBloodGroup(canonical(patient.getBloodGroup()));
+            patient.setDiagnosis(canonical(patient.getDiagnosis()));
+            List<String> symptoms = patient.getSymptoms();
+            if (symptoms != null) {
+                for (int i = 0; i < symptoms.size(); i++) {
+                    symptoms.set(i, canonical(symptoms.get(i)));
+                }
+            }
+            return patient;
+        }
+        
+        private String canonical(String value) {
+            if (value == null || value.length() > 64) {
+                return value;
+            }
+            String known = canonical.get(value);
+            if (known != null) {
+                return known;
+            }
+            if (canonical.size() < 1 << 16) {
+                canonical.put(value, value);
+            }
+            return value;
+        }
+    }
+    
+    /** Counters of one import, updated by the parser threads. */
+    private static final class Progress {
+        final long totalBytes;
+        final long startNanos = System.nanoTime();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder imported = new LongAdder();
+        final LongAdder predicted = new LongAdder();
+        final LongAdder malformed = new LongAdder();
+        private final List<String> errors = new ArrayList<>();
+        
+        Progress(long totalBytes) {
+            this.totalBytes = totalBytes;
+        }
+        
+        synchronized void error(long offset, String reason) {
+            malformed.increment();
+            if (errors.size() < MAX_ERRORS) {
+                errors.add("byte " + offset + ": " + reason);
+            }
+        }
+        
+        synchronized Report report(boolean done) {
+            Report report = new Report();
+            report.done = done;
+            report.bytes = bytes.sum();
+            report.totalBytes = totalBytes;
+            report.imported = imported.sum();
+            report.predicted = predicted.sum();
+            report.malformed = malformed.sum();
+            report.seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+            report.recordsPerSecond = report.imported / report.seconds;
+            report.megabytesPerSecond = report.bytes / report.seconds / (1 << 20);
+            if (done) {
+                report.errors = new ArrayList<>(errors);
+            }
+            return report;
+        }
+    }
+    
+    /** A point-in-time view of an import; the final one lists the first malformed lines. */
+    static final class Report {
+        boolean done;
+        long bytes;
+        long totalBytes;
+        long imported;
+        long predicted;
+        long malformed;
+        double seconds;
+        double recordsPerSecond;
+        double megabytesPerSecond;
+        List<String> errors;
+        
+        @Override
+        public String toString() {
+            return String.format("%5.1f%% of %.1f MiB, %,d imported, %,d malformed, %,.0f records/s, %.1f MiB/s",
+                totalBytes > 0 ? bytes * 100.0 / totalBytes : 100.0, totalBytes / (double) (1 << 20), imported,
+                malformed, recordsPerSecond, megabytesPerSecond);
+        }
+    }
+}
+
+/**
+ * Imports a CSV or NDJSON export into the store in {@code patientdb.dir}
+ * (default data), printing progress every second and a summary at the end.
+ * The format follows the file extension unless {@code --format} is given.
+ * Usage: {@code import-patients <file> [--format=csv|ndjson] [--predict]
+ * [--threads=N] [--batch=N] [--durability=fsync|batched|async]}.
+ */
+final class ImportCommand {
+    private ImportCommand() {}
+    
+    static void run(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: import-patients <file> [--format=csv|ndjson] [--predict] [--threads=N]"
+                + " [--batch=N] [--durability=fsync|batched|async]");
+            System.exit(2);
+        }
+        Path file = Paths.get(args[1]);
+        PatientImporter.Format format = PatientImporter.Format.of(args[1]);
+        boolean predict = false;
+        int threads = PatientImporter.DEFAULT_THREADS;
+        int batch = PatientImporter.DEFAULT_BATCH;
+        String durability = null;
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.equals("--predict")) {
+                predict = true;
+            } else if (arg.startsWith("--format=")) {
+                format = PatientImporter.Format.of(value);
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(value);
+            } else if (arg.startsWith("--batch=")) {
+                batch = Integer.parseInt(value);
+            } else if (arg.startsWith("--durability=")) {
+                durability = value;
+            } else {
+                System.err.println("Unknown option " + arg);
+                System.exit(2);
+            }
+        }
+        if (format == null) {
+            System.err.println("Cannot tell the format of " + file + "; pass --format=csv or --format=ndjson");
+            System.exit(2);
+        }
+        if (predict) {
+            DiseasePredictor.initializeModel();
+        }
+        String dataDir = System.getProperty("patientdb.dir", "data");
+        if (!dataDir.isEmpty()) {
+            PatientDB.open(Paths.get(dataDir));
+        }
+        
+        PatientImporter importer = new PatientImporter(format, predict, threads, batch,
+            Durability.parse(durability, PatientDB.getDefaultDurability()));
+        PatientImporter.Report report;
+        try {
+            report = importer.run(file, progress -> System.out.println(progress));
+        } finally {
+            PatientDB.close();
+        }
+        System.out.printf("Imported %,d patients (%,d diagnosed by the model) from %.1f MiB in %.1f s: "
+                + "%,.0f records/s, %.1f MiB/s; %,d malformed lines skipped%n",
+            report.imported, report.predicted, report.totalBytes / (double) (1 << 20), report.seconds,
+            report.recordsPerSecond, report.megabytesPerSecond, report.malformed);
+        for (String error : report.errors) {
+            System.out.println("  " + error);
+        }
+        if (report.malformed > report.errors.size()) {
+            System.out.println("  ... and " + (report.malformed - report.errors.size()) + " more");
+        }
+    }
+}
+
+/**
+ * Measures PatientDB restart time: fills a fresh store with synthetic
+ * patients, closes it and times recovery. An existing store is only reopened.
+ * Usage: {@code patientdb-bench <dir> <count> [fsync|batched|async]}.
+ */
+final class PatientStoreBenchmark {
+    private static final String[] GENDERS = {"Male", "Female", "Other"};
+    private static final String[] BLOOD_GROUPS = {"A+", "A-", "B+", "B-", "O+", "O-", "AB+", "AB-"};
+    private static final String[] DIAGNOSES = {"Common Cold", "Influenza", "COVID-19", "Migraine", "Hypertension", "Asthma"};
+    private static final String[] SYMPTOMS = {"cough", "fatigue", "headache", "fever", "nausea", "dizziness", "wheezing"};
+    
+    private PatientStoreBenchmark() {}
+    
+    static void run(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: patientdb-bench <dir> <count> [fsync|batched|async]");
+            System.exit(2);
+        }
+        Path dir = Paths.get(args[1]);
+        int count = Integer.parseInt(args[2]);
+        Durability durability = Durability.parse(args.length > 3 ? args[3] : null, Durability.ASYNC);
+        boolean existing = false;
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> files = Files.list(dir)) {
+                existing = files.findAny().isPresent();
+            }
+        }
+        if (!existing) {
+            fill(dir, count, durability);
+        }
+        
+        System.gc();
+        long start = System.nanoTime();
+        PatientDB.open(dir);
+        long recoverMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("Restart recovered " + PatientDB.getAllPatients().size() + " patients in "
+            + recoverMillis + " ms");
+        PatientDB.close();
+    }
+    
+    private static void fill(Path dir, int count, Durability durability) throws IOException {
+        PatientDB.open(dir);
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            PatientDB.addPatient(synthetic(random, i), durability);
+        }
+        PatientDB.close();
+        long writeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("Wrote " + count + " patients (" + durability + ") in " + writeMillis + " ms");
+    }
+    
+    /** Patient {@code i} of the synthetic data set; its strings are the shared constants above. */
+    static Patient synthetic(Random random, int i) {
+        Patient p = new Patient();
+        p.setName("Patient " + i);
+        p.setAge(random.nextInt(95));
+        p.setGender(GENDERS[random.nextInt(GENDERS.length)]);
+        p.setBloodGroup(BLOOD_GROUPS[random.nextInt(BLOOD_GROUPS.length)]);
+        p.setMedicalHistory(random.nextInt(4) == 0 ? "History of diabetes" : "");
+        p.setSymptoms(Arrays.asList(SYMPTOMS[random.nextInt(SYMPTOMS.length)], SYMPTOMS[random.nextInt(SYMPTOMS.length)]));
+        p.setDiagnosis(DIAGNOSES[random.nextInt(DIAGNOSES.length)]);
+        p.setConfidenceScore(random.nextDouble() * 99);
+        return p;
+    }
+}
+
+/**
+ * Compares the memory each {@link PatientTable} layout needs per patient on
+ * the synthetic data set of {@code patientdb-bench}, measured as the growth
+ * of used heap and direct memory after GC, and times a full scan through
+ * {@link PatientTable#values}. {@code heap} holds patients as they arrive over
+ * the API, every string its own instance; {@code heap-recovered} shares the
+ * categorical strings the way {@link PatientCodec} does on recovery. The
+ * secondary index is the same for every layout and is not included.
+ * Usage: {@code patientdb-footprint [count]}.
+ */
+final class PatientFootprintBenchmark {
+    private PatientFootprintBenchmark() {}
+    
+    static void run(String[] args) throws InterruptedException {
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        System.out.printf("%-16s %12s %12s %12s %10s%n", "layout", "heap B/pt", "direct B/pt", "total B/pt", "scan ms");
+        measure("heap", new HeapPatientTable(), count, false);
+        measure("heap-recovered", new HeapPatientTable(), count, true);
+        measure("columnar", new ColumnarPatientTable(false), count, true);
+        measure("columnar-direct", new ColumnarPatientTable(true), count, true);
+    }
+    
+    private static void measure(String layout, PatientTable table, int count, boolean shared) throws InterruptedException {
+        long[] before = used();
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            Patient p = PatientStoreBenchmark.synthetic(random, i);
+            p.setId(i + 1);
+            table.put(shared ? p : copyStrings(p));
+        }
+        long[] after = used();
+        
+        long start = System.nanoTime();
+        long checksum = 0;
+        for (Patient p : table.values()) {
+            checksum += p.getAge() + p.getSymptoms().size();
+        }
+        long scanMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (checksum == 0 || table.size() != count) {
+            throw new IllegalStateException(layout + " lost patients");
+        }
+        
+        double heap = (after[0] - before[0]) / (double) count;
+        double direct = (after[1] - before[1]) / (double) count;
+        System.out.printf("%-16s %12.1f %12.1f %12.1f %10d%n", layout, heap, direct, heap + direct, scanMillis);
+        table.clear();
+    }
+    
+    private static Patient copyStrings(Patient p) {
+        p.setGender(new String(p.getGender()));
+        p.setBloodGroup(new String(p.getBloodGroup()));
+        p.setMedicalHistory(new String(p.getMedicalHistory()));
+        p.setDiagnosis(new String(p.getDiagnosis()));
+        List<String> symptoms = new ArrayList<>(p.getSymptoms().size());
+        for (String symptom : p.getSymptoms()) {
+            symptoms.add(new String(symptom));
+        }
+        p.setSymptoms(symptoms);
+        return p;
+    }
+    
+    /** Returns {heap, direct} bytes in use after collecting garbage until the heap stops shrinking. */
+    private static long[] used() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long heap = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(50);
+            long now = memory.getHeapMemoryUsage().getUsed();
+            if (now >= heap) {
+                break;
+            }
+            heap = now;
+        }
+        long direct = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                direct = pool.getMemoryUsed();
+            }
+        }
+        return new long[] {heap, direct};
+    }
+}
+
+/**
+ * Concurrency check for PatientDB: {@code writers} threads each perform
+ * {@code ops} random operations, adding patients, deleting their own, and
+ * incrementing the age of a few shared patients through versioned updates
+ * that retry on conflict. Afterwards every id must be unique, every
+ * acknowledged write visible, and each shared patient's age and version must
+ * equal its number of successful updates, which catches lost updates. With a
+ * directory the store is then reopened and checked again. Exits with status 1
+ * on any violation.
+ * Usage: {@code patientdb-stress [writers] [ops] [dir]}.
+ */
+final class PatientDbStressCheck {
+    private static final int HOT_PATIENTS = 8;
+    
+    private PatientDbStressCheck() {}
+    
+    static void run(String[] args) throws Exception {
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int ops = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        Path dir = args.length > 3 ? Paths.get(args[3]) : null;
+        if (dir != null) {
+            PatientDB.open(dir);
+        }
+        
+        int[] hot = new int[HOT_PATIENTS];
+        for (int i = 0; i < HOT_PATIENTS; i++) {
+            Patient p = PatientStoreBenchmark.synthetic(new Random(i), i);
+            p.setAge(0);
+            hot[i] = PatientDB.addPatient(p, Durability.ASYNC).getId();
+        }
+        int initialSize = PatientDB.size();
+        AtomicIntegerArray updates = new AtomicIntegerArray(HOT_PATIENTS);
+        LongAdder conflicts = new LongAdder();
+        Set<Integer> allocated = ConcurrentHashMap.newKeySet();
+        List<List<Integer>> live = new ArrayList<>();
+        List<List<Integer>> deleted = new ArrayList<>();
+        AtomicInteger duplicates = new AtomicInteger();
+        
+        ExecutorService pool = Executors.newFixedThreadPool(writers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            List<Integer> mine = new ArrayList<>();
+            List<Integer> gone = new ArrayList<>();
+            live.add(mine);
+            deleted.add(gone);
+            int writer = w;
+            done.add(pool.submit(() -> {
+                Random random = new Random(writer);
+                start.await();
+                for (int op = 0; op < ops; op++) {
+                    int dice = random.nextInt(10);
+                    if (dice < 6 || (dice == 9 && mine.isEmpty())) {
+                        Patient p = PatientStoreBenchmark.synthetic(random, op);
+                        p.setName("writer " + writer + " op " + op);
+                        int id = PatientDB.addPatient(p, Durability.ASYNC).getId();
+                        if (!allocated.add(id)) {
+                            duplicates.incrementAndGet();
+                        }
+                        mine.add(id);
+                    } else if (dice < 9) {
+                        int h = random.nextInt(HOT_PATIENTS);
+                        while (true) {
+                            Patient current = PatientDB.getPatient(hot[h]);
+                            Patient next = copy(current);
+                            next.setAge(current.getAge() + 1);
+                            try {
+                                PatientDB.updatePatient(hot[h], current.getVersion(), next, Durability.ASYNC);
+                                updates.incrementAndGet(h);
+                                break;
+                            } catch (StaleVersionException e) {
+                                conflicts.increment();
+                            }
+                        }
+                    } else {
+                        int id = mine.remove(random.nextInt(mine.size()));
+                        if (!PatientDB.deletePatient(id, Durability.ASYNC)) {
+                            throw new IllegalStateException("Patient " + id + " vanished before its writer deleted it");
+                        }
+                        gone.add(id);
+                    }
+                }
+                return null;
+            }));
+        }
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Future<?> f : done) {
+            f.get();
+        }
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        pool.shutdown();
+        
+        int added = 0;
+        int removed = 0;
+        for (int w = 0; w < writers; w++) {
+            added += live.get(w).size() + deleted.get(w).size();
+            removed += deleted.get(w).size();
+        }
+        System.out.printf("%d writers, %d ops in %d ms (%.0f ops/s): %d added, %d deleted, %d updates, %d conflicts retried%n",
+            writers, (long) writers * ops, millis, writers * ops * 1000.0 / millis, added, removed,
+            sum(updates), conflicts.sum());
+        
+        List<String> failures = new ArrayList<>();
+        if (duplicates.get() > 0) {
+            failures.add(duplicates.get() + " duplicate ids");
+        }
+        verify(failures, "after the run", initialSize + added - removed, hot, updates, live, deleted);
+        if (dir != null) {
+            PatientDB.close();
+            PatientDB.open(dir);
+            verify(failures, "after reopening", initialSize + added - removed, hot, updates, live, deleted);
+            PatientDB.close();
+        }
+        if (!failures.isEmpty()) {
+            for (String failure : failures) {
+                System.out.println("FAILED: " + failure);
+            }
+            System.exit(1);
+        }
+        System.out.println("OK: ids unique, no lost or phantom writes, no lost updates");
+    }
+    
+    private static void verify(List<String> failures, String when, int expectedSize, int[] hot,
+                               AtomicIntegerArray updates, List<List<Integer>> live, List<List<Integer>> deleted) {
+        if (PatientDB.size() != expectedSize) {
+            failures.add(when + ": size " + PatientDB.size() + ", expected " + expectedSize);
+        }
+        int listed = PatientDB.getAllPatients().size();
+        if (listed != expectedSize) {
+            failures.add(when + ": listing has " + listed + " patients, expected " + expectedSize);
+        }
+        long counted = PatientDB.analytics().summary().patients;
+        if (counted != expectedSize) {
+            failures.add(when + ": analytics count " + counted + ", expected " + expectedSize);
+        }
+        for (int h = 0; h < hot.length; h++) {
+            Patient p = PatientDB.getPatient(hot[h]);
+            int expected = updates.get(h);
+            if (p == null || p.getAge() != expected || p.getVersion() != expected + 1) {
+                failures.add(when + ": shared patient " + hot[h] + " is " + (p == null ? "missing"
+                    : "at age " + p.getAge() + " version " + p.getVersion()) + " after " + expected + " updates");
+            }
+        }
+        int missing = 0;
+        int resurrected = 0;
+        for (int w = 0; w < live.size(); w++) {
+            for (int id : live.get(w)) {
+                Patient p = PatientDB.getPatient(id);
+                if (p == null || !p.getName().startsWith("writer " + w + " ")) {
+                    missing++;
+                }
+            }
+            for (int id : deleted.get(w)) {
+                if (PatientDB.getPatient(id) != null) {
+                    resurrected++;
+                }
+            }
+        }
+        if (missing > 0) {
+            failures.add(when + ": " + missing + " acknowledged patients missing or overwritten");
+        }
+        if (resurrected > 0) {
+            failures.add(when + ": " + resurrected + " deleted patients still present");
+        }
+    }
+    
+    private static Patient copy(Patient source) {
+        Patient p = new Patient();
+        p.setName(source.getName());
+        p.setAge(source.getAge());
+        p.setGender(source.getGender());
+        p.setBloodGroup(source.getBloodGroup());
+        p.setMedicalHistory(source.getMedicalHistory());
+        p.setSymptoms(source.getSymptoms());
+        p.setDiagnosis(source.getDiagnosis());
+        p.setConfidenceScore(source.getConfidenceScore());
+        return p;
+    }
+    
+    private static int sum(AtomicIntegerArray values) {
+        int sum = 0;
+        for (int i = 0; i < values.length(); i++) {
+            sum += values.get(i);
+        }
+        return sum;
+    }
+}
+
+/**
+ * Lock-free latency histogram with power-of-two buckets from 1.024 µs to
+ * about 17 s. Recording is one bucket computation and two LongAdder
+ * increments; the count is derived from the buckets when read.
+ */
+final class LatencyHistogram {
+    private static final int MIN_SHIFT = 10;
+    private static final int BUCKETS = 26;
+    
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sumNanos = new LongAdder();
+    
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+    
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int bucket = nanos <= 1L << MIN_SHIFT
+            ? 0 : Math.min(64 - Long.numberOfLeadingZeros(nanos - 1) - MIN_SHIFT, BUCKETS - 1);
+        counts[bucket].increment();
+        sumNanos.add(nanos);
+    }
+    
+    /** Appends the buckets, sum and count in Prometheus text format. */
+    void write(StringBuilder out, String name, String labels) {
+        String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += counts[i].sum();
+            String le = i == BUCKETS - 1 ? "+Inf" : Double.toString((1L << (MIN_SHIFT + i)) / 1e9);
+            out.append(name).append("_bucket").append(prefix).append("le=\"").append(le).append("\"} ")
+                .append(cumulative).append('\n');
+        }
+        String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(suffix).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+        out.append(name).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+    }
+}
+
+/**
+ * Process-wide metric registry rendered at /metrics. Metrics are grouped into
+ * families by name; each series in a family is a LatencyHistogram, a
+ * LongAdder counter or a supplier read at scrape time. Set
+ * {@code metrics.enabled=false} to turn recording off, and
+ * {@code metrics.predict.sampleEvery} (default 128, rounded up to a power of
+ * two) to choose how many predictions share one timed sample.
+ */
+final class Metrics {
+    private static final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<>();
+    private static volatile boolean enabled = !"false".equals(System.getProperty("metrics.enabled"));
+    private static final int predictSampleMask =
+        Integer.highestOneBit(Math.max(1, Integer.getInteger("metrics.predict.sampleEvery", 128)) * 2 - 1) - 1;
+    private static final int SAMPLE_STRIPES = 64;
+    private static final int[] sampleCounters = new int[SAMPLE_STRIPES << 4];
+    
+    private Metrics() {}
+    
+    private static final class Family {
+        final String type;
+        final String help;
+        final ConcurrentSkipListMap<String, Object> series = new ConcurrentSkipListMap<>();
+        
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+    
+    static boolean isEnabled() {
+        return enabled;
+    }
+    
+    static void setEnabled(boolean on) {
+        enabled = on;
+    }
+    
+    /**
+     * True for one prediction in {@code metrics.predict.sampleEvery} per
+     * thread while enabled. The counters are plain ints striped by thread id
+     * and padded to a cache line each; a racy lost update only shifts which
+     * call gets sampled.
+     */
+    static boolean samplePredict() {
+        if (!enabled) {
+            return false;
+        }
+        int slot = ((int) Thread.currentThread().getId() & (SAMPLE_STRIPES - 1)) << 4;
+        return (++sampleCounters[slot] & predictSampleMask) == 0;
+    }
+    
+    static LatencyHistogram histogram(String name, String help, String labels) {
+        return (LatencyHistogram) family(name, "histogram", help).series
+            .computeIfAbsent(labels, l -> new LatencyHistogram());
+    }
+    
+    static LongAdder counter(String name, String help, String labels) {
+        return (LongAdder) family(name, "counter", help).series.computeIfAbsent(labels, l -> new LongAdder());
+    }
+    
+    static void counter(String name, String help, String labels, LongSupplier value) {
+        family(name, "counter", help).series.put(labels, value);
+    }
+    
+    static void gauge(String name, String help, String labels, LongSupplier value) {
+        family(name, "gauge", help).series.put(labels, value);
+    }
+    
+    private static Family family(String name, String type, String help) {
+        Family family = families.computeIfAbsent(name, n -> new Family(type, help));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+    
+    /**
+     * Records one servlet request. Methods outside the standard set share the
+     * "OTHER" label so clients cannot grow the series count.
+     */
+    static void recordRequest(String endpoint, String method, int status, long startNanos) {
+        if (!enabled) {
+            return;
+        }
+        long elapsed = System.nanoTime() - startNanos;
+        switch (method) {
+            case "GET": case "HEAD": case "POST": case "PUT": case "PATCH": case "DELETE": case "OPTIONS":
+                break;
+            default:
+                method = "OTHER";
+        }
+        String labels = "endpoint=\"" + endpoint + "\",method=\"" + method + "\"";
+        lookupHistogram("http_request_duration_seconds", "Servlet request latency, including streamed bodies.", labels)
+            .record(elapsed);
+        lookupCounter("http_requests_total", "Servlet requests by response status.",
+            labels + ",status=\"" + status + "\"").increment();
+    }
+    
+    private static LatencyHistogram lookupHistogram(String name, String help, String labels) {
+        Family family = families.get(name);
+        Object series = family != null ? family.series.get(labels) : null;
+        return series != null ? (LatencyHistogram) series : histogram(name, help, labels);
+    }
+    
+    private static LongAdder lookupCounter(String name, String help, String labels) {
+        Family family = families.get(name);
+        Object series = family != null ? family.series.get(labels) : null;
+        return series != null ? (LongAdder) series : counter(name, help, labels);
+    }
+    
+    /** Renders every family in Prometheus text exposition format 0.0.4. */
+    static String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof LatencyHistogram) {
+                    ((LatencyHistogram) metric).write(out, name, labels);
+                    continue;
+                }
+                long value = metric instanceof LongAdder
+                    ? ((LongAdder) metric).sum() : ((LongSupplier) metric).getAsLong();
+                out.append(name);
+                if (!labels.isEmpty()) {
+                    out.append('{').append(labels).append('}');
+                }
+                out.append(' ').append(value).append('\n');
+            }
+        }
+        return out.toString();
+    }
+}
+
+/**
+ * Checks that instrumentation costs predict less than 2%: times the same
+ * random workload with metrics off and on in back-to-back pairs and takes
+ * the median of the per-pair ratios. Two workloads are measured: 4096 inputs
+ * that fit the result cache, so nearly every call is a hit, and more distinct
+ * inputs than {@code diagnosis.cache.size} holds, cycled so that every call
+ * misses and the score and select timers run. Exits with status 1 when
+ * either exceeds the budget.
+ * Usage: {@code metrics-overhead [rounds] [callsPerRound]}.
+ */
+final class MetricsOverheadCheck {
+    private static final double BUDGET = 0.02;
+    private static final String[] HISTORIES = {"", "history of diabetes", "heart disease in family", "none"};
+    /** Total predictions returned by timed loops, reported so the JIT cannot drop the calls. */
+    private static long results;
+    
+    private MetricsOverheadCheck() {}
+    
+    static void run(String[] args) throws IOException {
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 21;
+        int calls = args.length > 2 ? Integer.parseInt(args[2]) : 500_000;
+        DiseasePredictor.initializeModel();
+        
+        Random random = new Random(42);
+        int cacheSize = Integer.getInteger("diagnosis.cache.size", 10000);
+        boolean cachedOver = measure("cached", inputs(4096, 1, random, false), rounds, calls);
+        // An LRU cache cycled through more distinct keys than it holds misses on every call.
+        int distinct = Integer.highestOneBit(Math.max(4096, cacheSize * 4) - 1) << 1;
+        boolean uncachedOver = measure("uncached", inputs(distinct, 3, random, true), rounds, calls);
+        if (cachedOver || uncachedOver) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * {@code count} random symptom lists of {@code min} to five symptoms, with
+     * no two alike when {@code distinct}; {@code count} must be a power of two.
+     */
+    private static List<List<String>> inputs(int count, int min, Random random, boolean distinct) {
+        List<String> names = new ArrayList<>(Arrays.asList(DiseasePredictor.getModel().symptomNames()));
+        List<List<String>> symptoms = new ArrayList<>(count);
+        Set<Set<String>> seen = new HashSet<>();
+        while (symptoms.size() < count) {
+            Collections.shuffle(names, random);
+            List<String> input = new ArrayList<>(names.subList(0, min + random.nextInt(6 - min)));
+            if (!distinct || seen.add(new HashSet<>(input))) {
+                symptoms.add(input);
+            }
+        }
+        return symptoms;
+    }
+    
+    /** Prints the paired overhead on {@code symptoms} and returns whether it exceeds the budget. */
+    private static boolean measure(String workload, List<List<String>> symptoms, int rounds, int calls) {
+        int[] ages = new int[symptoms.size()];
+        Random random = new Random(7);
+        for (int i = 0; i < ages.length; i++) {
+            ages[i] = 18 + random.nextInt(70);
+        }
+        
+        boolean wasEnabled = Metrics.isEnabled();
+        long returned = results;
+        for (int warmup = 0; warmup < 4; warmup++) {
+            Metrics.setEnabled(warmup % 2 == 0);
+            time(symptoms, ages, calls);
+        }
+        LruCache<DiagnosisCacheKey, List<DiagnosisResult>> cache = DiseasePredictor.getCache();
+        long hits = cache.hits();
+        long misses = cache.misses();
+        long[] off = new long[rounds];
+        long[] on = new long[rounds];
+        double[] ratios = new double[rounds];
+        for (int r = 0; r < rounds; r++) {
+            // Alternate which mode runs first so drift in either direction cancels out.
+            for (int leg = 0; leg < 2; leg++) {
+                boolean enabled = (r + leg) % 2 == 1;
+                Metrics.setEnabled(enabled);
+                long elapsed = time(symptoms, ages, calls);
+                if (enabled) {
+                    on[r] = elapsed;
+                } else {
+                    off[r] = elapsed;
+                }
+            }
+            ratios[r] = (double) on[r] / off[r];
+        }
+        Metrics.setEnabled(wasEnabled);
+        hits = cache.hits() - hits;
+        misses = cache.misses() - misses;
+        
+        Arrays.sort(off);
+        Arrays.sort(on);
+        Arrays.sort(ratios);
+        double overhead = ratios[rounds / 2] - 1;
+        System.out.printf("predict, %s (%d inputs, %.1f%% cache hits): %.1f ns/op without metrics, "
+                + "%.1f ns/op with metrics (medians), paired overhead %.2f%% (budget %.0f%%), %d results%n",
+            workload, symptoms.size(), 100.0 * hits / Math.max(1, hits + misses), (double) off[rounds / 2] / calls,
+            (double) on[rounds / 2] / calls, overhead * 100, BUDGET * 100, results - returned);
+        return overhead > BUDGET;
+    }
+    
+    private static long time(List<List<String>> symptoms, int[] ages, int calls) {
+        int mask = symptoms.size() - 1;
+        int sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            int input = i & mask;
+            sink += DiseasePredictor.predict(symptoms.get(input), ages[input], HISTORIES[input & 3]).size();
+        }
+        long elapsed = System.nanoTime() - start;
+        results += sink;
+        return elapsed;
+    }
+}
+
+/**
+ * Measures the server under overload, in process on an ephemeral port. Each
+ * run holds {@code slowUploads} connections that trickle a diagnosis body a
+ * byte at a time and never finish, while {@code clients} closed-loop clients
+ * post diagnoses, waiting out {@code Retry-After} when shed, and a probe asks
+ * for symptom suggestions every 20 ms. The
+ * first run uses blocking diagnosis handling without endpoint limits, the way
+ * the server used to work; the second uses the default async, limited setup.
+ * Requests time out after 5 s.
+ * Usage: {@code overload-check [seconds] [slowUploads] [clients]}.
+ */
+final class OverloadCheck {
+    private static final int TIMEOUT_MILLIS = 5000;
+    private static final byte[] DIAGNOSIS = "{\"symptoms\":[\"fever\",\"cough\",\"fatigue\"],\"age\":40}"
+        .getBytes(StandardCharsets.UTF_8);
+    private static final String[] ENDPOINTS = {"patients", "diagnosis", "model", "symptoms", "analytics"};
+    
+    private OverloadCheck() {}
+    
+    static void run(String[] args) throws Exception {
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int slowUploads = args.length > 2 ? Integer.parseInt(args[2]) : 250;
+        int clients = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        DiseasePredictor.initializeModel();
+        
+        System.out.printf("%d s per run, %d slow uploads, %d diagnosis clients, %d Jetty threads%n",
+            seconds, slowUploads, clients, Integer.getInteger("server.threads", 200));
+        System.out.printf("%-9s %10s %8s %8s %16s %10s %8s %8s %22s%n", "mode", "diag ok/s", "diag 503", "diag t/o",
+            "ok p50/p99 ms", "503 p99 ms", "probe ok", "probe t/o", "probe p50/p99/max ms");
+        Map<String, String> blocking = new HashMap<>();
+        blocking.put("diagnosis.async", "false");
+        for (String endpoint : ENDPOINTS) {
+            blocking.put("server.limit." + endpoint, "0");
+        }
+        measure("blocking", blocking, seconds, slowUploads, clients);
+        measure("async", Collections.<String, String>emptyMap(), seconds, slowUploads, clients);
+    }
+    
+    private static void measure(String mode, Map<String, String> properties, int seconds, int slowUploads, int clients)
+            throws Exception {
+        Map<String, String> saved = new HashMap<>();
+        for (Map.Entry<String, String> e : properties.entrySet()) {
+            saved.put(e.getKey(), System.getProperty(e.getKey()));
+            System.setProperty(e.getKey(), e.getValue());
+        }
+        Server server;
+        try {
+            server = Main.createServer(0);
+            server.start();
+        } finally {
+            for (Map.Entry<String, String> e : saved.entrySet()) {
+                if (e.getValue() == null) {
+                    System.clearProperty(e.getKey());
+                } else {
+                    System.setProperty(e.getKey(), e.getValue());
+                }
+            }
+        }
+        int port = Main.localPort(server);
+        URL diagnose = new URL("http://localhost:" + port + "/api/diagnosis/");
+        URL probe = new URL("http://localhost:" + port + "/api/symptoms/suggest?q=fe");
+        
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread trickler = new Thread(() -> trickle(port, slowUploads, running), "overload-slow-uploads");
+        trickler.start();
+        Thread.sleep(1000);
+        
+        List<Samples> diagnosisSamples = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Samples samples = new Samples();
+            diagnosisSamples.add(samples);
+            threads.add(new Thread(() -> {
+                while (running.get()) {
+                    long[] sample = request(diagnose, DIAGNOSIS);
+                    samples.add(sample);
+                    if (sample[0] == 503) {
+                        try {
+                            Thread.sleep(sample[2] * 1000);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "overload-client-" + i));
+        }
+        Samples probeSamples = new Samples();
+        threads.add(new Thread(() -> {
+            while (running.get()) {
+                probeSamples.add(request(probe, null));
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "overload-probe"));
+        for (Thread t : threads) {
+            t.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread t : threads) {
+            t.join();
+        }
+        trickler.join();
+        server.stop();
+        
+        Samples diagnosis = new Samples();
+        for (Samples samples : diagnosisSamples) {
+            diagnosis.addAll(samples);
+        }
+        long[] ok = diagnosis.latencies(200);
+        long[] shed = diagnosis.latencies(503);
+        long[] probeOk = probeSamples.latencies(200);
+        System.out.printf("%-9s %10.0f %8d %8d %16s %10s %8d %8d %22s%n", mode, ok.length / (double) seconds,
+            shed.length, diagnosis.count(-1), percentile(ok, 50) + " / " + percentile(ok, 99), percentile(shed, 99),
+            probeOk.length, probeSamples.count(-1),
+            percentile(probeOk, 50) + " / " + percentile(probeOk, 99) + " / " + percentile(probeOk, 100));
+    }
+    
+    /** Opens {@code count} diagnosis uploads and sends each one more byte of whitespace every 100 ms until stopped. */
+    private static void trickle(int port, int count, AtomicBoolean running) {
+        List<Socket> sockets = new ArrayList<>();
+        byte[] head = ("POST /api/diagnosis/ HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\n"
+            + "Content-Length: 1000000\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        try {
+            for (int i = 0; i < count && running.get(); i++) {
+                Socket socket = new Socket("localhost", port);
+                socket.getOutputStream().write(head);
+                sockets.add(socket);
+            }
+            while (running.get()) {
+                for (Socket socket : sockets) {
+                    socket.getOutputStream().write(' ');
+                }
+                Thread.sleep(100);
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Slow upload stopped: " + e);
+        } finally {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Closing is best effort.
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns {status, elapsed nanos, Retry-After seconds}; status -1 when the
+     * request failed or timed out.
+     */
+    private static long[] request(URL url, byte[] body) {
+        long start = System.nanoTime();
+        int status = -1;
+        long retryAfter = 0;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Content-Type", "application/json");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body);
+                }
+            }
+            status = connection.getResponseCode();
+            retryAfter = connection.getHeaderFieldInt("Retry-After", 0);
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                try (InputStream drained = in) {
+                    byte[] buffer = new byte[8192];
+                    while (drained.read(buffer) != -1) {
+                        // Reading to the end lets the connection be reused.
+                    }
+                }
+            }
+        } catch (IOException e) {
+            status = -1;
+        }
+        return new long[] {status, System.nanoTime() - start, retryAfter};
+    }
+    
+    private static String percentile(long[] sorted, int p) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * p / 100.0) - 1);
+        return String.format("%.1f", sorted[Math.max(index, 0)] / 1e6);
+    }
+    
+    /** Status and latency of every request one thread made. */
+    private static final class Samples {
+        private final List<long[]> samples = new ArrayList<>();
+        
+        void add(long[] sample) {
+            samples.add(sample);
+        }
+        
+        void addAll(Samples other) {
+            samples.addAll(other.samples);
+        }
+        
+        int count(int status) {
+            int count = 0;
+            for (long[] sample : samples) {
+                if (sample[0] == status) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        
+        long[] latencies(int status) {
+            long[] latencies = new long[count(status)];
+            int i = 0;
+            for (long[] sample : samples) {
+                if (sample[0] == status) {
+                    latencies[i++] = sample[1];
+                }
+            }
+            Arrays.sort(latencies);
+            return latencies;
+        }
+    }
+}
+
+/**
+ * Load test of the HTTP API, in process on an ephemeral port against an
+ * in-memory PatientDB seeded with {@code patients} synthetic patients (set
+ * {@code patientdb.dir} to test a durable store). {@code clients} threads
+ * each run a closed loop over a weighted mix of operations: {@code diagnose}
+ * (POST /api/diagnosis/), {@code batch} (an NDJSON POST of {@code batch-size}
+ * patients to /api/diagnosis/batch), {@code create} (POST /api/patients/),
+ * {@code get} (GET /api/patients/{id}) and {@code list} (a page of
+ * /api/patients/), both picking a seeded patient's id at random, since ids
+ * need not be dense under {@code patientdb.nodeBits}. Diagnosis requests draw symptoms from the model's
+ * vocabulary.
+ * <p>
+ * With {@code rate} set, requests follow a fixed schedule spread evenly over
+ * the clients and latency is measured from each request's scheduled start,
+ * not from when a client got round to sending it, so a stall is charged to
+ * every request it delayed rather than hidden (coordinated omission). A
+ * request still unsent when the run ends is recorded with the delay it had
+ * accrued by then and counted as unsent. Without a rate the clients send as
+ * fast as responses come back and latency is service time. Requests scheduled
+ * during {@code warmup} are not recorded; throughput counts the successful
+ * responses that arrived during the measured {@code duration}.
+ * <p>
+ * Prints a table and writes the same figures as JSON to {@code out}, with
+ * stable key order so reports from two builds can be diffed.
+ * Usage: {@code load-test [--duration=S] [--warmup=S] [--clients=N] [--rate=R]
+ * [--mix=diagnose:70,batch:5,create:10,get:10,list:5] [--batch-size=N]
+ * [--patients=N] [--seed=N] [--out=load-report.json]}.
+ */
+final class LoadTest {
+    private static final String[] OPERATIONS = {"diagnose", "batch", "create", "get", "list"};
+    private static final int DIAGNOSE = 0;
+    private static final int BATCH = 1;
+    private static final int CREATE = 2;
+    private static final int GET = 3;
+    private static final int LIST = 4;
+    private static final int TIMEOUT_MILLIS = 10000;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    
+    private LoadTest() {}
+    
+    static void run(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("duration", "30");
+        options.put("warmup", "5");
+        options.put("clients", "32");
+        options.put("rate", "0");
+        options.put("mix", "diagnose:70,batch:5,create:10,get:10,list:5");
+        options.put("batch-size", "50");
+        options.put("patients", "10000");
+        options.put("seed", "1");
+        options.put("out", "load-report.json");
+        for (int i = 1; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            String key = args[i].startsWith("--") && eq > 2 ? args[i].substring(2, eq) : null;
+            if (key == null || !options.containsKey(key)) {
+                System.err.println("Unknown option " + args[i] + "; options are --" + String.join("=, --", options.keySet()) + "=");
+                System.exit(2);
+            }
+            options.put(key, args[i].substring(eq + 1));
+        }
+        int duration = Integer.parseInt(options.get("duration"));
+        int warmup = Integer.parseInt(options.get("warmup"));
+        int clients = Integer.parseInt(options.get("clients"));
+        double rate = Double.parseDouble(options.get("rate"));
+        int batchSize = Integer.parseInt(options.get("batch-size"));
+        int patients = Integer.parseInt(options.get("patients"));
+        long seed = Long.parseLong(options.get("seed"));
+        int[] mix = parseMix(options.get("mix"));
+        if (duration < 1 || warmup < 0 || clients < 1 || rate < 0 || batchSize < 1 || patients < 1) {
+            System.err.println("duration, clients, batch-size and patients must be positive; warmup and rate not negative");
+            System.exit(2);
+        }
+        
+        DiseasePredictor.initializeModel();
+        String dataDir = System.getProperty("patientdb.dir", "");
+        if (!dataDir.isEmpty()) {
+            PatientDB.open(Paths.get(dataDir));
+        }
+        Random seeding = new Random(seed);
+        int[] seeded = new int[patients];
+        int seededCount = 0;
+        List<Patient> batch = new ArrayList<>();
+        for (int i = 0; i < patients; i++) {
+            batch.add(PatientStoreBenchmark.synthetic(seeding, i));
+            if (batch.size() == 1000 || i == patients - 1) {
+                for (Patient p : PatientDB.addPatients(batch, Durability.ASYNC)) {
+                    seeded[seededCount++] = p.getId();
+                }
+                batch = new ArrayList<>();
+            }
+        }
+        String[] symptoms = DiseasePredictor.getModel().symptomNames();
+        
+        Server server = Main.createServer(0);
+        server.start();
+        String base = "http://localhost:" + Main.localPort(server);
+        System.out.printf("Load test: %d s after %d s warmup, %d clients, %s, mix %s, %,d patients%n", duration, warmup,
+            clients, rate > 0 ? String.format("%.0f requests/s scheduled", rate) : "unthrottled", options.get("mix"),
+            PatientDB.size());
+        
+        long begin = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = begin + TimeUnit.SECONDS.toNanos(warmup);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+        Stats[][] perClient = new Stats[clients][];
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            Stats[] stats = newStats();
+            perClient[c] = stats;
+            int client = c;
+            Thread t = new Thread(() -> {
+                Random random = new Random(seed * 31 + client);
+                Gson gson = new Gson();
+                for (long i = 0; ; i++) {
+                    long intended = rate > 0 ? begin + (long) ((i * clients + client) * 1e9 / rate) : System.nanoTime();
+                    if (intended - end >= 0) {
+                        break;
+                    }
+                    int op = pick(mix, random);
+                    if (rate > 0) {
+                        long wait;
+                        while ((wait = intended - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    long sent = System.nanoTime();
+                    if (sent - end >= 0) {
+                        if (intended - measureFrom >= 0) {
+                            stats[op].unsent(sent - intended);
+                        }
+                        continue;
+                    }
+                    int status = send(base, op, random, gson, symptoms, seeded, batchSize);
+                    long done = System.nanoTime();
+                    if (intended - measureFrom >= 0) {
+                        stats[op].record(status, done - intended, done - sent);
+                    }
+                    if (done - measureFrom >= 0 && done - end < 0 && status >= 200 && status < 400) {
+                        stats[op].completed++;
+                    }
+                }
+            }, "load-client-" + c);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        server.stop();
+        PatientDB.close();
+        
+        Stats[] total = newStats();
+        for (Stats[] stats : perClient) {
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                total[op].add(stats[op]);
+            }
+        }
+        Map<String, Object> report = report(options, total, duration, rate);
+        print(report);
+        Path out = Paths.get(options.get("out"));
+        Files.write(out, new GsonBuilder().setPrettyPrinting().serializeSpecialFloatingPointValues().create()
+            .toJson(report).getBytes(StandardCharsets.UTF_8));
+        System.out.println("Report written to " + out.toAbsolutePath());
+    }
+    
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            int op = Arrays.asList(OPERATIONS).indexOf(kv[0].trim());
+            if (op < 0 || kv.length != 2) {
+                throw new IllegalArgumentException("Mix entries are operation:weight with operations "
+                    + Arrays.toString(OPERATIONS) + ": " + part);
+            }
+            weights[op] = Integer.parseInt(kv[1].trim());
+        }
+        int sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            weights[i] = sum;
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("Mix has no positive weight: " + mix);
+        }
+        return weights;
+    }
+    
+    /** Picks an operation from cumulative weights. */
+    private static int pick(int[] cumulative, Random random) {
+        int r = random.nextInt(cumulative[cumulative.length - 1]);
+        int op = 0;
+        while (r >= cumulative[op]) {
+            op++;
+        }
+        return op;
+    }
+    
+    private static Stats[] newStats() {
+        Stats[] stats = new Stats[OPERATIONS.length];
+        for (int op = 0; op < stats.length; op++) {
+            stats[op] = new Stats();
+        }
+        return stats;
+    }
+    
+    /** Sends one request and returns its status, or -1 if it failed or timed out. */
+    private static int send(String base, int op, Random random, Gson gson, String[] symptoms, int[] seeded,
+                            int batchSize) {
+        String method = "GET";
+        String path;
+        String contentType = "application/json";
+        byte[] body = null;
+        switch (op) {
+            case DIAGNOSE:
+                method = "POST";
+                path = "/api/diagnosis/";
+                body = gson.toJson(diagnosisRequest(random, symptoms)).getBytes(StandardCharsets.UTF_8);
+                break;
+            case BATCH:
+                method = "POST";
+                path = "/api/diagnosis/batch";
+                contentType = "application/x-ndjson";
+                StringBuilder lines = new StringBuilder();
+                for (int i = 0; i < batchSize; i++) {
+                    lines.append(gson.toJson(diagnosisRequest(random, symptoms))).append('\n');
+                }
+                body = lines.toString().getBytes(StandardCharsets.UTF_8);
+                break;
+            case CREATE:
+                method = "POST";
+                path = "/api/patients/";
+                body = gson.toJson(PatientStoreBenchmark.synthetic(random, random.nextInt(1_000_000)))
+                    .getBytes(StandardCharsets.UTF_8);
+                break;
+            case GET:
+                path = "/api/patients/" + seeded[random.nextInt(seeded.length)];
+                break;
+            default:
+                path = "/api/patients/?limit=100&after=" + (seeded[random.nextInt(seeded.length)] - 1);
+                break;
+        }
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(base + path).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setRequestMethod(method);
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", contentType);
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body);
+                }
+            }
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                try (InputStream drained = in) {
+                    byte[] buffer = new byte[8192];
+                    while (drained.read(buffer) != -1) {
+                        // Reading to the end lets the connection be reused.
+                    }
+                }
+            }
+            return status;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+    
+    private static Patient diagnosisRequest(Random random, String[] symptoms) {
+        Patient p = new Patient();
+        p.setAge(1 + random.nextInt(90));
+        List<String> chosen = new ArrayList<>();
+        for (int n = 1 + random.nextInt(5); chosen.size() < n; ) {
+            chosen.add(symptoms[random.nextInt(symptoms.length)]);
+        }
+        p.setSymptoms(chosen);
+        p.setMedicalHistory(random.nextInt(4) == 0 ? "History of diabetes" : "");
+        return p;
+    }
+    
+    private static Map<String, Object> report(Map<String, String> options, Stats[] stats, int duration, double rate) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("config", options);
+        Map<String, Object> environment = new LinkedHashMap<>();
+        environment.put("java", System.getProperty("java.version"));
+        environment.put("processors", Runtime.getRuntime().availableProcessors());
+        environment.put("maxHeapMiB", Runtime.getRuntime().maxMemory() >> 20);
+        environment.put("serverThreads", Integer.getInteger("server.threads", 200));
+        environment.put("engine", System.getProperty("patientdb.engine", "heap"));
+        report.put("environment", environment);
+        report.put("latency", rate > 0 ? "from scheduled start (coordinated-omission corrected)" : "service time (unthrottled)");
+        Map<String, Object> operations = new LinkedHashMap<>();
+        Stats all = new Stats();
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            if (stats[op].count() > 0) {
+                operations.put(OPERATIONS[op], stats[op].summary(duration));
+                all.add(stats[op]);
+            }
+        }
+        report.put("operations", operations);
+        report.put("total", all.summary(duration));
+        return report;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static void print(Map<String, Object> report) {
+        System.out.printf("Latency is %s, in ms%n", report.get("latency"));
+        System.out.printf("%-9s %9s %9s %7s %7s %8s %8s %8s %8s %9s %9s%n", "operation", "ok/s", "requests", "errors",
+            "unsent", "p50", "p90", "p99", "p99.9", "max", "svc p99");
+        Map<String, Object> rows = new LinkedHashMap<>((Map<String, Object>) report.get("operations"));
+        rows.put("total", report.get("total"));
+        for (Map.Entry<String, Object> row : rows.entrySet()) {
+            Map<String, Object> s = (Map<String, Object>) row.getValue();
+            Map<String, Object> latency = (Map<String, Object>) s.get("latencyMs");
+            Map<String, Object> service = (Map<String, Object>) s.get("serviceTimeMs");
+            System.out.printf("%-9s %9.1f %9d %7d %7d %8.2f %8.2f %8.2f %8.2f %9.2f %9.2f%n", row.getKey(),
+                s.get("okPerSecond"), s.get("requests"), s.get("errors"), s.get("unsent"), latency.get("p50"),
+                latency.get("p90"), latency.get("p99"), latency.get("p99.9"), latency.get("max"), service.get("p99"));
+        }
+    }
+    
+    /** One client's results for one operation; merged after the run. */
+    private static final class Stats {
+        final Histogram latency = new Histogram();
+        final Histogram service = new Histogram();
+        final Map<Integer, Long> statuses = new TreeMap<>();
+        long unsent;
+        long completed;
+        
+        void record(int status, long latencyNanos, long serviceNanos) {
+            statuses.merge(status, 1L, Long::sum);
+            latency.record(latencyNanos);
+            service.record(serviceNanos);
+        }
+        
+        void unsent(long delayNanos) {
+            unsent++;
+            latency.record(delayNanos);
+        }
+        
+        void add(Stats other) {
+            latency.add(other.latency);
+            service.add(other.service);
+            for (Map.Entry<Integer, Long> e : other.statuses.entrySet()) {
+                statuses.merge(e.getKey(), e.getValue(), Long::sum);
+            }
+            unsent += other.unsent;
+            completed += other.completed;
+        }
+        
+        long count() {
+            return latency.count + completed;
+        }
+        
+        Map<String, Object> summary(int duration) {
+            long requests = 0;
+            long ok = 0;
+            Map<String, Long> byStatus = new LinkedHashMap<>();
+            for (Map.Entry<Integer, Long> e : statuses.entrySet()) {
+                requests += e.getValue();
+                if (e.getKey() >= 200 && e.getKey() < 400) {
+                    ok += e.getValue();
+                }
+                byStatus.put(e.getKey() < 0 ? "failed" : String.valueOf(e.getKey()), e.getValue());
+            }
+            Map<String, Object> s = new LinkedHashMap<>();
+            s.put("requests", requests);
+            s.put("ok", ok);
+            s.put("errors", requests - ok);
+            s.put("unsent", unsent);
+            s.put("okPerSecond", round(completed / (double) duration));
+            s.put("statuses", byStatus);
+            s.put("latencyMs", latency.summary());
+            s.put("serviceTimeMs", service.summary());
+            return s;
+        }
+    }
+    
+    /**
+     * Log-linear histogram in microseconds: values under 64 are exact and
+     * every power of two above is split into 64 buckets, so percentiles are
+     * within about 1.6% of the true value. Percentiles report a bucket's upper
+     * bound, never understating latency.
+     */
+    private static final class Histogram {
+        private static final int SUB_BITS = 6;
+        private static final int SUB = 1 << SUB_BITS;
+        
+        private final long[] counts = new long[SUB + (64 - SUB_BITS) * SUB];
+        private long count;
+        private long sumMicros;
+        private long maxMicros;
+        
+        void record(long nanos) {
+            long v = Math.max(0, nanos / 1000);
+            int index;
+            if (v < SUB) {
+                index = (int) v;
+            } else {
+                int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+                index = SUB + shift * SUB + (int) ((v >>> shift) - SUB);
+            }
+            counts[index]++;
+            count++;
+            sumMicros += v;
+            maxMicros = Math.max(maxMicros, v);
+        }
+        
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            sumMicros += other.sumMicros;
+            maxMicros = Math.max(maxMicros, other.maxMicros);
+        }
+        
+        private static long upperBound(int index) {
+            if (index < SUB) {
+                return index;
+            }
+            int shift = (index - SUB) / SUB;
+            long top = SUB + (index - SUB) % SUB;
+            return ((top + 1) << shift) - 1;
+        }
+        
+        long percentile(double p) {
+            long rank = Math.max(1, (long) Math.ceil(count * p / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+        
+        Map<String, Object> summary() {
+            Map<String, Object> s = new LinkedHashMap<>();
+            s.put("mean", count > 0 ? round(sumMicros / (double) count / 1000) : 0.0);
+            for (double p : PERCENTILES) {
+                s.put("p" + (p == Math.rint(p) ? String.valueOf((int) p) : String.valueOf(p)),
+                    count > 0 ? round(percentile(p) / 1000.0) : 0.0);
+            }
+            s.put("max", round(maxMicros / 1000.0));
+            return s;
+        }
+    }
+    
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+}
+
+/**
+ * Answers requests an endpoint has no capacity for with an immediate 503 and
+ * {@code Retry-After} ({@code server.retryAfterSeconds}, default 1), so
+ * overload shows up as fast rejections rather than ever longer queues.
+ * Rejections are counted by endpoint and reason in
+ * {@code http_requests_shed_total}.
+ */
+final class LoadShedding {
+    static final int RETRY_AFTER_SECONDS = Math.max(1, Integer.getInteger("server.retryAfterSeconds", 1));
+    
+    private LoadShedding() {}
+    
+    static void reject(HttpServletResponse resp, String endpoint, String reason) throws IOException {
+        Metrics.counter("http_requests_shed_total", "Requests rejected with 503 because an endpoint was at capacity.",
+            "endpoint=\"" + endpoint + "\",reason=\"" + reason + "\"").increment();
+        resp.setStatus(503);
+        resp.setHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.getWriter().write("{\"error\":\"Server busy, retry later\"}");
+    }
+}
+
+/** Runs an action when an async request completes, whichever way it ends. */
+final class AsyncCompletion implements AsyncListener {
+    private final Runnable action;
+    
+    AsyncCompletion(Runnable action) {
+        this.action = action;
+    }
+    
+    @Override
+    public void onComplete(AsyncEvent event) {
+        action.run();
+    }
+    
+    @Override
+    public void onTimeout(AsyncEvent event) {}
+    
+    @Override
+    public void onError(AsyncEvent event) {}
+    
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
+}
+
+/**
+ * Records latency and status of every request to one endpoint. An async
+ * request is recorded when it completes rather than when the servlet
+ * dispatch returns, and an exception escaping the chain counts as a 500.
+ */
+final class RequestMetricsFilter implements Filter {
+    private final String endpoint;
+    
+    RequestMetricsFilter(String endpoint) {
+        this.endpoint = endpoint;
+    }
+    
+    @Override
+    public void init(FilterConfig config) {}
+    
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        long start = System.nanoTime();
+        String method = ((HttpServletRequest) request).getMethod();
+        HttpServletResponse resp = (HttpServletResponse) response;
+        boolean failed = true;
+        try {
+            chain.doFilter(request, response);
+            failed = false;
+        } finally {
+            if (!failed && request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new AsyncCompletion(
+                    () -> Metrics.recordRequest(endpoint, method, resp.getStatus(), start)));
+            } else {
+                Metrics.recordRequest(endpoint, method, failed ? 500 : resp.getStatus(), start);
+            }
+        }
+    }
+    
+    @Override
+    public void destroy() {}
+}
+
+/**
+ * Caps the requests one endpoint has in progress. A request over the limit is
+ * shed at once instead of waiting for a permit. An async request keeps its
+ * permit until it completes, since the servlet dispatch returning does not
+ * mean the work is done.
+ */
+final class ConcurrencyLimitFilter implements Filter {
+    private final String endpoint;
+    private final Semaphore permits;
+    
+    ConcurrencyLimitFilter(String endpoint, int limit) {
+        this.endpoint = endpoint;
+        this.permits = new Semaphore(limit);
+        String labels = "endpoint=\"" + endpoint + "\"";
+        Metrics.gauge("http_requests_in_progress", "Requests holding an endpoint concurrency permit.", labels,
+            () -> limit - permits.availablePermits());
+        Metrics.gauge("http_concurrency_limit", "Configured concurrency limit per endpoint.", labels, () -> limit);
+    }
+    
+    @Override
+    public void init(FilterConfig config) {}
+    
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (!permits.tryAcquire()) {
+            LoadShedding.reject((HttpServletResponse) response, endpoint, "concurrency");
+            return;
+        }
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new AsyncCompletion(permits::release));
+            } else {
+                permits.release();
+            }
+        }
+    }
+    
+    @Override
+    public void destroy() {}
+}
+
+class PatientServlet extends HttpServlet {
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    
+    private final Semaphore imports = new Semaphore(1);
+    private Gson gson = new Gson();
+    
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if ("PATCH".equals(req.getMethod())) {
+            doPatch(req, resp);
+        } else {
+            super.service(req, resp);
+        }
+    }
+    
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        
+        String pathInfo = req.getPathInfo();
+        
+        if (pathInfo == null || pathInfo.equals("/")) {
+            PatientQuery query;
+            int after;
+            int limit;
+            try {
+                query = PatientQuery.fromRequest(req);
+                String afterParam = req.getParameter("after");
+                String limitParam = req.getParameter("limit");
+                after = afterParam != null ? Integer.parseInt(afterParam) : Integer.MIN_VALUE;
+                limit = limitParam != null ? Integer.parseInt(limitParam)
+                    : afterParam != null ? DEFAULT_PAGE_SIZE : Integer.MAX_VALUE;
+            } catch (NumberFormatException e) {
+                resp.setStatus(400);
+                return;
+            }
+            if (limit <= 0 || (limit != Integer.MAX_VALUE && limit > MAX_PAGE_SIZE)) {
+                resp.setStatus(400);
+                return;
+            }
+            
+            Iterable<Patient> source = query != null
+                ? PatientDB.findPatients(query, after, limit == Integer.MAX_VALUE ? limit : limit + 1)
+                : PatientDB.getPatientsAfter(after);
+            if (limit == Integer.MAX_VALUE) {
+                writeArray(resp, source);
+                return;
+            }
+            
+            List<Patient> page = new ArrayList<>(Math.min(limit, 1024));
+            Iterator<Patient> it = source.iterator();
+            while (page.size() < limit && it.hasNext()) {
+                page.add(it.next());
+            }
+            if (it.hasNext() && !page.isEmpty()) {
+                resp.setHeader("X-Next-Cursor", String.valueOf(page.get(page.size() - 1).getId()));
+            }
+            writeArray(resp, page);
+        } else {
+            try {
+                int id = Integer.parseInt(pathInfo.substring(1));
+                Patient patient = PatientDB.getPatient(id);
+                if (patient != null) {
+                    resp.setHeader("ETag", etag(patient));
+                    resp.getWriter().write(gson.toJson(patient));
+                } else {
+                    resp.setStatus(404);
+                }
+            } catch (NumberFormatException e) {
+                resp.setStatus(400);
+            }
+        }
+    }
+    
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        
+        if ("/import".equals(req.getPathInfo())) {
+            doImport(req, resp);
+            return;
+        }
+        
+        BufferedReader body = req.getReader();
+        Durability durability;
+        try {
+            durability = Durability.parse(req.getParameter("durability"), PatientDB.getDefaultDurability());
+        } catch (IllegalArgumentException e) {
+            resp.setStatus(400);
+            return;
+        }
+        
+        Patient patient = gson.fromJson(body, Patient.class);
+        Patient created = PatientDB.addPatient(patient, durability);
+        resp.setStatus(201);
+        resp.getWriter().write(gson.toJson(created));
+    }
+    
+    /**
+     * Bulk import: spools a CSV or NDJSON body to a temporary file and loads
+     * it with {@link PatientImporter}, streaming a progress report per line
+     * every second and the final report, with the first malformed lines, last.
+     * The format comes from {@code format} or the content type, 415 if neither
+     * names one; {@code predict=true} fills in missing diagnoses. One import
+     * runs at a time and another is shed with 503.
+     */
+    private void doImport(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String formatParam = req.getParameter("format");
+        PatientImporter.Format format = PatientImporter.Format.of(
+            formatParam != null ? formatParam : req.getContentType());
+        Durability durability;
+        try {
+            durability = Durability.parse(req.getParameter("durability"), PatientDB.getDefaultDurability());
+        } catch (IllegalArgumentException e) {
+            resp.setStatus(400);
+            return;
+        }
+        if (format == null) {
+            resp.setStatus(415);
+            return;
+        }
+        if (!imports.tryAcquire()) {
+            LoadShedding.reject(resp, "patients", "import");
+            return;
+        }
+        Path spooled = null;
+        try {
+            spooled = Files.createTempFile("patient-import-", "." + format.name().toLowerCase(Locale.ROOT));
+            try (InputStream in = req.getInputStream()) {
+                Files.copy(in, spooled, StandardCopyOption.REPLACE_EXISTING);
+            }
+            PatientImporter importer = new PatientImporter(format, "true".equals(req.getParameter("predict")),
+                PatientImporter.DEFAULT_THREADS, PatientImporter.DEFAULT_BATCH, durability);
+            resp.setContentType("application/x-ndjson");
+            PrintWriter out = resp.getWriter();
+            PatientImporter.Report report;
+            try {
+                report = importer.run(spooled, progress -> {
+                    out.write(gson.toJson(progress) + "\n");
+                    resp.flushBuffer();
+                });
+            } catch (IllegalArgumentException e) {
+                resp.setContentType("application/json");
+                resp.setStatus(400);
+                JsonObject error = new JsonObject();
+                error.addProperty("error", e.getMessage());
+                out.write(gson.toJson(error));
+                return;
+            }
+            out.write(gson.toJson(report) + "\n");
+        } finally {
+            if (spooled != null) {
+                Files.deleteIfExists(spooled);
+            }
+            imports.release();
+        }
+    }
+    
+    /**
+     * Replaces a patient. The version being replaced must be given in an
+     * {@code If-Match} header (the ETag from GET) or as {@code version} in the
+     * body: 428 if neither is present, 409 with the current patient if another
+     * update came first.
+     */
+    @Override
+    protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        update(req, resp, false);
+    }
+    
+    /**
+     * Applies a JSON merge patch: members present in the body replace the
+     * patient's fields and the rest are kept. Versions are checked as for PUT.
+     */
+    protected void doPatch(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        update(req, resp, true);
+    }
+    
+    private void update(HttpServletRequest req, HttpServletResponse resp, boolean merge) throws IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        
+        int id;
+        Durability durability;
+        JsonObject body;
+        try {
+            id = Integer.parseInt(req.getPathInfo() != null ? req.getPathInfo().substring(1) : "");
+            JsonElement parsed = JsonParser.parseReader(req.getReader());
+            if (!parsed.isJsonObject()) {
+                resp.setStatus(400);
+                return;
+            }
+            body = parsed.getAsJsonObject();
+            durability = Durability.parse(req.getParameter("durability"), PatientDB.getDefaultDurability());
+        } catch (IllegalArgumentException | JsonParseException e) {
+            resp.setStatus(400);
+            return;
+        }
+        Integer expected;
+        try {
+            expected = expectedVersion(req.getHeader("If-Match"), body);
+        } catch (NumberFormatException e) {
+            resp.setStatus(400);
+            return;
+        }
+        if (expected == null) {
+            resp.setStatus(428);
+            return;
+        }
+        body.remove("id");
+        body.remove("version");
+        
+        Patient updated;
+        try {
+            Patient replacement;
+            if (merge) {
+                Patient current = PatientDB.getPatient(id);
+                if (current == null) {
+                    resp.setStatus(404);
+                    return;
+                }
+                if (current.getVersion() != expected) {
+                    throw new StaleVersionException(current);
+                }
+                JsonObject merged = gson.toJsonTree(current).getAsJsonObject();
+                for (Map.Entry<String, JsonElement> member : body.entrySet()) {
+                    merged.add(member.getKey(), member.getValue());
+                }
+                replacement = gson.fromJson(merged, Patient.class);
+            } else {
+                replacement = gson.fromJson(body, Patient.class);
+            }
+            updated = PatientDB.updatePatient(id, expected, replacement, durability);
+        } catch (JsonParseException e) {
+            resp.setStatus(400);
+            return;
+        } catch (StaleVersionException e) {
+            resp.setStatus(409);
+            resp.setHeader("ETag", etag(e.current));
+            resp.getWriter().write(gson.toJson(e.current));
+            return;
+        }
+        if (updated == null) {
+            resp.setStatus(404);
+            return;
+        }
+        resp.setHeader("ETag", etag(updated));
+        resp.getWriter().write(gson.toJson(updated));
+    }
+    
+    /**
+     * The version from {@code If-Match} ({@code "3"}, {@code W/"3"} or {@code 3}), else from the body,
+     * where it must be an integer JSON number. Anything else throws {@link NumberFormatException}.
+     */
+    private static Integer expectedVersion(String ifMatch, JsonObject body) {
+        if (ifMatch != null) {
+            String tag = ifMatch.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+                tag = tag.substring(1, tag.length() - 1);
+            }
+            return Integer.valueOf(tag);
+        }
+        JsonElement version = body.get("version");
+        if (version == null || version.isJsonNull()) {
+            return null;
+        }
+        if (!version.isJsonPrimitive() || !version.getAsJsonPrimitive().isNumber()) {
+            throw new NumberFormatException("version must be a number");
+        }
+        return Integer.valueOf(version.getAsString());
+    }
+    
+    private static String etag(Patient patient) {
+        return "\"" + patient.getVersion() + "\"";
+    }
+    
+    @Override
+    protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String pathInfo = req.getPathInfo();
+        if (pathInfo != null && !pathInfo.equals("/")) {
+            try {
+                int id = Integer.parseInt(pathInfo.substring(1));
+                Durability durability = Durability.parse(req.getParameter("durability"),
+                    PatientDB.getDefaultDurability());
+                PatientDB.deletePatient(id, durability);
+                resp.setStatus(200);
+            } catch (IllegalArgumentException e) {
+                resp.setStatus(400);
+            }
+        }
+    }
+    
+    /**
+     * Writes the patients as a JSON array one element at a time, so the
+     * response never exists as a single String however many rows there are.
+     */
+    private void writeArray(HttpServletResponse resp, Iterable<Patient> patients) throws IOException {
+        JsonWriter out = new JsonWriter(resp.getWriter());
+        out.beginArray();
+        for (Patient patient : patients) {
+            gson.toJson(patient, Patient.class, out);
+        }
+        out.endArray();
+        out.flush();
+    }
+}
+
+/**
+ * Diagnosis endpoints. A single diagnosis is handled asynchronously: the body
+ * is read with a non-blocking {@link ReadListener}, so a slow upload holds no
+ * thread, and scoring runs on a dedicated pool of {@code diagnosis.threads}
+ * (default: one per core) with a queue of {@code diagnosis.queue} (default 64
+ * per thread). When that queue is full, or a request waits longer than
+ * {@code diagnosis.timeoutMillis} (default 30 s), the request is shed with a
+ * 503. Bodies over {@code diagnosis.maxBodyBytes} (default 1 MiB) get a 413.
+ * {@code diagnosis.async=false} restores blocking handling on the Jetty
+ * thread. Batches always stream on the request thread.
+ */
+class DiagnosisServlet extends HttpServlet {
+    private static final int BATCH_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final int BATCH_WINDOW = BATCH_PARALLELISM * 4;
+    private static final ForkJoinPool BATCH_POOL = new ForkJoinPool(BATCH_PARALLELISM);
+    
+    private Gson gson = new Gson();
+    private final boolean async = !"false".equals(System.getProperty("diagnosis.async"));
+    private final long timeoutMillis = Long.getLong("diagnosis.timeoutMillis", 30_000L);
+    private final int maxBodyBytes = Integer.getInteger("diagnosis.maxBodyBytes", 1 << 20);
+    private final ThreadPoolExecutor executor;
+    
+    DiagnosisServlet() {
+        int threads = Integer.getInteger("diagnosis.threads", Runtime.getRuntime().availableProcessors());
+        int queue = Integer.getInteger("diagnosis.queue", threads * 64);
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue),
+            r -> {
+                Thread t = new Thread(r, "diagnosis-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        Metrics.gauge("diagnosis_executor_queued", "Diagnoses waiting for a scoring thread.", "",
+            () -> executor.getQueue().size());
+        Metrics.gauge("diagnosis_executor_active", "Scoring threads busy with a diagnosis.", "", executor::getActiveCount);
+    }
+    
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+    
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        
+        boolean batch = "/batch".equals(req.getPathInfo());
+        if (async && !batch) {
+            ServletInputStream in = req.getInputStream();
+            Integer limit = parseLimit(req, resp);
+            Charset charset = limit != null ? parseCharset(req, resp) : null;
+            if (charset != null) {
+                diagnoseAsync(req, resp, in, charset, limit);
+            }
+            return;
+        }
+        
+        // Claim the body before reading parameters so a form content type is never parsed as one.
+        BufferedReader body = req.getReader();
+        Integer limit = parseLimit(req, resp);
+        if (limit == null) {
+            return;
+        }
+        
+        if (batch) {
+            doBatch(body, req, resp, limit);
+            return;
+        }
+        
+        Patient patient = gson.fromJson(body, Patient.class);
+        if (patient == null || patient.getSymptoms() == null) {
+            resp.setStatus(400);
+            return;
+        }
+        List<DiagnosisResult> results = DiseasePredictor.predict(
+            patient.getSymptoms(), 
+            patient.getAge(), 
+            patient.getMedicalHistory(),
+            limit
+        );
+        
+        resp.getWriter().write(gson.toJson(results));
+    }
+    
+    /** The {@code limit} parameter, or null after answering 400 for an invalid one. */
+    private static Integer parseLimit(HttpServletRequest req, HttpServletResponse resp) {
+        int limit = Integer.MAX_VALUE;
+        String limitParam = req.getParameter("limit");
+        if (limitParam != null) {
+            try {
+                limit = Integer.parseInt(limitParam);
+            } catch (NumberFormatException e) {
+                resp.setStatus(400);
+                return null;
+            }
+            if (limit <= 0) {
+                resp.setStatus(400);
+                return null;
+            }
+        }
+        return limit;
+    }
+    
+    /** The request body's charset, UTF-8 if unnamed, or null after answering 415 for an unsupported one. */
+    private static Charset parseCharset(HttpServletRequest req, HttpServletResponse resp) {
+        String name = req.getCharacterEncoding();
+        if (name == null) {
+            return StandardCharsets.UTF_8;
+        }
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            resp.setStatus(415);
+            return null;
+        }
+    }
+    
+    /**
+     * Collects the body without blocking, then scores it on the executor. The
+     * first of completion, rejection and timeout to claim {@code finished}
+     * writes the response.
+     */
+    private void diagnoseAsync(HttpServletRequest req, HttpServletResponse resp, ServletInputStream in,
+                               Charset charset, int limit) {
+        AsyncContext context = req.startAsync();
+        context.setTimeout(timeoutMillis);
+        AtomicBoolean finished = new AtomicBoolean();
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (finished.compareAndSet(false, true)) {
+                    LoadShedding.reject(resp, "diagnosis", "timeout");
+                    context.complete();
+                }
+            }
+            
+            @Override
+            public void onError(AsyncEvent event) {
+                if (finished.compareAndSet(false, true)) {
+                    context.complete();
+                }
+            }
+            
+            @Override
+            public void onComplete(AsyncEvent event) {}
+            
+            @Override
+            public void onStartAsync(AsyncEvent event) {}
+        });
+        
+        ByteArrayOutputStream body = new ByteArrayOutputStream(512);
+        in.setReadListener(new ReadListener() {
+            private final byte[] buffer = new byte[8192];
+            
+            @Override
+            public void onDataAvailable() throws IOException {
+                int n;
+                while (in.isReady() && (n = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, n);
+                    if (body.size() > maxBodyBytes && finished.compareAndSet(false, true)) {
+                        resp.setStatus(413);
+                        context.complete();
+                        return;
+                    }
+                }
+            }
+            
+            @Override
+            public void onAllDataRead() throws IOException {
+                if (finished.get()) {
+                    return;
+                }
+                String json = new String(body.toByteArray(), charset);
+                try {
+                    executor.execute(() -> respond(context, resp, finished, json, limit));
+                } catch (RejectedExecutionException e) {
+                    if (finished.compareAndSet(false, true)) {
+                        LoadShedding.reject(resp, "diagnosis", "queue");
+                        context.complete();
+                    }
+                }
+            }
+            
+            @Override
+            public void onError(Throwable t) {
+                if (finished.compareAndSet(false, true)) {
+                    resp.setStatus(400);
+                    context.complete();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Scores on an executor thread. Every outcome claims {@code finished} and
+     * completes the request: 400 for a body that is not a patient with
+     * symptoms, 500 if scoring fails, so neither waits out the timeout and is
+     * reported as shed.
+     */
+    private void respond(AsyncContext context, HttpServletResponse resp, AtomicBoolean finished, String json, int limit) {
+        if (finished.get()) {
+            return;
+        }
+        String output = null;
+        int status = 400;
+        try {
+            Patient patient = gson.fromJson(json, Patient.class);
+            if (patient != null && patient.getSymptoms() != null) {
+                output = gson.toJson(DiseasePredictor.predict(
+                    patient.getSymptoms(), patient.getAge(), patient.getMedicalHistory(), limit));
+            }
+        } catch (JsonParseException e) {
+            output = null;
+        } catch (RuntimeException e) {
+            System.err.println("Diagnosis failed: " + e);
+            status = 500;
+        }
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (output != null) {
+                resp.getWriter().write(output);
+            } else {
+                resp.setStatus(status);
+            }
+        } catch (IOException e) {
+            // The client went away; completing below releases the request either way.
+        } finally {
+            context.complete();
+        }
+    }
+    
+    /**
+     * Reads one patient per line (NDJSON) and streams one result per line back.
+     * At most {@link #BATCH_WINDOW} patients are in flight at once, so memory
+     * stays bounded regardless of the request size. {@code order=input} (the
+     * default) preserves request order; {@code order=completion} emits each
+     * result as soon as it is scored.
+     */
+    private void doBatch(BufferedReader body, HttpServletRequest req, HttpServletResponse resp, int limit)
+            throws IOException {
+        String order = req.getParameter("order");
+        boolean completionOrder = "completion".equals(order);
+        if (order != null && !completionOrder && !"input".equals(order)) {
+            resp.setStatus(400);
+            return;
+        }
+        resp.setContentType("application/x-ndjson");
+        
+        JsonReader in = new JsonReader(body);
+        in.setLenient(true);
+        Writer raw = resp.getWriter();
+        JsonWriter out = new JsonWriter(raw);
+        out.setLenient(true);
+        
+        Deque<Future<BatchDiagnosisResult>> pending = new ArrayDeque<>();
+        CompletionService<BatchDiagnosisResult> completed = new ExecutorCompletionService<>(BATCH_POOL);
+        int inFlight = 0;
+        int index = 0;
+        try {
+            try {
+                while (in.peek() != JsonToken.END_DOCUMENT) {
+                    Patient patient = gson.fromJson(in, Patient.class);
+                    final int i = index++;
+                    final int k = limit;
+                    Callable<BatchDiagnosisResult> task = () -> diagnose(i, patient, k);
+                    if (completionOrder) {
+                        completed.submit(task);
+                    } else {
+                        pending.add(BATCH_POOL.submit(task));
+                    }
+                    if (++inFlight >= BATCH_WINDOW) {
+                        writeLine(out, raw, next(completionOrder, pending, completed, out));
+                        inFlight--;
+                    }
+                }
+            } catch (MalformedJsonException | JsonParseException e) {
+                for (; inFlight > 0; inFlight--) {
+                    writeLine(out, raw, next(completionOrder, pending, completed, out));
+                }
+                writeLine(out, raw, BatchDiagnosisResult.error(index, "Malformed record: " + e.getMessage()));
+            }
+            for (; inFlight > 0; inFlight--) {
+                writeLine(out, raw, next(completionOrder, pending, completed, out));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch diagnosis interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Batch diagnosis failed", e.getCause());
+        }
+        out.flush();
+    }
+    
+    private static BatchDiagnosisResult diagnose(int index, Patient patient, int limit) {
+        if (patient == null) {
+            return BatchDiagnosisResult.error(index, "Empty record");
+        }
+        if (patient.getSymptoms() == null) {
+            return BatchDiagnosisResult.error(index, "Record has no symptoms");
+        }
+        try {
+            List<DiagnosisResult> results = DiseasePredictor.predict(
+                patient.getSymptoms(), patient.getAge(), patient.getMedicalHistory(), limit);
+            return new BatchDiagnosisResult(index, patient.getId(), results);
+        } catch (RuntimeException e) {
+            // The detail is for the server log; clients get a stable message.
+            System.err.println("Batch diagnosis of record " + index + " failed: " + e);
+            return BatchDiagnosisResult.error(index, "Diagnosis failed");
+        }
+    }
+    
+    private static BatchDiagnosisResult next(boolean completionOrder, Deque<Future<BatchDiagnosisResult>> pending,
+                                             CompletionService<BatchDiagnosisResult> completed, JsonWriter out)
+            throws IOException, InterruptedException, ExecutionException {
+        Future<BatchDiagnosisResult> future = completionOrder ? completed.poll() : pending.poll();
+        if (future == null || !future.isDone()) {
+            out.flush();
+        }
+        if (future == null) {
+            future = completed.take();
+        }
+        return future.get();
+    }
+    
+    private void writeLine(JsonWriter out, Writer raw, BatchDiagnosisResult result) throws IOException {
+        gson.toJson(result, BatchDiagnosisResult.class, out);
+        raw.write('\n');
+    }
+}
+
+class ModelServlet extends HttpServlet {
+    private Gson gson = new Gson();
+    
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.getWriter().write(gson.toJson(describe(DiseasePredictor.getModel())));
+    }
+    
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        
+        if (!"/reload".equals(req.getPathInfo())) {
+            resp.setStatus(404);
+            return;
+        }
+        try {
+            resp.getWriter().write(gson.toJson(describe(DiseasePredictor.reloadModel())));
+        } catch (IOException | RuntimeException e) {
+            resp.setStatus(500);
+            Map<String, String> error = new LinkedHashMap<>();
+            error.put("error", "Model reload failed, keeping current model: " + e.getMessage());
+            resp.getWriter().write(gson.toJson(error));
+        }
+    }
+    
+    private static Map<String, Object> describe(CompiledDiseaseModel model) {
+        Path path = DiseasePredictor.getModelPath();
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("source", path != null ? path.toString() : "built-in");
+        info.put("diseases", model.diseaseCount);
+        info.put("symptoms", model.symptomCount);
+        return info;
+    }
+}
+
+/**
+ * Symptom autocomplete: {@code GET /api/symptoms/suggest?q=ru&limit=10}
+ * returns canonical symptom names from the current model's
+ * {@link SymptomCanonicalizer}.
+ */
+class SymptomServlet extends HttpServlet {
+    private static final int DEFAULT_LIMIT = 10;
+    private static final int MAX_LIMIT = 100;
+    
+    private Gson gson = new Gson();
+    
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        
+        if (!"/suggest".equals(req.getPathInfo())) {
+            resp.setStatus(404);
+            return;
+        }
+        int limit = DEFAULT_LIMIT;
+        String limitParam = req.getParameter("limit");
+        if (limitParam != null) {
+            try {
+                limit = Integer.parseInt(limitParam);
+            } catch (NumberFormatException e) {
+                resp.setStatus(400);
+                return;
+            }
+            if (limit <= 0 || limit > MAX_LIMIT) {
+                resp.setStatus(400);
+                return;
+            }
+        }
+        String query = req.getParameter("q");
+        List<String> suggestions = query != null
+            ? DiseasePredictor.getModel().canonicalizer.suggest(query, limit) : Collections.<String>emptyList();
+        resp.getWriter().write(gson.toJson(suggestions));
+    }
+}
+
+/**
+ * Server-sent events of patient changes from {@link PatientFeed}, resuming
+ * after the {@code Last-Event-ID} header or {@code lastEventId} parameter.
+ */
+class PatientStreamServlet extends HttpServlet {
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/event-stream");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        String lastEventId = req.getHeader("Last-Event-ID");
+        if (lastEventId == null) {
+            lastEventId = req.getParameter("lastEventId");
+        }
+        AsyncContext context = req.startAsync();
+        context.setTimeout(0);
+        PatientDB.feed().subscribe(context, lastEventId);
+    }
+}
+
+/**
+ * Read-only views of {@link PatientAnalytics}: the full summary at the root,
+ * and {@code /prevalence}, {@code /confidence[?diagnosis=]},
+ * {@code /ages[?diagnosis=]} and {@code /window?minutes=} separately.
+ */
+class AnalyticsServlet extends HttpServlet {
+    private Gson gson = new Gson();
+    
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        
+        PatientAnalytics analytics = PatientDB.analytics();
+        String pathInfo = req.getPathInfo();
+        String diagnosis = req.getParameter("diagnosis");
+        Object body;
+        if (pathInfo == null || pathInfo.equals("/")) {
+            body = analytics.summary();
+        } else if (pathInfo.equals("/prevalence")) {
+            body = analytics.prevalence();
+        } else if (pathInfo.equals("/confidence")) {
+            body = analytics.confidence(diagnosis);
+        } else if (pathInfo.equals("/ages")) {
+            body = diagnosis != null ? analytics.ages(diagnosis) : analytics.agesByDiagnosis();
+        } else if (pathInfo.equals("/window")) {
+            try {
+                String minutes = req.getParameter("minutes");
+                body = analytics.window(minutes != null ? Integer.parseInt(minutes) : 60);
+            } catch (IllegalArgumentException e) {
+                resp.setStatus(400);
+                return;
+            }
+        } else {
+            resp.setStatus(404);
+            return;
+        }
+        if (body == null) {
+            resp.setStatus(404);
+            return;
+        }
+        resp.getWriter().write(gson.toJson(body));
+    }
+}
+
+/** Exposes {@link Metrics} in Prometheus text format. */
+class MetricsServlet extends HttpServlet {
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        byte[] body = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+        resp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        resp.setContentLength(body.length);
+        resp.getOutputStream().write(body);
+    }
+}
+
+/**
+ * Serves the single-page UI. The page is rendered once at class load into
+ * immutable identity and gzip byte arrays, each with its own strong ETag, so a
+ * request costs a header comparison and one write; revalidation gets a 304.
+ * Any other path gets an empty 404.
+ */
+class HomeServlet extends HttpServlet {
+    private static final byte[] PAGE = render().getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PAGE_GZIP = gzip(PAGE);
+    private static final String ETAG = etag(PAGE, "");
+    private static final String ETAG_GZIP = etag(PAGE, "-gzip");
+    
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String path = req.getPathInfo();
+        if (path != null && !path.equals("/") && !path.equals("/index.html")) {
+            resp.setStatus(404);
+            resp.setContentLength(0);
+            return;
+        }
+        
+        boolean gzip = acceptsGzip(req.getHeader("Accept-Encoding"));
+        String etag = gzip ? ETAG_GZIP : ETAG;
+        resp.setHeader("ETag", etag);
+        resp.setHeader("Cache-Control", "public, no-cache");
+        resp.setHeader("Vary", "Accept-Encoding");
+        if (matches(req.getHeader("If-None-Match"), etag)) {
+            resp.setStatus(304);
+            return;
+        }
+        
+        byte[] body = gzip ? PAGE_GZIP : PAGE;
+        resp.setContentType("text/html;charset=UTF-8");
+        if (gzip) {
+            resp.setHeader("Content-Encoding", "gzip");
+        }
+        resp.setContentLength(body.length);
+        resp.getOutputStream().write(body);
+    }
+    
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+    
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static String etag(byte[] content, String suffix) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder tag = new StringBuilder("\"");
+            for (int i = 0; i < 12; i++) {
+                tag.append(String.format("%02x", digest[i]));
+            }
+            return tag.append(suffix).append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static byte[] gzip(byte[] content) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 3);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes) {
+            { def.setLevel(Deflater.BEST_COMPRESSION); }
+        }) {
+            out.write(content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static String render() {
+        StringWriter page = new StringWriter(64 * 1024);
+        PrintWriter out = new PrintWriter(page);
         out.println("<!DOCTYPE html>");
         out.println("<html><head><title>AI Medical Diagnosis</title>");
         out.println("<style>");
@@ -528,19 +8686,30 @@ class HomeServlet extends HttpServlet {
         out.println("function closeModal(){document.getElementById('patientModal').style.display='none'}");
         out.println("window.onclick=function(e){if(e.target==document.getElementById('patientModal')){closeModal()}}");
         
-        out.println("async function runDiagnosis(){const name=document.getElementById('name').value;const age=parseInt(document.getElementById('age').value);const gender=document.getElementById('gender').value;const bloodGroup=document.getElementById('bloodGroup').value;const medicalHistory=document.getElementById('medicalHistory').value;const selectedSymptoms=[];document.querySelectorAll('#symptomSelector input:checked').forEach(cb=>selectedSymptoms.push(cb.value));if(!name||!age||selectedSymptoms.length===0){showAlert('Please fill patient info and select symptoms!','info');return}const patient={name,age,gender,bloodGroup,medicalHistory,symptoms:selectedSymptoms};document.getElementById('resultsSection').style.display='block';document.getElementById('diagnosisResults').innerHTML='<div class=\"loading\"><div class=\"spinner\"></div><p>AI analyzing...</p></div>';try{const response=await fetch('/api/diagnosis/',{method:'POST',headers:{'Content-Type':'application/json'},body:JSON.stringify(patient)});const results=await response.json();if(results.length===0){document.getElementById('diagnosisResults').innerHTML='<p style=\"text-align:center;\">No matching diseases. Consult a doctor.</p>';return}let html='';results.forEach((r,i)=>{html+='<div class=\"diagnosis-item\"><div class=\"diagnosis-header\"><div><span class=\"disease-name\">'+(i+1)+'. '+r.disease+'</span><span class=\"severity '+r.severity+'\">'+r.severity+' Risk</span></div><div class=\"probability\">'+r.probability.toFixed(1)+'%</div></div><div class=\"recommendations\"><h4>Recommended Actions:</h4><ul>'+r.recommendations.map(rc=>'<li>'+rc+'</li>').join('')+'</ul></div></div>'});document.getElementById('diagnosisResults').innerHTML=html;patient.diagnosis=results[0].disease;patient.confidenceScore=results[0].probability;await fetch('/api/patients/',{method:'POST',headers:{'Content-Type':'application/json'},body:JSON.stringify(patient)});showAlert('Diagnosis completed!','success');loadPatients()}catch(error){showAlert('Error running diagnosis','info')}}");
+        out.println("async function runDiagnosis(){const name=document.getElementById('name').value;const age=parseInt(document.getElementById('age').value);const gender=document.getElementById('gender').value;const bloodGroup=document.getElementById('bloodGroup').value;const medicalHistory=document.getElementById('medicalHistory').value;const selectedSymptoms=[];document.querySelectorAll('#symptomSelector input:checked').forEach(cb=>selectedSymptoms.push(cb.value));if(!name||!age||selectedSymptoms.length===0){showAlert('Please fill patient info and select symptoms!','info');return}const patient={name,age,gender,bloodGroup,medicalHistory,symptoms:selectedSymptoms};document.getElementById('resultsSection').style.display='block';document.getElementById('diagnosisResults').innerHTML='<div class=\"loading\"><div class=\"spinner\"></div><p>AI analyzing...</p></div>';try{const response=await fetch('/api/diagnosis/',{method:'POST',headers:{'Content-Type':'application/json'},body:JSON.stringify(patient)});const results=await response.json();if(results.length===0){document.getElementById('diagnosisResults').innerHTML='<p style=\"text-align:center;\">No matching diseases. Consult a doctor.</p>';return}let html='';results.forEach((r,i)=>{html+='<div class=\"diagnosis-item\"><div class=\"diagnosis-header\"><div><span class=\"disease-name\">'+(i+1)+'. '+r.disease+'</span><span class=\"severity '+r.severity+'\">'+r.severity+' Risk</span></div><div class=\"probability\">'+r.probability.toFixed(1)+'%</div></div><div class=\"recommendations\"><h4>Recommended Actions:</h4><ul>'+r.recommendations.map(rc=>'<li>'+rc+'</li>').join('')+'</ul></div></div>'});document.getElementById('diagnosisResults').innerHTML=html;patient.diagnosis=results[0].disease;patient.confidenceScore=results[0].probability;await fetch('/api/patients/',{method:'POST',headers:{'Content-Type':'application/json'},body:JSON.stringify(patient)});showAlert('Diagnosis completed!','success');refreshUnlessLive()}catch(error){showAlert('Error running diagnosis','info')}}");
         
-        out.println("async function loadPatients(){try{const response=await fetch('/api/patients/');const patients=await response.json();document.getElementById('totalPatients').textContent=patients.length;const listDiv=document.getElementById('patientList');if(patients.length===0){listDiv.innerHTML='<p style=\"text-align:center;color:#999;\">No patient records</p>';return}listDiv.innerHTML='';patients.forEach(p=>{const div=document.createElement('div');div.className='patient-item';div.innerHTML='<div class=\"patient-info\"><strong>'+p.name+'</strong><span>Age: '+p.age+' | Gender: '+p.gender+' | Blood: '+p.bloodGroup+'</span>'+(p.diagnosis?'<br><span style=\"color:#667eea;\">Diagnosis: '+p.diagnosis+' ('+p.confidenceScore.toFixed(1)+'%)</span>':'')+'</div><div class=\"patient-actions\"><button onclick=\"viewPatientModal('+p.id+')\">View</button><button class=\"btn-secondary\" onclick=\"deletePatient('+p.id+')\">Delete</button></div>';listDiv.appendChild(div)})}catch(error){console.error(error)}}");
+        out.println("let feed=null,pending=null;");
+        out.println("function patientItem(p){const div=document.createElement('div');div.className='patient-item';div.id='patient-'+p.id;div.dataset.id=p.id;div.innerHTML='<div class=\"patient-info\"><strong>'+p.name+'</strong><span>Age: '+p.age+' | Gender: '+p.gender+' | Blood: '+p.bloodGroup+'</span>'+(p.diagnosis?'<br><span style=\"color:#667eea;\">Diagnosis: '+p.diagnosis+' ('+p.confidenceScore.toFixed(1)+'%)</span>':'')+'</div><div class=\"patient-actions\"><button onclick=\"viewPatientModal('+p.id+')\">View</button><button class=\"btn-secondary\" onclick=\"deletePatient('+p.id+')\">Delete</button></div>';return div}");
+        out.println("function renderCount(){const listDiv=document.getElementById('patientList');const n=listDiv.querySelectorAll('.patient-item').length;document.getElementById('totalPatients').textContent=n;const empty=document.getElementById('noPatients');if(n===0&&!empty){listDiv.innerHTML='<p id=\"noPatients\" style=\"text-align:center;color:#999;\">No patient records</p>'}else if(n>0&&empty){empty.remove()}}");
+        out.println("async function loadPatients(){pending=pending||[];try{const response=await fetch('/api/patients/');const patients=await response.json();const listDiv=document.getElementById('patientList');listDiv.innerHTML='';patients.forEach(p=>listDiv.appendChild(patientItem(p)));renderCount()}catch(error){console.error(error)}finally{const queued=pending;pending=null;queued.forEach(e=>applyEvent(e[0],e[1]))}}");
         
         out.println("async function viewPatientModal(id){try{const response=await fetch('/api/patients/'+id);const p=await response.json();const modalBody=document.getElementById('modalBody');let symptomsHTML='';if(p.symptoms&&p.symptoms.length>0){p.symptoms.forEach(s=>{symptomsHTML+='<span class=\"symptom-badge\">'+s+'</span>'})}else{symptomsHTML='<p style=\"text-align:center;color:#999;\">No symptoms recorded</p>'}let html='<div class=\"record-section\"><h3>👤 Personal Information</h3><div class=\"info-grid\"><div class=\"info-item\"><label>Patient ID</label><div class=\"value\">#'+p.id+'</div></div><div class=\"info-item\"><label>Full Name</label><div class=\"value\">'+p.name+'</div></div><div class=\"info-item\"><label>Age</label><div class=\"value\">'+p.age+' years</div></div><div class=\"info-item\"><label>Gender</label><div class=\"value\">'+p.gender+'</div></div><div class=\"info-item\"><label>Blood Group</label><div class=\"value\">'+p.bloodGroup+'</div></div><div class=\"info-item\"><label>Registration Date</label><div class=\"value\">'+new Date().toLocaleDateString()+'</div></div></div></div><div class=\"record-section\"><h3>🩺 Reported Symptoms</h3>'+symptomsHTML+'</div>';if(p.diagnosis){html+='<div class=\"record-section\"><h3>🔬 AI Diagnosis Result</h3><div class=\"diagnosis-box\"><h4>Diagnosed Condition</h4><div style=\"font-size:28px;margin:15px 0;\">'+p.diagnosis+'</div><div class=\"conf-score\">'+p.confidenceScore.toFixed(1)+'%</div><div style=\"font-size:14px;opacity:0.9;\">Confidence Score</div></div></div>'}if(p.medicalHistory){html+='<div class=\"record-section\"><h3>📋 Medical History</h3><p>'+p.medicalHistory+'</p></div>'}modalBody.innerHTML=html;document.getElementById('patientModal').style.display='block'}catch(error){showAlert('Error loading patient record','info')}}");
         
-        out.println("async function deletePatient(id){if(!confirm('Delete this patient?'))return;try{await fetch('/api/patients/'+id,{method:'DELETE'});showAlert('Patient deleted','success');loadPatients()}catch(error){showAlert('Error deleting patient','info')}}");
+        out.println("async function deletePatient(id){if(!confirm('Delete this patient?'))return;try{await fetch('/api/patients/'+id,{method:'DELETE'});showAlert('Patient deleted','success');refreshUnlessLive()}catch(error){showAlert('Error deleting patient','info')}}");
         
         out.println("function resetForm(){document.getElementById('name').value='';document.getElementById('age').value='';document.getElementById('medicalHistory').value='';document.querySelectorAll('#symptomSelector input').forEach(cb=>cb.checked=false);document.getElementById('resultsSection').style.display='none'}");
         
-        out.println("initSymptoms();loadPatients();");
+        // Feed events patch the list row by row; only a resync reloads it. Events that arrive while the list
+        // is being fetched are queued and applied after it, and the first fetch waits for the stream to open.
+        out.println("function applyEvent(type,p){const listDiv=document.getElementById('patientList');const old=document.getElementById('patient-'+p.id);if(type==='deleted'){if(old)old.remove()}else if(old){listDiv.replaceChild(patientItem(p),old)}else{let next=null;const last=listDiv.lastElementChild;if(last&&last.dataset.id&&+last.dataset.id>p.id){for(const c of listDiv.children){if(c.dataset.id&&+c.dataset.id>p.id){next=c;break}}}listDiv.insertBefore(patientItem(p),next)}renderCount()}");
+        out.println("function refreshUnlessLive(){if(!feed||feed.readyState===EventSource.CLOSED)loadPatients()}");
+        out.println("function onPatientEvent(e){const p=JSON.parse(e.data);if(pending){pending.push([e.type,p])}else{applyEvent(e.type,p)}}");
+        out.println("function startFeed(){if(!window.EventSource){loadPatients();return}let synced=false,loaded=false;feed=new EventSource('/api/patients/stream');feed.onopen=()=>{if(!synced){synced=loaded=true;loadPatients()}};feed.onerror=()=>{if(!loaded){loaded=true;loadPatients()}};['added','updated','diagnosed','deleted'].forEach(t=>feed.addEventListener(t,onPatientEvent));feed.addEventListener('resync',()=>loadPatients())}");
+        out.println("initSymptoms();startFeed();");
         
         out.println("</script>");
         out.println("</body></html>");
+        out.flush();
+        return page.toString();
     }
 }